@@ -1,7 +1,14 @@
 package net.gree.asdk.core.imageloader;
 
+import java.util.Collection;
+import java.util.List;
+
 import net.gree.asdk.core.imageloader.cache.ImageCache;
+import net.gree.asdk.core.imageloader.cache.NegativeCache;
+import net.gree.asdk.core.imageloader.concurrent.Task;
+import net.gree.asdk.core.imageloader.core.HostScheduler;
 import net.gree.asdk.core.imageloader.core.ImageLoader;
+import net.gree.asdk.core.imageloader.core.Prefetcher;
 
 import android.Manifest;
 import android.content.Context;
@@ -19,10 +26,34 @@ public class ImageLoaderManager {
         }
 		mLoaderSettings = settings;
 		
-		mImageLoader = new ImageLoader(context, mLoaderSettings.mTaskExecutor);
+		mImageLoader = new ImageLoader(context, mLoaderSettings.mTaskExecutor,
+				mLoaderSettings.mDiskTaskExecutor, mLoaderSettings.mDiskPoolSize,
+				mLoaderSettings.mMaxDownloads, mLoaderSettings.mMaxDownloadsPerHost);
+		if (mLoaderSettings.mDecodeTaskExecutor != null) {
+			mImageLoader.setDecodeTaskExecutor(mLoaderSettings.mDecodeTaskExecutor,
+					mLoaderSettings.mDecodePoolSize);
+		}
 		ImageCache imageCache = new ImageCache(context, mLoaderSettings);
 		mImageLoader.setImageCache(imageCache);
 		mImageLoader.setImageDownloader(mLoaderSettings.mImageDownloader);
+		if (mLoaderSettings.mNegativeCacheSize > 0) {
+			NegativeCache negativeCache = new NegativeCache(mLoaderSettings.mNegativeCacheSize);
+			if (mLoaderSettings.mPersistNegativeCache && context != null) {
+				negativeCache.persist(context, mLoaderSettings.mUniqueName);
+			}
+			mImageLoader.setNegativeCache(negativeCache);
+		}
+		mImageLoader.setRequestTimeout(mLoaderSettings.mRequestTimeout);
+		mImageLoader.setResumeThreshold(mLoaderSettings.mResumeThreshold);
+		mImageLoader.setFetchLimits(mLoaderSettings.mMaxBytesInFlight,
+				mLoaderSettings.mMaxConcurrentDecodes);
+		mImageLoader.setUrlVariantRewriter(mLoaderSettings.mUrlVariantRewriter,
+				mLoaderSettings.mSlowBandwidth, mLoaderSettings.mSlowBandwidthSizeFactor);
+		Task.setBatchResults(mLoaderSettings.mBatchResults);
+		mImageLoader.setPrefetchParameters(mLoaderSettings.mPrefetchConcurrency,
+				mLoaderSettings.mPrefetchByteBudget);
+		mImageLoader.setMetrics(mLoaderSettings.mMetrics);
+		mImageLoader.setTracer(mLoaderSettings.mTracer);
 	}
 	
 	private void verifyPermissions(Context context) {
@@ -56,6 +87,48 @@ public class ImageLoaderManager {
     	mImageLoader.loadImage(url, reqWidth, reqHeight, listener);
     }
     
+    /**
+     * Warms the disk cache with the given urls at low priority, see {@link ImageLoader#prefetch}.
+     */
+    public Prefetcher.Group prefetch(Collection<String> urls) {
+    	return mImageLoader.prefetch(urls);
+    }
+    
+    public void cancelPrefetch() {
+    	mImageLoader.cancelPrefetch();
+    }
+    
+    public void pause() {
+    	mImageLoader.pause();
+    }
+    
+    public void resume() {
+    	mImageLoader.resume();
+    }
+    
+    public boolean isPaused() {
+    	return mImageLoader.isPaused();
+    }
+    
+    public int getShedCount() {
+    	return mImageLoader.getShedCount();
+    }
+    
+    /**
+     * @return the urls that recently failed to load, with their hit count, or null if disabled
+     */
+    public NegativeCache getNegativeCache() {
+    	return mImageLoader.getNegativeCache();
+    }
+    
+    public void setHostPolicy(String host, int maxDownloads, int weight) {
+    	mImageLoader.setHostPolicy(host, maxDownloads, weight);
+    }
+    
+    public List<HostScheduler.HostStats> getHostStats() {
+    	return mImageLoader.getHostStats();
+    }
+    
     public void clear() {
     	mImageLoader.clearAll();
     }
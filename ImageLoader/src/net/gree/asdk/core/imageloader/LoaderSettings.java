@@ -1,13 +1,28 @@
 package net.gree.asdk.core.imageloader;
 
+import net.gree.asdk.core.imageloader.concurrent.ElasticTaskExecutor;
+import net.gree.asdk.core.imageloader.concurrent.FetchingTaskExecutor;
 import net.gree.asdk.core.imageloader.concurrent.ITaskExecutor;
 import net.gree.asdk.core.imageloader.concurrent.ITaskExecutorParameters;
 import net.gree.asdk.core.imageloader.concurrent.TaskExecutorFactory;
+import net.gree.asdk.core.imageloader.download.CircuitBreaker;
 import net.gree.asdk.core.imageloader.download.ImageDownloader;
+import net.gree.asdk.core.imageloader.download.NioImageDownloader;
+import net.gree.asdk.core.imageloader.download.ResilientImageDownloader;
+import net.gree.asdk.core.imageloader.download.UrlVariantRewriter;
+import net.gree.asdk.core.imageloader.metrics.LoaderMetrics;
+import net.gree.asdk.core.imageloader.metrics.RequestTracer;
 
 public final class LoaderSettings {
 	private static final int DEFAULT_DISK_CACHE_SIZE = 50 * 1024 * 1024;// google recommends 1MB, per app.
 	private static final int DEFAUTL_MEMORY_CACHE_SIZE = (int) (Runtime.getRuntime().maxMemory() / 4); 
+	private static final int DEFAULT_DISK_POOL_SIZE = 2;
+	private static final int DEFAULT_DECODE_POOL_SIZE = Runtime.getRuntime().availableProcessors();
+	private static final int DEFAULT_KEEP_ALIVE = 1000;
+	private static final long DEFAULT_RESUME_THRESHOLD = 256 * 1024;
+	private static final long DEFAULT_ELASTIC_BYTES_IN_FLIGHT = 8 * 1024 * 1024;
+	private static final int DEFAULT_ELASTIC_MAX_DOWNLOADS = 128;
+	private static final int DEFAULT_FETCHER_MAX_DOWNLOADS = NioImageDownloader.DEFAULT_MAX_CONNECTIONS;
 	
 	public String mUniqueName;
 	public boolean mEnableDiskCache = false;
@@ -19,8 +34,34 @@ public final class LoaderSettings {
 	public ITaskExecutorParameters mTaskExecutorParameters;
 	
 	public ITaskExecutor mTaskExecutor;
+	public ITaskExecutor mDiskTaskExecutor;
+	public int mDiskPoolSize = DEFAULT_DISK_POOL_SIZE;
+	public ITaskExecutor mDecodeTaskExecutor;
+	public int mDecodePoolSize = DEFAULT_DECODE_POOL_SIZE;
+	public int mMaxDownloads = 0;
+	public int mMaxDownloadsPerHost = 0;
+	public long mMaxBytesInFlight = 0;
+	public int mMaxConcurrentDecodes = 0;
 	
 	public ImageDownloader mImageDownloader;
+	public String mAccept;
+	public int mNegativeCacheSize = 0;
+	public boolean mPersistNegativeCache = false;
+	public int mMaxRetries = 0;
+	public long mRetryBaseDelay = ResilientImageDownloader.DEFAULT_BASE_DELAY;
+	public int mCircuitFailureThreshold = 0;
+	public long mCircuitOpenDuration = CircuitBreaker.DEFAULT_OPEN_DURATION;
+	
+	public long mRequestTimeout = 0;
+	public boolean mBatchResults = false;
+	public int mPrefetchConcurrency = 0;
+	public long mPrefetchByteBudget = 0;
+	public long mResumeThreshold = DEFAULT_RESUME_THRESHOLD;
+	public UrlVariantRewriter mUrlVariantRewriter;
+	public long mSlowBandwidth = 0;
+	public float mSlowBandwidthSizeFactor = 1f;
+	public LoaderMetrics mMetrics;
+	public RequestTracer mTracer;
 
 	private LoaderSettings(String uniqueName) {
 		mUniqueName = uniqueName;
@@ -68,19 +109,23 @@ public final class LoaderSettings {
 		public SettingsBuilder withTaskExecutor(int type) {
 			mSettings.mTaskExecutorParameters = new ITaskExecutorParameters() {
 
+				// without parameters the executor picks its own defaults
 				@Override
 				public int corePoolSize() {
-					return mSettings.mExecutorParameters.mCorePoolSize;
+					return mSettings.mExecutorParameters != null
+							? mSettings.mExecutorParameters.mCorePoolSize : 0;
 				}
 
 				@Override
 				public int maxPoolSize() {
-					return mSettings.mExecutorParameters.mMaxPoolSize;
+					return mSettings.mExecutorParameters != null
+							? mSettings.mExecutorParameters.mMaxPoolSize : 0;
 				}
 
 				@Override
 				public int keepAlive() {
-					return mSettings.mExecutorParameters.mKeepAliveTime;
+					return mSettings.mExecutorParameters != null
+							? mSettings.mExecutorParameters.mKeepAliveTime : 0;
 				}
 				
 			};
@@ -88,13 +133,261 @@ public final class LoaderSettings {
 			return this;
 		}
 		
+		/**
+		 * Sets the size of the pool that looks images up in the disk cache. Disk lookups never
+		 * wait behind downloads, which run on the executor set by {@link #withTaskExecutor}.
+		 */
+		public SettingsBuilder withDiskExecutor(int poolSize) {
+			mSettings.mDiskPoolSize = poolSize;
+			mSettings.mDiskTaskExecutor = TaskExecutorFactory.getTaskExecutor(
+					TaskExecutorFactory.TYPE_PARALLEL, newParameters(poolSize, poolSize, DEFAULT_KEEP_ALIVE));
+			return this;
+		}
+		
+		/**
+		 * Sets the size of the pool that decodes, scales and encodes downloaded images, one thread
+		 * per core by default. The executor set by {@link #withTaskExecutor} then only waits for
+		 * the network, and can be large. Pass 0 to decode on the download threads.
+		 */
+		public SettingsBuilder withDecodeExecutor(int poolSize) {
+			mSettings.mDecodePoolSize = poolSize;
+			mSettings.mDecodeTaskExecutor = poolSize > 0 ? TaskExecutorFactory.getTaskExecutor(
+					TaskExecutorFactory.TYPE_WORK_STEALING, newParameters(poolSize, poolSize,
+							DEFAULT_KEEP_ALIVE)) : null;
+			return this;
+		}
+		
+		/**
+		 * Limits the downloads that may run at the same time, 5 by default and 128 with
+		 * {@link TaskExecutorFactory#TYPE_ELASTIC}.
+		 */
+		public SettingsBuilder withMaxDownloads(int maxDownloads) {
+			mSettings.mMaxDownloads = maxDownloads;
+			return this;
+		}
+		
+		/**
+		 * Limits the downloads from a single host that may run at the same time, and lets hosts
+		 * take turns, so that one slow host cannot hold every download slot.
+		 */
+		public SettingsBuilder withPerHostLimit(int maxDownloadsPerHost) {
+			mSettings.mMaxDownloadsPerHost = maxDownloadsPerHost;
+			return this;
+		}
+		
+		/**
+		 * Limits the bytes all downloads may hold and the decodes that may run at the same time.
+		 * With {@link TaskExecutorFactory#TYPE_ELASTIC}, which runs every download on a thread of
+		 * its own, these limits and the per host limit are what bounds the downloads; they default
+		 * to 8MB and one decode per core there.
+		 */
+		public SettingsBuilder withFetchLimits(long maxBytesInFlight, int maxConcurrentDecodes) {
+			mSettings.mMaxBytesInFlight = maxBytesInFlight;
+			mSettings.mMaxConcurrentDecodes = maxConcurrentDecodes;
+			return this;
+		}
+		
+		/**
+		 * A downloader that is a {@link FetchingTaskExecutor.Fetcher}, like
+		 * {@link NioImageDownloader}, fetches images without taking a thread of the task executor,
+		 * which then only decodes and can be small.
+		 */
 		public SettingsBuilder setImageDownloader(ImageDownloader imageDownloader) {
 			mSettings.mImageDownloader = imageDownloader;
 			return this;
 		}
 		
+		/**
+		 * Remembers up to {@code maxEntries} urls that failed to load, so that they fail at once
+		 * until their failure expires. Off by default, pass 0 to always try again.
+		 * 
+		 * @param persistent keep the failures across restarts
+		 */
+		public SettingsBuilder withNegativeCache(int maxEntries, boolean persistent) {
+			mSettings.mNegativeCacheSize = maxEntries;
+			mSettings.mPersistNegativeCache = persistent;
+			return this;
+		}
+		
+		/**
+		 * Retries downloads that failed for a transient reason after a jittered exponential
+		 * backoff, see {@link ResilientImageDownloader}.
+		 */
+		public SettingsBuilder withRetries(int maxRetries, long baseDelayMillis) {
+			mSettings.mMaxRetries = maxRetries;
+			mSettings.mRetryBaseDelay = baseDelayMillis;
+			return this;
+		}
+		
+		/**
+		 * Fails downloads from a host at once for {@code openMillis} after {@code failureThreshold}
+		 * failures in a row, then probes the host with a single request.
+		 */
+		public SettingsBuilder withCircuitBreaker(int failureThreshold, long openMillis) {
+			mSettings.mCircuitFailureThreshold = failureThreshold;
+			mSettings.mCircuitOpenDuration = openMillis;
+			return this;
+		}
+		
+		/**
+		 * Delivers completed loads to the main thread in one pass per display frame instead of one
+		 * message per image.
+		 */
+		public SettingsBuilder withBatchedDelivery(boolean batch) {
+			mSettings.mBatchResults = batch;
+			return this;
+		}
+		
+		/**
+		 * Drops requests that could not be dispatched within {@code timeoutMillis}.
+		 */
+		public SettingsBuilder withRequestTimeout(long timeoutMillis) {
+			mSettings.mRequestTimeout = timeoutMillis;
+			return this;
+		}
+		
+		/**
+		 * @param concurrency number of prefetch downloads running at the same time
+		 * @param byteBudget maximum number of bytes a single prefetch call may download
+		 */
+		public SettingsBuilder withPrefetch(int concurrency, long byteBudget) {
+			mSettings.mPrefetchConcurrency = concurrency;
+			mSettings.mPrefetchByteBudget = byteBudget;
+			return this;
+		}
+		
+		/**
+		 * Overrides the Accept header of image requests, by default WebP is asked for only where the
+		 * platform decodes all kinds of it.
+		 * 
+		 * @see ImageDownloader#ACCEPT_WEBP
+		 */
+		public SettingsBuilder withAccept(String accept) {
+			mSettings.mAccept = accept;
+			return this;
+		}
+		
+		/**
+		 * Keeps the bytes of interrupted downloads of at least {@code minBytes} in the disk cache
+		 * and resumes them with a range request. Pass 0 to always download images from the start.
+		 */
+		public SettingsBuilder withResumableDownloads(long minBytes) {
+			mSettings.mResumeThreshold = minBytes;
+			return this;
+		}
+		
+		/**
+		 * Loads the smallest CDN variant that covers the requested size instead of the given url.
+		 */
+		public SettingsBuilder withUrlVariants(UrlVariantRewriter rewriter) {
+			return withUrlVariants(rewriter, 0, 1f);
+		}
+		
+		/**
+		 * @param slowBytesPerSecond below this measured bandwidth the requested size is multiplied
+		 *        by {@code sizeFactor} before a variant is picked
+		 */
+		public SettingsBuilder withUrlVariants(UrlVariantRewriter rewriter, long slowBytesPerSecond,
+				float sizeFactor) {
+			mSettings.mUrlVariantRewriter = rewriter;
+			mSettings.mSlowBandwidth = slowBytesPerSecond;
+			mSettings.mSlowBandwidthSizeFactor = sizeFactor;
+			return this;
+		}
+		
+		/**
+		 * Records cache hit ratios, queue waits and latencies into {@code metrics}, nothing by default.
+		 */
+		public SettingsBuilder withMetrics(LoaderMetrics metrics) {
+			mSettings.mMetrics = metrics;
+			return this;
+		}
+		
+		/**
+		 * Records the timeline of every request into {@code tracer}, to be dumped with
+		 * {@link RequestTracer#dumpChromeTrace(java.io.Writer)}; nothing is traced by default.
+		 */
+		public SettingsBuilder withTracer(RequestTracer tracer) {
+			mSettings.mTracer = tracer;
+			return this;
+		}
+		
 		public LoaderSettings build() {
+			if (mSettings.mDiskTaskExecutor == null) {
+				withDiskExecutor(DEFAULT_DISK_POOL_SIZE);
+			}
+			if (mSettings.mDecodeTaskExecutor == null && mSettings.mDecodePoolSize > 0) {
+				withDecodeExecutor(mSettings.mDecodePoolSize);
+			}
+			if (mSettings.mTaskExecutor instanceof ElasticTaskExecutor) {
+				if (mSettings.mMaxBytesInFlight == 0) {
+					mSettings.mMaxBytesInFlight = DEFAULT_ELASTIC_BYTES_IN_FLIGHT;
+				}
+				if (mSettings.mMaxConcurrentDecodes == 0 && mSettings.mDecodeTaskExecutor == null) {
+					mSettings.mMaxConcurrentDecodes = Runtime.getRuntime().availableProcessors();
+				}
+				if (mSettings.mMaxDownloads == 0) {
+					mSettings.mMaxDownloads = DEFAULT_ELASTIC_MAX_DOWNLOADS;
+				}
+			}
+			if (mSettings.mImageDownloader != null && mSettings.mAccept != null) {
+				mSettings.mImageDownloader.setAccept(mSettings.mAccept);
+			}
+			if (mSettings.mImageDownloader != null
+					&& !(mSettings.mImageDownloader instanceof ResilientImageDownloader)
+					&& (mSettings.mMaxRetries > 0 || mSettings.mCircuitFailureThreshold > 0)) {
+				CircuitBreaker circuitBreaker = new CircuitBreaker(
+						mSettings.mCircuitFailureThreshold > 0 ? mSettings.mCircuitFailureThreshold
+								: Integer.MAX_VALUE, mSettings.mCircuitOpenDuration);
+				mSettings.mImageDownloader = new ResilientImageDownloader(mSettings.mImageDownloader,
+						mSettings.mMaxRetries, mSettings.mRetryBaseDelay,
+						ResilientImageDownloader.DEFAULT_MAX_DELAY, circuitBreaker);
+			}
+			if (isFetcher(mSettings.mImageDownloader)) {
+				if (mSettings.mTaskExecutor != null
+						&& !(mSettings.mTaskExecutor instanceof FetchingTaskExecutor)) {
+					mSettings.mTaskExecutor = new FetchingTaskExecutor(
+							(FetchingTaskExecutor.Fetcher) mSettings.mImageDownloader,
+							mSettings.mTaskExecutor);
+				}
+				// downloads in flight do not hold a thread
+				if (mSettings.mMaxDownloads == 0) {
+					mSettings.mMaxDownloads = DEFAULT_FETCHER_MAX_DOWNLOADS;
+				}
+			}
 			return mSettings;
 		}
+		
+		/**
+		 * @return whether {@code imageDownloader} fetches by itself, also when it is wrapped for
+		 *         retries
+		 */
+		private static boolean isFetcher(ImageDownloader imageDownloader) {
+			if (imageDownloader instanceof ResilientImageDownloader) {
+				imageDownloader = ((ResilientImageDownloader) imageDownloader).getDelegate();
+			}
+			return imageDownloader instanceof FetchingTaskExecutor.Fetcher;
+		}
+	}
+	
+	private static ITaskExecutorParameters newParameters(final int corePoolSize,
+			final int maxPoolSize, final int keepAliveTime) {
+		return new ITaskExecutorParameters() {
+
+			@Override
+			public int corePoolSize() {
+				return corePoolSize;
+			}
+
+			@Override
+			public int maxPoolSize() {
+				return maxPoolSize;
+			}
+
+			@Override
+			public int keepAlive() {
+				return keepAliveTime;
+			}
+		};
 	}
 }
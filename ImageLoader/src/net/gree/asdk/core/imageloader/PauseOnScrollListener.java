@@ -0,0 +1,62 @@
+package net.gree.asdk.core.imageloader;
+
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+
+/**
+ * Pauses the {@link ImageLoaderManager} while a list is scrolling and resumes it once the list
+ * settles, so that rows which are only visible for a moment do not start downloads and decodes.
+ */
+public class PauseOnScrollListener implements OnScrollListener {
+	private final ImageLoaderManager mImageLoaderManager;
+	private final boolean mPauseOnScroll;
+	private final boolean mPauseOnFling;
+	private final OnScrollListener mExternalListener;
+	
+	public PauseOnScrollListener(ImageLoaderManager imageLoaderManager) {
+		this(imageLoaderManager, false, true, null);
+	}
+	
+	/**
+	 * @param pauseOnScroll whether to pause while the user is dragging the list
+	 * @param pauseOnFling whether to pause while the list is flinging
+	 * @param externalListener listener to forward the scroll events to, may be null
+	 */
+	public PauseOnScrollListener(ImageLoaderManager imageLoaderManager, boolean pauseOnScroll,
+			boolean pauseOnFling, OnScrollListener externalListener) {
+		mImageLoaderManager = imageLoaderManager;
+		mPauseOnScroll = pauseOnScroll;
+		mPauseOnFling = pauseOnFling;
+		mExternalListener = externalListener;
+	}
+
+	@Override
+	public void onScrollStateChanged(AbsListView view, int scrollState) {
+		switch (scrollState) {
+		case SCROLL_STATE_IDLE:
+			mImageLoaderManager.resume();
+			break;
+		case SCROLL_STATE_TOUCH_SCROLL:
+			if (mPauseOnScroll) {
+				mImageLoaderManager.pause();
+			}
+			break;
+		case SCROLL_STATE_FLING:
+			if (mPauseOnFling) {
+				mImageLoaderManager.pause();
+			}
+			break;
+		}
+		if (mExternalListener != null) {
+			mExternalListener.onScrollStateChanged(view, scrollState);
+		}
+	}
+
+	@Override
+	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+			int totalItemCount) {
+		if (mExternalListener != null) {
+			mExternalListener.onScroll(view, firstVisibleItem, visibleItemCount, totalItemCount);
+		}
+	}
+}
@@ -303,11 +303,15 @@ public class BitmapUtil {
      *
      * @param is input stream of image data
      * @return bitmap created from the given input stream.
+     * @throws OutOfMemoryError if there is no memory for the bitmap, unlike other failures this
+     *         says nothing about the data
      */
     public Bitmap decodeInputStream(InputStream is) {
         Bitmap bitmap = null;
         try {
             bitmap = BitmapFactory.decodeStream(is, null, null);
+        } catch (final OutOfMemoryError e) {
+            throw e;
         } catch (final Throwable e) {
             // calling gc does not help as is called anyway
             // http://code.google.com/p/android/issues/detail?id=8488#c80
@@ -0,0 +1,188 @@
+package net.gree.asdk.core.imageloader.cache;
+
+import android.text.TextUtils;
+
+/**
+ * HTTP freshness and validation information stored next to a disk cache entry.
+ */
+public class CacheMetadata {
+	private static final String SEPARATOR = "\n";
+	private static final String MAX_AGE = "max-age=";
+	private static final String NO_CACHE = "no-cache";
+	private static final String NO_STORE = "no-store";
+	private static final String WEAK_ETAG_PREFIX = "W/";
+
+	private final String mETag;
+	private final String mLastModified;
+	private final long mMaxAge;
+	private final long mFetchTime;
+	private final String mContentType;
+
+	/**
+	 * @param eTag value of the ETag header, may be null
+	 * @param lastModified value of the Last-Modified header, may be null
+	 * @param maxAge freshness lifetime in seconds, or -1 if the response did not specify one
+	 * @param fetchTime time in {@link System#currentTimeMillis()} the response was received
+	 */
+	public CacheMetadata(String eTag, String lastModified, long maxAge, long fetchTime) {
+		this(eTag, lastModified, maxAge, fetchTime, null);
+	}
+
+	/**
+	 * @param contentType media type the server chose for the image, e.g. "image/webp", may be null
+	 */
+	public CacheMetadata(String eTag, String lastModified, long maxAge, long fetchTime,
+			String contentType) {
+		mETag = eTag;
+		mLastModified = lastModified;
+		mMaxAge = maxAge;
+		mFetchTime = fetchTime;
+		mContentType = contentType;
+	}
+
+	/**
+	 * Builds the metadata of a response that was just received.
+	 */
+	public static CacheMetadata fromHeaders(String eTag, String lastModified, String cacheControl) {
+		return fromHeaders(eTag, lastModified, cacheControl, null);
+	}
+
+	/**
+	 * Like {@link #fromHeaders(String, String, String)}, also recording the negotiated format from
+	 * the Content-Type header.
+	 */
+	public static CacheMetadata fromHeaders(String eTag, String lastModified, String cacheControl,
+			String contentType) {
+		return new CacheMetadata(emptyToNull(eTag), emptyToNull(lastModified),
+				parseMaxAge(cacheControl), System.currentTimeMillis(), parseMediaType(contentType));
+	}
+
+	/**
+	 * @return the metadata serialized by {@link #toString()}, or null if {@code value} is empty
+	 */
+	public static CacheMetadata parse(String value) {
+		if (TextUtils.isEmpty(value)) {
+			return null;
+		}
+		String[] fields = value.split(SEPARATOR, -1);
+		if (fields.length < 4) {
+			return null;
+		}
+		try {
+			return new CacheMetadata(emptyToNull(fields[0]), emptyToNull(fields[1]),
+					Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+					fields.length > 4 ? emptyToNull(fields[4]) : null);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	public String getETag() {
+		return mETag;
+	}
+
+	public String getLastModified() {
+		return mLastModified;
+	}
+
+	public long getMaxAge() {
+		return mMaxAge;
+	}
+
+	public long getFetchTime() {
+		return mFetchTime;
+	}
+
+	/**
+	 * @return the media type of the stored image without parameters, e.g. "image/webp", or null if
+	 *         the server did not send one
+	 */
+	public String getContentType() {
+		return mContentType;
+	}
+
+	public boolean hasValidators() {
+		return mETag != null || mLastModified != null;
+	}
+
+	/**
+	 * @return the value for an If-Range header, a strong ETag or else the Last-Modified date, or
+	 *         null if a range request could not be validated
+	 */
+	public String getRangeValidator() {
+		if (mETag != null && !mETag.startsWith(WEAK_ETAG_PREFIX)) {
+			return mETag;
+		}
+		return mLastModified;
+	}
+
+	/**
+	 * An entry without a max-age stays fresh, as entries always did before metadata was stored.
+	 */
+	public boolean isFresh(long now) {
+		if (mMaxAge < 0) {
+			return true;
+		}
+		return now - mFetchTime < mMaxAge * 1000;
+	}
+
+	/**
+	 * Merges the headers of a 304 Not Modified response into this metadata, restarting its
+	 * freshness lifetime.
+	 */
+	public CacheMetadata revalidate(CacheMetadata notModified) {
+		if (notModified == null) {
+			return new CacheMetadata(mETag, mLastModified, mMaxAge, System.currentTimeMillis(),
+					mContentType);
+		}
+		// a 304 describes the stored representation, its format does not change
+		return new CacheMetadata(
+				notModified.mETag != null ? notModified.mETag : mETag,
+				notModified.mLastModified != null ? notModified.mLastModified : mLastModified,
+				notModified.mMaxAge >= 0 ? notModified.mMaxAge : mMaxAge,
+				notModified.mFetchTime, mContentType);
+	}
+
+	@Override
+	public String toString() {
+		return nullToEmpty(mETag) + SEPARATOR + nullToEmpty(mLastModified) + SEPARATOR + mMaxAge
+				+ SEPARATOR + mFetchTime + SEPARATOR + nullToEmpty(mContentType);
+	}
+
+	private static String parseMediaType(String contentType) {
+		if (TextUtils.isEmpty(contentType)) {
+			return null;
+		}
+		int semicolon = contentType.indexOf(';');
+		return emptyToNull((semicolon < 0 ? contentType : contentType.substring(0, semicolon))
+				.trim().toLowerCase());
+	}
+
+	private static long parseMaxAge(String cacheControl) {
+		if (TextUtils.isEmpty(cacheControl)) {
+			return -1;
+		}
+		long maxAge = -1;
+		for (String directive : cacheControl.split(",")) {
+			directive = directive.trim().toLowerCase();
+			if (directive.equals(NO_CACHE) || directive.equals(NO_STORE)) {
+				return 0;
+			} else if (directive.startsWith(MAX_AGE)) {
+				try {
+					maxAge = Long.parseLong(directive.substring(MAX_AGE.length()).trim());
+				} catch (NumberFormatException e) {
+					maxAge = -1;
+				}
+			}
+		}
+		return maxAge;
+	}
+
+	private static String emptyToNull(String value) {
+		return TextUtils.isEmpty(value) ? null : value.replace(SEPARATOR, "");
+	}
+
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+}
@@ -233,6 +233,7 @@ public final class DiskLruCache implements Closeable {
   private final long maxSize;
   private final int valueCount;
   private long size = 0;
+  private long evictionCount;
   private Writer journalWriter;
   private final LinkedHashMap<String, Entry> lruEntries = new LinkedHashMap<String, Entry>(0,
       0.75f, true);
@@ -478,7 +479,7 @@ public final class DiskLruCache implements Closeable {
       executorService.submit(cleanupCallable);
     }
 
-    return new Snapshot(key, entry.sequenceNumber, ins);
+    return new Snapshot(key, entry.sequenceNumber, ins, entry.lengths.clone());
   }
 
   /**
@@ -671,9 +672,17 @@ public final class DiskLruCache implements Closeable {
     while (size > maxSize) {
       Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();// lruEntries.eldest();
       remove(toEvict.getKey());
+      evictionCount++;
     }
   }
 
+  /**
+   * Returns the number of entries removed to keep the cache within its size.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
   /**
    * Closes the cache and deletes all of its stored values. This will delete all files in the cache
    * directory including files that weren't created by the cache.
@@ -701,11 +710,13 @@ public final class DiskLruCache implements Closeable {
     private final String key;
     private final long sequenceNumber;
     private final InputStream[] ins;
+    private final long[] lengths;
 
-    private Snapshot(String key, long sequenceNumber, InputStream[] ins) {
+    private Snapshot(String key, long sequenceNumber, InputStream[] ins, long[] lengths) {
       this.key = key;
       this.sequenceNumber = sequenceNumber;
       this.ins = ins;
+      this.lengths = lengths;
     }
 
     /**
@@ -730,6 +741,13 @@ public final class DiskLruCache implements Closeable {
       return inputStreamToString(getInputStream(index));
     }
 
+    /**
+     * Returns the byte length of the value for {@code index}.
+     */
+    public long getLength(int index) {
+      return lengths[index];
+    }
+
     @Override
     public void close() {
       for (InputStream in : ins) {
@@ -820,6 +838,27 @@ public final class DiskLruCache implements Closeable {
       completeEdit(this, false);
     }
 
+    /**
+     * Moves the value written so far at {@code index} to the same index of {@code target}, an edit
+     * of another entry. This edit has no value at {@code index} afterwards.
+     *
+     * @return false if nothing could be moved, e.g. because writing the value failed
+     */
+    public boolean transferTo(Editor target, int index) throws IOException {
+      synchronized (DiskLruCache.this) {
+        if (entry.currentEditor != this || target.entry.currentEditor != target) {
+          throw new IllegalStateException();
+        }
+        File dirty = entry.getDirtyFile(index);
+        if (hasErrors || !dirty.exists()) {
+          return false;
+        }
+        File targetDirty = target.entry.getDirtyFile(index);
+        deleteIfExists(targetDirty);
+        return dirty.renameTo(targetDirty);
+      }
+    }
+
     private class FaultHidingOutputStream extends FilterOutputStream {
       private FaultHidingOutputStream(OutputStream out) {
         super(out);
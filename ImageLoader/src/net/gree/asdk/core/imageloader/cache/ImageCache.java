@@ -22,6 +22,7 @@ package net.gree.asdk.core.imageloader.cache;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -31,6 +32,7 @@ import java.util.concurrent.CountDownLatch;
 
 import net.gree.asdk.core.imageloader.LoaderSettings;
 import net.gree.asdk.core.imageloader.log.GLog;
+import net.gree.asdk.core.imageloader.metrics.LoaderMetrics;
 import net.gree.asdk.core.imageloader.utils.Util;
 
 import android.annotation.TargetApi;
@@ -47,15 +49,23 @@ import android.text.TextUtils;
 public class ImageCache {
 	private static final String TAG = ImageCache.class.getSimpleName();
 	private static final int IO_BUFFER_SIZE = 8 * 1024;
-	private static final int APP_VERSION = 1;
-	private static final int VALUE_COUNT = 1;
+	private static final int APP_VERSION = 2;
+	private static final int VALUE_COUNT = 2;
+	private static final int DATA_INDEX = 0;
+	private static final int METADATA_INDEX = 1;
+	private static final String PARTIAL_SUFFIX = ".partial";
 	private static final CompressFormat COMPRESS_FORMAT = CompressFormat.PNG;
 	private static final int COMPRESS_QUALITY = 100;
 
+	/** Returned by {@link #putResumableStreamToDisk} when another write holds the entry. */
+	public static final long EDIT_IN_PROGRESS = -2;
+
 	private DiskLruCache mDiskLruCache = null;
 	private CountDownLatch mDiskSignal = null;
 	private LruCache<String, Bitmap> mMemCache = null;
 	private final LoaderSettings mSettings;
+	private volatile LoaderMetrics mMetrics;
+	private long mReportedDiskEvictions;
 
 	public ImageCache(final Context context, final LoaderSettings settings) {
 		mSettings = settings;
@@ -100,6 +110,10 @@ public class ImageCache {
 			@Override
 			protected void entryRemoved(boolean evicted, String key,
 					Bitmap oldBitmap, Bitmap newBitmap) {
+				final LoaderMetrics metrics = mMetrics;
+				if (evicted && metrics != null) {
+					metrics.increment(LoaderMetrics.MEMORY_EVICTION);
+				}
 				if (oldBitmap != null && !oldBitmap.isRecycled()) {
 					oldBitmap.recycle();
 					oldBitmap = null;
@@ -115,25 +129,30 @@ public class ImageCache {
 				VALUE_COUNT, mSettings.mDiskCacheSize);
 	}
 
+	/**
+	 * Counts evictions from memory and disk into {@code metrics}, null to stop.
+	 */
+	public void setMetrics(LoaderMetrics metrics) {
+		mMetrics = metrics;
+	}
+	
+	public boolean hasDiskCache() {
+		return mSettings.mEnableDiskCache;
+	}
+
 	public Bitmap getFromMemCache(String key) {
 		if (mMemCache == null || TextUtils.isEmpty(key)) {
 			return null;
 		}
 		Bitmap bitmap = mMemCache.get(key);
 		if (bitmap != null) {
-			GLog.d(TAG, "get from mem  : " + key);
+			GLog.d(TAG, "get from mem  : {}", key);
 		}
 		return bitmap;
 	}
 
 	public Bitmap getFromDisk(String key) {
-		if (mDiskLruCache == null && mSettings.mEnableDiskCache == true) {
-			try {
-				mDiskSignal.await();
-			} catch (InterruptedException e) {
-				GLog.printStackTrace(TAG, e);
-			}
-		}
+		waitForDiskCache();
 		if (mDiskLruCache == null || TextUtils.isEmpty(key)) {
 			return null;
 		}
@@ -144,7 +163,7 @@ public class ImageCache {
 			if (snapshot == null) {
 				return null;
 			}
-			final InputStream in = snapshot.getInputStream(0);
+			final InputStream in = snapshot.getInputStream(DATA_INDEX);
 			if (in != null) {
 				final BufferedInputStream buffIn = new BufferedInputStream(in);
 				bitmap = BitmapFactory.decodeStream(buffIn);
@@ -157,17 +176,249 @@ public class ImageCache {
 			}
 		}
 		if (bitmap != null) {
-			GLog.d(TAG, "get from disk : " + key);
+			GLog.d(TAG, "get from disk : {}", key);
 		}
 		return bitmap;
 	}
 
+	/**
+	 * Opens the bytes of the disk entry of {@code key} for the caller to decode, closing the stream
+	 * releases the entry.
+	 * 
+	 * @return null if there is no entry of {@code key}, e.g. it was evicted, or no disk cache
+	 * @throws IOException if the entry cannot be read
+	 */
+	public InputStream openFromDisk(String key) throws IOException {
+		waitForDiskCache();
+		if (mDiskLruCache == null || TextUtils.isEmpty(key)) {
+			return null;
+		}
+		final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(hashKeyForDisk(key));
+		if (snapshot == null) {
+			return null;
+		}
+		final InputStream in = snapshot.getInputStream(DATA_INDEX);
+		if (in == null) {
+			snapshot.close();
+			return null;
+		}
+		return new FilterInputStream(new BufferedInputStream(in)) {
+			@Override
+			public void close() throws IOException {
+				snapshot.close();
+			}
+		};
+	}
+
+	/**
+	 * @return the metadata stored with the disk entry of {@code key}, or null if there is none
+	 */
+	public CacheMetadata getMetadata(String key) {
+		waitForDiskCache();
+		if (mDiskLruCache == null || TextUtils.isEmpty(key)) {
+			return null;
+		}
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = mDiskLruCache.get(hashKeyForDisk(key));
+			if (snapshot == null) {
+				return null;
+			}
+			return CacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+		} catch (IOException e) {
+			GLog.printStackTrace(TAG, e);
+			return null;
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	/**
+	 * Replaces the metadata of an existing disk entry, e.g. after a 304 Not Modified response.
+	 */
+	public void updateMetadata(String key, CacheMetadata metadata) {
+		waitForDiskCache();
+		if (mDiskLruCache == null || TextUtils.isEmpty(key) || metadata == null
+				|| !containsKeyInDisk(key)) {
+			return;
+		}
+		DiskLruCache.Editor editor = null;
+		try {
+			editor = mDiskLruCache.edit(hashKeyForDisk(key));
+			if (editor == null) {
+				return;
+			}
+			editor.set(METADATA_INDEX, metadata.toString());
+			editor.commit();
+			mDiskLruCache.flush();
+		} catch (IOException e) {
+			GLog.printStackTrace(TAG, e);
+			abortQuietly(editor);
+		}
+	}
+
 	public void put(String key, Bitmap bitmap) {
 		if (TextUtils.isEmpty(key) || bitmap == null) {
 			return;
 		}
 		putMem(key, bitmap);
-		putDisk(key, bitmap);
+		putDisk(key, bitmap, null, false);
+	}
+
+	/**
+	 * Puts a freshly downloaded bitmap, replacing the disk entry of {@code key} if there is one.
+	 * 
+	 * @param metadata freshness and validation information of the download, may be null
+	 */
+	public void put(String key, Bitmap bitmap, CacheMetadata metadata) {
+		if (TextUtils.isEmpty(key) || bitmap == null) {
+			return;
+		}
+		putMem(key, bitmap);
+		putDisk(key, bitmap, metadata, true);
+	}
+
+	/**
+	 * Copies a download into the disk cache under {@code key}, replacing the entry if there is one.
+	 * When {@code offset} is positive, {@code in} continues the partial entry of {@code key} at
+	 * that byte. If the copy fails midway and {@code metadata} can validate a range request, the
+	 * bytes received so far are kept as the partial entry of {@code key}. The stream is not closed.
+	 * 
+	 * @param metadata freshness and validation information of the download, may be null
+	 * @return the size of the complete entry, -1 if nothing was stored, or
+	 *         {@link #EDIT_IN_PROGRESS} if another write of {@code key} holds the entry, then
+	 *         nothing was read from {@code in}
+	 */
+	public long putResumableStreamToDisk(String key, InputStream in, CacheMetadata metadata,
+			long offset) {
+		waitForDiskCache();
+		if (mDiskLruCache == null || TextUtils.isEmpty(key) || in == null) {
+			return -1;
+		}
+		final String diskKey = hashKeyForDisk(key);
+		DiskLruCache.Editor editor = null;
+		OutputStream out = null;
+		boolean consistent = offset <= 0;
+		long total = 0;
+		try {
+			editor = mDiskLruCache.edit(diskKey);
+			if (editor == null) {
+				GLog.d(TAG, "put raw busy  : {}", key);
+				return EDIT_IN_PROGRESS;
+			}
+			out = new BufferedOutputStream(editor.newOutputStream(DATA_INDEX),
+					IO_BUFFER_SIZE);
+			final byte[] buffer = new byte[IO_BUFFER_SIZE];
+			int read;
+			if (!consistent) {
+				total = copyPartial(diskKey, out, buffer);
+				if (total != offset) {
+					throw new IOException("partial entry has " + total + " bytes, expected " + offset);
+				}
+				consistent = true;
+			}
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				total += read;
+			}
+			out.close();
+			out = null;
+			editor.set(METADATA_INDEX, metadata != null ? metadata.toString() : "");
+			editor.commit();
+			mDiskLruCache.remove(diskKey + PARTIAL_SUFFIX);
+			mDiskLruCache.flush();
+			reportDiskEvictions();
+			GLog.d(TAG, offset > 0 ? "put resumed   : {}" : "put raw disk  : {}", key);
+			return total;
+		} catch (IOException e) {
+			GLog.d(TAG, "put raw abort : {} {}", key, e);
+			closeQuietly(out);
+			if (consistent && total > 0 && metadata != null
+					&& metadata.getRangeValidator() != null
+					&& keepPartial(editor, diskKey, metadata)) {
+				if (GLog.isLoggable(GLog.DEBUG)) {
+					GLog.d(TAG, "keep partial  : " + key + " " + total + " bytes");
+				}
+			}
+			abortQuietly(editor);
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the interrupted download of {@code key} that can be resumed, or null if there is none
+	 */
+	public Partial getPartial(String key) {
+		waitForDiskCache();
+		if (mDiskLruCache == null || TextUtils.isEmpty(key)) {
+			return null;
+		}
+		DiskLruCache.Snapshot snapshot = null;
+		try {
+			snapshot = mDiskLruCache.get(hashKeyForDisk(key) + PARTIAL_SUFFIX);
+			if (snapshot == null) {
+				return null;
+			}
+			CacheMetadata metadata = CacheMetadata.parse(snapshot.getString(METADATA_INDEX));
+			long length = snapshot.getLength(DATA_INDEX);
+			if (metadata == null || metadata.getRangeValidator() == null || length <= 0) {
+				return null;
+			}
+			return new Partial(length, metadata);
+		} catch (IOException e) {
+			GLog.printStackTrace(TAG, e);
+			return null;
+		} finally {
+			if (snapshot != null) {
+				snapshot.close();
+			}
+		}
+	}
+
+	private long copyPartial(String diskKey, OutputStream out, byte[] buffer) throws IOException {
+		DiskLruCache.Snapshot snapshot = mDiskLruCache.get(diskKey + PARTIAL_SUFFIX);
+		if (snapshot == null) {
+			return 0;
+		}
+		try {
+			final InputStream in = snapshot.getInputStream(DATA_INDEX);
+			long total = 0;
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+				total += read;
+			}
+			return total;
+		} finally {
+			snapshot.close();
+		}
+	}
+
+	/**
+	 * Moves the bytes written by {@code editor} so far into the partial entry of {@code diskKey}.
+	 */
+	private boolean keepPartial(DiskLruCache.Editor editor, String diskKey, CacheMetadata metadata) {
+		DiskLruCache.Editor partial = null;
+		try {
+			partial = mDiskLruCache.edit(diskKey + PARTIAL_SUFFIX);
+			if (partial == null) {
+				return false;
+			}
+			if (!editor.transferTo(partial, DATA_INDEX)) {
+				abortQuietly(partial);
+				return false;
+			}
+			partial.set(METADATA_INDEX, metadata.toString());
+			partial.commit();
+			mDiskLruCache.flush();
+			return true;
+		} catch (IOException e) {
+			GLog.printStackTrace(TAG, e);
+			abortQuietly(partial);
+			return false;
+		}
 	}
 
 	public void close() {
@@ -189,15 +440,9 @@ public class ImageCache {
 		}
 	}
 
-	private void putDisk(String key, Bitmap bitmap) {
-		if (mDiskLruCache == null && mSettings.mEnableDiskCache == true) {
-			try {
-				mDiskSignal.await();
-			} catch (InterruptedException e) {
-				GLog.printStackTrace(TAG, e);
-			}
-		}
-		if (mDiskLruCache == null || containsKeyInDisk(key)) {
+	private void putDisk(String key, Bitmap bitmap, CacheMetadata metadata, boolean replace) {
+		waitForDiskCache();
+		if (mDiskLruCache == null || (!replace && containsKeyInDisk(key))) {
 			return;
 		}
 		DiskLruCache.Editor editor = null;
@@ -207,8 +452,10 @@ public class ImageCache {
 				return;
 			}
 			if (writeBitmapToFile(bitmap, editor)) {
+				editor.set(METADATA_INDEX, metadata != null ? metadata.toString() : "");
 				mDiskLruCache.flush();
 				editor.commit();
+				reportDiskEvictions();
 			} else {
 				editor.abort();
 			}
@@ -250,6 +497,9 @@ public class ImageCache {
 	}
 
 	public boolean containsKeyInDisk(String key) {
+		if (mDiskLruCache == null) {
+			return false;
+		}
 		boolean contained = false;
 		DiskLruCache.Snapshot snapshot = null;
 		try {
@@ -265,11 +515,31 @@ public class ImageCache {
 		return contained;
 	}
 
+	/**
+	 * The disk cache evicts in the background after writes, its evictions are counted at the
+	 * next write.
+	 */
+	private void reportDiskEvictions() {
+		final LoaderMetrics metrics = mMetrics;
+		if (metrics == null) {
+			return;
+		}
+		final long evictions = mDiskLruCache.getEvictionCount();
+		final long delta;
+		synchronized (this) {
+			delta = evictions - mReportedDiskEvictions;
+			mReportedDiskEvictions = evictions;
+		}
+		if (delta > 0) {
+			metrics.add(LoaderMetrics.DISK_EVICTION, delta);
+		}
+	}
+	
 	private boolean writeBitmapToFile(Bitmap bitmap, DiskLruCache.Editor editor)
 			throws IOException {
 		OutputStream out = null;
 		try {
-			out = new BufferedOutputStream(editor.newOutputStream(0),
+			out = new BufferedOutputStream(editor.newOutputStream(DATA_INDEX),
 					IO_BUFFER_SIZE);
 			return bitmap.compress(COMPRESS_FORMAT, COMPRESS_QUALITY, out);
 		} finally {
@@ -279,6 +549,63 @@ public class ImageCache {
 		}
 	}
 
+	private void waitForDiskCache() {
+		if (mDiskLruCache == null && mSettings.mEnableDiskCache == true) {
+			try {
+				mDiskSignal.await();
+			} catch (InterruptedException e) {
+				GLog.printStackTrace(TAG, e);
+			}
+		}
+	}
+
+	private static void abortQuietly(DiskLruCache.Editor editor) {
+		if (editor != null) {
+			try {
+				editor.abort();
+			} catch (IOException e) {
+				GLog.printStackTrace(TAG, e);
+			}
+		}
+	}
+
+	private static void closeQuietly(OutputStream out) {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	/**
+	 * The bytes of an interrupted download kept in the disk cache.
+	 */
+	public static class Partial {
+		private final long mLength;
+		private final CacheMetadata mMetadata;
+
+		Partial(long length, CacheMetadata metadata) {
+			mLength = length;
+			mMetadata = metadata;
+		}
+
+		/**
+		 * @return the number of bytes received, i.e. the offset to resume at
+		 */
+		public long getLength() {
+			return mLength;
+		}
+
+		/**
+		 * @return the metadata of the interrupted response, it holds the validator for If-Range
+		 */
+		public CacheMetadata getMetadata() {
+			return mMetadata;
+		}
+	}
+
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
 	private int getBitmapSize(Bitmap bitmap) {
 		if (Util.hasHoneycombMR1()) {
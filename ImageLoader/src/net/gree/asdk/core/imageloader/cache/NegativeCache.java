@@ -0,0 +1,299 @@
+package net.gree.asdk.core.imageloader.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.gree.asdk.core.imageloader.log.GLog;
+
+import android.content.Context;
+
+/**
+ * Remembers urls that failed to load, so that binding them again fails at once instead of costing
+ * a queue slot, a connection and a timeout. How long a failure is remembered depends on its class:
+ * a missing image stays missing for a while, a network error may be gone in seconds. The cache
+ * holds at most {@code maxEntries} urls and may be persisted across restarts.
+ */
+public class NegativeCache {
+	private static final String TAG = NegativeCache.class.getSimpleName();
+	private static final String FILE_SUFFIX = "-negative";
+	private static final String SEPARATOR = "\t";
+	/** Milliseconds changes are collected for before they are written in one go. */
+	private static final long SAVE_DELAY = 2000;
+
+	/** The server does not have the image, 404 or 410. */
+	public static final int FAILURE_NOT_FOUND = 0;
+	/** The server refused the request for another reason, 4xx. */
+	public static final int FAILURE_CLIENT_ERROR = 1;
+	/** The server failed or its circuit is open, 5xx. */
+	public static final int FAILURE_SERVER_ERROR = 2;
+	/** DNS, connect or read failure. */
+	public static final int FAILURE_NETWORK = 3;
+	/** The content could not be decoded as an image. */
+	public static final int FAILURE_UNDECODABLE = 4;
+	private static final int FAILURE_CLASS_COUNT = 5;
+
+	private final long[] mTtls = new long[] {
+			60 * 60 * 1000, // not found
+			10 * 60 * 1000, // client error
+			60 * 1000, // server error
+			15 * 1000, // network
+			60 * 60 * 1000, // undecodable
+	};
+	private final LinkedHashMap<String, Entry> mEntries;
+	private volatile File mFile;
+	private int mHitCount;
+	private int mPutCount;
+	private boolean mSaveScheduled;
+
+	public NegativeCache(final int maxEntries) {
+		mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, NegativeCache.Entry> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Keeps the failures in the cache directory of the app. The failures of the last run are read
+	 * on a background thread, they are not known until it is done.
+	 */
+	public void persist(final Context context, final String uniqueName) {
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final File file = ImageCache.getDiskCacheDir(context, uniqueName + FILE_SUFFIX);
+				load(file);
+				mFile = file;
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * @param ttl milliseconds failures of {@code failureClass} are remembered
+	 */
+	public synchronized void setTtl(int failureClass, long ttl) {
+		mTtls[failureClass] = ttl;
+	}
+
+	/**
+	 * Records that {@code url} failed to load.
+	 *
+	 * @param statusCode HTTP status of the failure, 0 if there was none
+	 */
+	public void put(String url, int failureClass, int statusCode) {
+		if (url == null || failureClass < 0 || failureClass >= FAILURE_CLASS_COUNT) {
+			return;
+		}
+		synchronized (this) {
+			final long ttl = mTtls[failureClass];
+			if (ttl <= 0) {
+				return;
+			}
+			mEntries.put(url, new Entry(failureClass, statusCode, System.currentTimeMillis() + ttl));
+			mPutCount++;
+		}
+		GLog.d(TAG, "put           : {} class {}", url, failureClass);
+		scheduleSave();
+	}
+
+	/**
+	 * @return the failure remembered for {@code url}, or null if loading it may be tried
+	 */
+	public synchronized Entry get(String url) {
+		if (url == null) {
+			return null;
+		}
+		final Entry entry = mEntries.get(url);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.mExpiresAt <= System.currentTimeMillis()) {
+			mEntries.remove(url);
+			return null;
+		}
+		mHitCount++;
+		return entry;
+	}
+
+	/**
+	 * Like {@link #get(String)}, but does not count as a hit.
+	 */
+	public synchronized Entry peek(String url) {
+		final Entry entry = url != null ? mEntries.get(url) : null;
+		return entry != null && entry.mExpiresAt > System.currentTimeMillis() ? entry : null;
+	}
+
+	public synchronized void remove(String url) {
+		mEntries.remove(url);
+	}
+
+	public void clear() {
+		synchronized (this) {
+			mEntries.clear();
+		}
+		scheduleSave();
+	}
+
+	public synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * @return how many loads failed at once because their url was in this cache
+	 */
+	public synchronized int getHitCount() {
+		return mHitCount;
+	}
+
+	public synchronized int getPutCount() {
+		return mPutCount;
+	}
+
+	private void load(File file) {
+		if (!file.exists()) {
+			return;
+		}
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader(file));
+			final long now = System.currentTimeMillis();
+			String line;
+			while ((line = reader.readLine()) != null) {
+				final String[] fields = line.split(SEPARATOR);
+				if (fields.length != 4) {
+					continue;
+				}
+				try {
+					final int failureClass = Integer.parseInt(fields[1]);
+					final long expiresAt = Long.parseLong(fields[3]);
+					if (expiresAt > now && failureClass >= 0 && failureClass < FAILURE_CLASS_COUNT) {
+						synchronized (this) {
+							if (!mEntries.containsKey(fields[0])) {
+								mEntries.put(fields[0], new Entry(failureClass,
+										Integer.parseInt(fields[2]), expiresAt));
+							}
+						}
+					}
+				} catch (NumberFormatException e) {
+					// skip the broken line
+				}
+			}
+		} catch (IOException e) {
+			GLog.printStackTrace(TAG, e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the file on a background thread a little later, together with the changes made until
+	 * then, so that a burst of failures is written once and not on the loading threads.
+	 */
+	private void scheduleSave() {
+		if (mFile == null) {
+			return;
+		}
+		synchronized (this) {
+			if (mSaveScheduled) {
+				return;
+			}
+			mSaveScheduled = true;
+		}
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(SAVE_DELAY);
+				} catch (InterruptedException e) {
+					// saves right away
+				}
+				synchronized (NegativeCache.this) {
+					// changes made from here on schedule the next save
+					mSaveScheduled = false;
+				}
+				save();
+			}
+		}, TAG);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void save() {
+		final File file = mFile;
+		if (file == null) {
+			return;
+		}
+		final List<String> lines;
+		synchronized (this) {
+			final long now = System.currentTimeMillis();
+			lines = new ArrayList<String>(mEntries.size());
+			for (Iterator<Map.Entry<String, Entry>> i = mEntries.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry<String, Entry> e = i.next();
+				final Entry entry = e.getValue();
+				if (entry.mExpiresAt <= now) {
+					i.remove();
+				} else if (!e.getKey().contains(SEPARATOR) && !e.getKey().contains("\n")) {
+					lines.add(e.getKey() + SEPARATOR + entry.mFailureClass + SEPARATOR
+							+ entry.mStatusCode + SEPARATOR + entry.mExpiresAt);
+				}
+			}
+		}
+		synchronized (file) {
+			BufferedWriter writer = null;
+			try {
+				final File tmp = new File(file.getPath() + ".tmp");
+				writer = new BufferedWriter(new FileWriter(tmp));
+				for (String line : lines) {
+					writer.write(line);
+					writer.write('\n');
+				}
+				writer.close();
+				writer = null;
+				if (!tmp.renameTo(file)) {
+					GLog.w(TAG, "could not write {}", file);
+				}
+			} catch (IOException e) {
+				GLog.printStackTrace(TAG, e);
+			} finally {
+				if (writer != null) {
+					try {
+						writer.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+	}
+
+	public static class Entry {
+		public final int mFailureClass;
+		public final int mStatusCode;
+		/** Time in {@link System#currentTimeMillis()} the failure is forgotten. */
+		public final long mExpiresAt;
+
+		Entry(int failureClass, int statusCode, long expiresAt) {
+			mFailureClass = failureClass;
+			mStatusCode = statusCode;
+			mExpiresAt = expiresAt;
+		}
+	}
+}
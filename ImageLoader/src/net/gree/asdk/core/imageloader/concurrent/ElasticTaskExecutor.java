@@ -0,0 +1,105 @@
+package net.gree.asdk.core.imageloader.concurrent;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs every task on a thread of its own, for blocking downloads that spend most of their time
+ * waiting for the network. Tasks are never queued behind each other, so how many run at the same
+ * time is left to the limits of the loader: downloads per host, bytes in flight and concurrent
+ * decodes. The threads have a small stack and die when idle, which is as close to a thread per
+ * fetch as this platform gets without virtual threads.
+ */
+public class ElasticTaskExecutor implements ITaskExecutor {
+  private static final String TAG = ElasticTaskExecutor.class.getSimpleName();
+  private static final int DEFAULT_MAX_POOL_SIZE = 256;
+  private static final int DEFAULT_KEEP_ALIVE = 5000;
+  /** Enough for a blocking read and a streaming decode, far below the default of 1MB. */
+  private static final long STACK_SIZE = 64 * 1024;
+  /** How often a submitter waiting for a thread checks whether the executor was shut down. */
+  private static final long WAIT_SLICE = 100; // milliseconds
+
+  private ThreadPoolExecutor mExecutor;
+  private final ITaskExecutorParameters mParameters;
+
+  /**
+   * @param parameters {@link ITaskExecutorParameters#maxPoolSize()} caps the threads, beyond it
+   *        the thread that submits a task waits until one of them is free to take it, which
+   *        holds back further requests; may be null
+   */
+  public ElasticTaskExecutor(ITaskExecutorParameters parameters) {
+    mParameters = parameters;
+  }
+
+  public <Params,Progress,Result> Task<Params,Progress,Result> execute(
+      Task<Params,Progress,Result> task, Params... params) {
+    return task.execute(getExecutor(), params);
+  }
+
+  public void execute(Runnable task) {
+    getExecutor().execute(task);
+  }
+
+  /**
+   * @return the number of tasks running right now
+   */
+  public int getActiveCount() {
+    return getExecutor().getActiveCount();
+  }
+
+  public int getLargestPoolSize() {
+    return getExecutor().getLargestPoolSize();
+  }
+
+  private synchronized ThreadPoolExecutor getExecutor() {
+    if (mExecutor == null) {
+      final int maxSize = mParameters != null && mParameters.maxPoolSize() > 0
+          ? mParameters.maxPoolSize() : DEFAULT_MAX_POOL_SIZE;
+      final int keepAlive = mParameters != null && mParameters.keepAlive() > 0
+          ? mParameters.keepAlive() : DEFAULT_KEEP_ALIVE;
+      mExecutor =
+          new ThreadPoolExecutor(0, maxSize, keepAlive, TimeUnit.MILLISECONDS,
+              new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                  return new Thread(null, r, TAG + " #" + mCount.getAndIncrement(), STACK_SIZE);
+                }
+              }, new WaitPolicy());
+    }
+    return mExecutor;
+  }
+
+  /**
+   * Makes the submitter wait for a thread to take the task instead of running it, a blocking
+   * download must not run on the dispatcher of the queue nor at its lowered priority. A task that
+   * cannot be handed over because the submitter is interrupted or the executor shuts down is
+   * rejected with a {@link RejectedExecutionException}; the loading thread that submitted it
+   * cancels its request then, so it completes as cancelled.
+   */
+  private static class WaitPolicy implements RejectedExecutionHandler {
+    @Override
+    public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+      try {
+        while (!executor.isShutdown()) {
+          if (executor.getQueue().offer(task, WAIT_SLICE, TimeUnit.MILLISECONDS)) {
+            return;
+          }
+          if (executor.getPoolSize() < executor.getMaximumPoolSize()) {
+            // a thread died of an exception, a new one can take the task
+            executor.execute(task);
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      throw new RejectedExecutionException("no thread took the task");
+    }
+  }
+}
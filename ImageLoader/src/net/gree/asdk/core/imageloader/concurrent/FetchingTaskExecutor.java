@@ -0,0 +1,53 @@
+package net.gree.asdk.core.imageloader.concurrent;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Runs tasks whose input has to be fetched first. The fetch is started by a {@link Fetcher}
+ * without taking a thread of the pool, and the task only runs on the pool, e.g. to decode, once
+ * the fetch is done. A small pool then serves many concurrent fetches.
+ */
+public class FetchingTaskExecutor implements ITaskExecutor {
+  private final Fetcher mFetcher;
+  private final ITaskExecutor mExecutor;
+  private final Executor mPool = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      mExecutor.execute(command);
+    }
+  };
+
+  /**
+   * Fetches the input of a task in the background.
+   */
+  public interface Fetcher {
+    /**
+     * Starts fetching {@code url} and hands {@code task} to {@code executor} once the fetch is
+     * done, whether it succeeded or not. The fetcher makes its result available to the task on
+     * the thread it runs on.
+     */
+    void fetch(String url, Runnable task, Executor executor);
+  }
+
+  /**
+   * @param executor runs the tasks once their fetch is done
+   */
+  public FetchingTaskExecutor(Fetcher fetcher, ITaskExecutor executor) {
+    mFetcher = fetcher;
+    mExecutor = executor;
+  }
+
+  public <Params,Progress,Result> Task<Params,Progress,Result> execute(
+      Task<Params,Progress,Result> task, final Params... params) {
+    return task.execute(new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        mFetcher.fetch(params.length > 0 ? String.valueOf(params[0]) : null, command, mPool);
+      }
+    }, params);
+  }
+
+  public void execute(Runnable task) {
+    mExecutor.execute(task);
+  }
+}
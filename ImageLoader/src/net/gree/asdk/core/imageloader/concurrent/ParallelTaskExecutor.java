@@ -28,11 +28,11 @@ public class ParallelTaskExecutor implements ITaskExecutor {
   private static final int DEFAULT_MAX_POOL_SIZE = 128;
   private static final int DEFAULT_KEEP_ALIVE = 1000;
 
-  private static Executor sExecutor = null;
-  private static ITaskExecutorParameters sParameters;
+  private Executor mExecutor = null;
+  private final ITaskExecutorParameters mParameters;
   
   public ParallelTaskExecutor(ITaskExecutorParameters parameters) {
-	  sParameters = parameters;
+	  mParameters = parameters;
   }
 
   public <Params,Progress,Result> Task<Params,Progress,Result> execute(
@@ -44,12 +44,12 @@ public class ParallelTaskExecutor implements ITaskExecutor {
     getExecutor().execute(task);
   }
 
-  private static Executor getExecutor() {
-    if (sExecutor == null) {
-      int coreSize = get(sParameters.corePoolSize(), DEFAULT_CORE_POOL_SIZE);
-      int maxSize = get(sParameters.maxPoolSize(), DEFAULT_MAX_POOL_SIZE);
-      int keepAlive = get(sParameters.keepAlive(), DEFAULT_KEEP_ALIVE);
-      sExecutor =
+  private synchronized Executor getExecutor() {
+    if (mExecutor == null) {
+      int coreSize = get(mParameters.corePoolSize(), DEFAULT_CORE_POOL_SIZE);
+      int maxSize = get(mParameters.maxPoolSize(), DEFAULT_MAX_POOL_SIZE);
+      int keepAlive = get(mParameters.keepAlive(), DEFAULT_KEEP_ALIVE);
+      mExecutor =
           new ThreadPoolExecutor(coreSize, maxSize, keepAlive, TimeUnit.MILLISECONDS,
               new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
                 private final AtomicInteger mCount = new AtomicInteger(1);
@@ -60,7 +60,7 @@ public class ParallelTaskExecutor implements ITaskExecutor {
                 }
               });
     }
-    return sExecutor;
+    return mExecutor;
   }
   
   private static int get(int setValue, int defaultValue) {
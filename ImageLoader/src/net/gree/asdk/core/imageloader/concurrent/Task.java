@@ -2,6 +2,7 @@ package net.gree.asdk.core.imageloader.concurrent;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.FutureTask;
@@ -10,27 +11,40 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.gree.asdk.core.imageloader.log.GLog;
+import net.gree.asdk.core.imageloader.utils.Util;
 
+import android.annotation.TargetApi;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Process;
+import android.view.Choreographer;
 
 public abstract class Task<Params,Progress,Result> {
   private static final String TAG = Task.class.getSimpleName();
 
   private static final int MESSAGE_POST_RESULT = 0x1;
   private static final int MESSAGE_POST_PROGRESS = 0x2;
+  private static final int MESSAGE_DRAIN_RESULTS = 0x3;
 
   private static final InternalHandler sHandler = new InternalHandler();
 
+  private static volatile boolean sBatchResults = false;
+  @SuppressWarnings("rawtypes")
+  private static final ConcurrentLinkedQueue<Task> sPendingResults =
+      new ConcurrentLinkedQueue<Task>();
+  private static final AtomicBoolean sDrainScheduled = new AtomicBoolean();
+
   private volatile Status mStatus = Status.PENDING;
 
-  private final WorkerCallable<Params,Result> mWorker;
   private final FutureTask<Result> mFuture;
+  // the task itself carries its parameters and result, a task costs no more than it and its future
+  private Params[] mParams;
+  private Result mResult;
 
-  private final AtomicBoolean mCancelled = new AtomicBoolean();
-  private final AtomicBoolean mTaskInvoked = new AtomicBoolean();
+  private volatile boolean mCancelled;
+  private volatile boolean mTaskInvoked;
 
 
   public Task() {
@@ -38,16 +52,14 @@ public abstract class Task<Params,Progress,Result> {
   }
 
   public Task(final int threadPriority) {
-    mWorker = new WorkerCallable<Params,Result>() {
+    mFuture = new FutureTask<Result>(new Callable<Result>() {
       public Result call() throws Exception {
-        mTaskInvoked.set(true);
+        mTaskInvoked = true;
 
         Process.setThreadPriority(threadPriority);
         return postResult(doInBackground(mParams));
       }
-    };
-
-    mFuture = new FutureTask<Result>(mWorker) {
+    }) {
       protected void done() {
           try {
             postResultIfNotInvoked(get());
@@ -63,18 +75,51 @@ public abstract class Task<Params,Progress,Result> {
   }
 
   private void postResultIfNotInvoked(Result result) {
-    if (!mTaskInvoked.get()) {
+    if (!mTaskInvoked) {
       postResult(result);
     }
   }
 
-  @SuppressWarnings("unchecked")
   private Result postResult(Result result) {
-    sHandler.obtainMessage(MESSAGE_POST_RESULT, new TaskResult<Result>(this, result))
-        .sendToTarget();
+    // handing the task over to the main thread publishes the result with it
+    mResult = result;
+    mParams = null;
+    if (sBatchResults) {
+      sPendingResults.offer(this);
+      if (sDrainScheduled.compareAndSet(false, true)) {
+        sHandler.sendEmptyMessage(MESSAGE_DRAIN_RESULTS);
+      }
+      return result;
+    }
+    sHandler.obtainMessage(MESSAGE_POST_RESULT, this).sendToTarget();
     return result;
   }
 
+  /**
+   * Collects results of tasks that complete close together and delivers them in a single pass on
+   * the main thread, aligned to the next display frame where {@link Choreographer} is available.
+   * This way the {@link #onPostExecute} bindings of one frame happen together.
+   *
+   * @param batch true to batch results, false to post one message per result
+   */
+  public static void setBatchResults(boolean batch) {
+    sBatchResults = batch;
+  }
+
+  public static boolean isBatchResults() {
+    return sBatchResults;
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static void drainResults() {
+    // clear the flag first so that results posted while draining schedule another pass
+    sDrainScheduled.set(false);
+    Task task;
+    while ((task = sPendingResults.poll()) != null) {
+      task.finishWithResult();
+    }
+  }
+
   /**
    * Indicates the current status of the task. Each status will be set only once
    * during the lifetime of a task.
@@ -164,7 +209,7 @@ public abstract class Task<Params,Progress,Result> {
    * @return <tt>true</tt> if task was cancelled before it completed
    */
   public final boolean isCancelled() {
-    return mCancelled.get();
+    return mCancelled;
   }
 
   /**
@@ -194,7 +239,7 @@ public abstract class Task<Params,Progress,Result> {
    *         <tt>true</tt> otherwise
    */
   public final boolean cancel(boolean mayInterruptIfRunning) {
-    mCancelled.set(true);
+    mCancelled = true;
     return mFuture.cancel(mayInterruptIfRunning);
   }
 
@@ -246,7 +291,7 @@ public abstract class Task<Params,Progress,Result> {
    */
   protected final void publishProgress(Progress... values) {
     if (!isCancelled()) {
-      sHandler.obtainMessage(MESSAGE_POST_PROGRESS, new TaskResult<Progress>(this, values))
+      sHandler.obtainMessage(MESSAGE_POST_PROGRESS, new ProgressUpdate<Progress>(this, values))
           .sendToTarget();
     }
   }
@@ -262,7 +307,7 @@ public abstract class Task<Params,Progress,Result> {
     }
     mStatus = Status.RUNNING;
 
-    mWorker.mParams = params;
+    mParams = params;
     onPreExecute();
     exec.execute(mFuture);
     return this;
@@ -278,6 +323,12 @@ public abstract class Task<Params,Progress,Result> {
     mStatus = Status.FINISHED;
   }
 
+  private void finishWithResult() {
+    final Result result = mResult;
+    mResult = null;
+    finish(result);
+  }
+
   @SuppressWarnings("rawtypes")
   private static class InternalHandler extends Handler {
     public InternalHandler() {
@@ -285,31 +336,50 @@ public abstract class Task<Params,Progress,Result> {
     }
 
     public void handleMessage(Message msg) {
-      TaskResult result = (TaskResult) msg.obj;
       switch (msg.what) {
         case MESSAGE_POST_RESULT:
-          // There is only one result.
-          result.mTask.finish(result.mData[0]);
+          ((Task) msg.obj).finishWithResult();
           break;
         case MESSAGE_POST_PROGRESS:
-          result.mTask.onProgressUpdate(result.mData);
+          final ProgressUpdate update = (ProgressUpdate) msg.obj;
+          update.mTask.onProgressUpdate(update.mValues);
+          break;
+        case MESSAGE_DRAIN_RESULTS:
+          if (Util.hasJellyBean()) {
+            FrameDrainer.postFrameCallback();
+          } else {
+            drainResults();
+          }
           break;
       }
     }
   }
 
-  private static abstract class WorkerCallable<Params,Result> implements Callable<Result> {
-    Params[] mParams;
+  /**
+   * Kept in its own class so that {@link Choreographer} is only loaded on devices that have it.
+   */
+  @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+  private static class FrameDrainer implements Choreographer.FrameCallback {
+    private static final FrameDrainer sInstance = new FrameDrainer();
+
+    static void postFrameCallback() {
+      Choreographer.getInstance().postFrameCallback(sInstance);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+      drainResults();
+    }
   }
 
   @SuppressWarnings("rawtypes")
-  private static class TaskResult<Data> {
+  private static class ProgressUpdate<Progress> {
     final Task mTask;
-    final Data[] mData;
+    final Progress[] mValues;
 
-    TaskResult(Task task, Data... data) {
+    ProgressUpdate(Task task, Progress[] values) {
       mTask = task;
-      mData = data;
+      mValues = values;
     }
   }
 }
@@ -3,6 +3,10 @@ package net.gree.asdk.core.imageloader.concurrent;
 public class TaskExecutorFactory {
 	public static final int TYPE_SERIAL = 1;
 	public static final int TYPE_PARALLEL = 2;
+	/** One worker per core for CPU-bound work, see {@link WorkStealingTaskExecutor}. */
+	public static final int TYPE_WORK_STEALING = 3;
+	/** A thread per blocking download, see {@link ElasticTaskExecutor}. */
+	public static final int TYPE_ELASTIC = 4;
 
 	public static ITaskExecutor getTaskExecutor(int type, ITaskExecutorParameters parameters) {
 		ITaskExecutor executor = null;
@@ -13,6 +17,12 @@ public class TaskExecutorFactory {
 		case TYPE_PARALLEL:
 			executor = new ParallelTaskExecutor(parameters);
 			break;
+		case TYPE_WORK_STEALING:
+			executor = new WorkStealingTaskExecutor(parameters);
+			break;
+		case TYPE_ELASTIC:
+			executor = new ElasticTaskExecutor(parameters);
+			break;
 		}
 		return executor;
 	}
@@ -0,0 +1,356 @@
+package net.gree.asdk.core.imageloader.concurrent;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.gree.asdk.core.imageloader.log.GLog;
+
+/**
+ * Runs CPU-bound work, like decoding, transforming and encoding, on one worker per core. Every
+ * worker has its own deque: it takes the work it forked itself last-in first-out, while its
+ * cache is still warm, and idle workers steal the oldest work of the others. Work can be split
+ * with {@link #invokeAll(List)}, e.g. into tiles of a large decode, and the calling worker helps
+ * running the parts instead of blocking. Work submitted from outside goes into a shared queue
+ * that workers take first-in first-out, so the oldest submissions run first.
+ * <p>
+ * Written against the platform of API 8, which has no fork/join pool.
+ */
+public class WorkStealingTaskExecutor implements ITaskExecutor {
+  private static final String TAG = WorkStealingTaskExecutor.class.getSimpleName();
+  private static final long IDLE_WAIT = 1000; // milliseconds
+
+  private final ITaskExecutorParameters mParameters;
+  private Worker[] mWorkers;
+  private final ThreadLocal<Worker> mCurrent = new ThreadLocal<Worker>();
+  /** Work submitted by threads that are not workers, oldest first. */
+  private final LinkedList<Runnable> mShared = new LinkedList<Runnable>();
+  /** Work in all deques and the shared queue, for idle workers to tell whether there is any. */
+  private final AtomicInteger mQueued = new AtomicInteger();
+  private final Object mIdleLock = new Object();
+  private int mIdleCount;
+  private volatile boolean mShutdown;
+
+  private final AtomicLong mSubmittedCount = new AtomicLong();
+  private final AtomicLong mExecutedCount = new AtomicLong();
+  private final AtomicLong mStolenCount = new AtomicLong();
+
+  private final Executor mExecutor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      submit(command);
+    }
+  };
+
+  /**
+   * @param parameters {@link ITaskExecutorParameters#corePoolSize()} overrides the number of
+   *        workers, by default one per available core; may be null
+   */
+  public WorkStealingTaskExecutor(ITaskExecutorParameters parameters) {
+    mParameters = parameters;
+  }
+
+  public <Params,Progress,Result> Task<Params,Progress,Result> execute(
+      Task<Params,Progress,Result> task, Params... params) {
+    return task.execute(mExecutor, params);
+  }
+
+  public void execute(Runnable task) {
+    submit(task);
+  }
+
+  /**
+   * Runs all {@code parts} and returns once they are done. On a worker the parts are forked onto
+   * its own deque, where other workers can steal them, and the worker runs parts itself while it
+   * waits. Elsewhere the caller blocks.
+   *
+   * @throws RuntimeException the first exception thrown by a part
+   */
+  public void invokeAll(List<? extends Runnable> parts) throws InterruptedException {
+    if (parts.isEmpty()) {
+      return;
+    }
+    final Join join = new Join(parts.size());
+    final Worker worker = mCurrent.get();
+    // in the order they are taken: last-in first-out on a worker, first-in first-out elsewhere
+    for (int i = 1; i < parts.size(); i++) {
+      submit(join.wrap(parts.get(worker != null ? parts.size() - i : i)));
+    }
+    join.wrap(parts.get(0)).run();
+    if (worker == null) {
+      join.await();
+    } else {
+      while (!join.isDone()) {
+        final Runnable work = worker.next();
+        if (work != null) {
+          worker.runWork(work);
+        } else {
+          // the rest is running on other workers
+          join.await(1);
+        }
+      }
+    }
+    join.rethrow();
+  }
+
+  /**
+   * @return the number of workers
+   */
+  public int getParallelism() {
+    return getWorkers().length;
+  }
+
+  /**
+   * Lets the workers finish the work queued so far and end; work submitted afterwards is
+   * rejected.
+   */
+  public void shutdown() {
+    mShutdown = true;
+    synchronized (mIdleLock) {
+      mIdleLock.notifyAll();
+    }
+  }
+
+  public boolean isShutdown() {
+    return mShutdown;
+  }
+
+  public Stats getStats() {
+    final Worker[] workers = getWorkers();
+    int busy = 0;
+    for (Worker worker : workers) {
+      if (worker.mBusy) {
+        busy++;
+      }
+    }
+    return new Stats(workers.length, busy, mQueued.get(), mSubmittedCount.get(),
+        mExecutedCount.get(), mStolenCount.get());
+  }
+
+  private void submit(Runnable work) {
+    if (mShutdown) {
+      throw new RejectedExecutionException(TAG + " is shut down");
+    }
+    getWorkers();
+    final Worker worker = mCurrent.get();
+    if (worker != null) {
+      worker.push(work);
+    } else {
+      synchronized (mShared) {
+        mShared.addLast(work);
+      }
+    }
+    mQueued.incrementAndGet();
+    mSubmittedCount.incrementAndGet();
+    synchronized (mIdleLock) {
+      if (mIdleCount > 0) {
+        mIdleLock.notify();
+      }
+    }
+  }
+
+  private synchronized Worker[] getWorkers() {
+    if (mWorkers == null) {
+      final int size = mParameters != null && mParameters.corePoolSize() > 0
+          ? mParameters.corePoolSize() : Runtime.getRuntime().availableProcessors();
+      mWorkers = new Worker[Math.max(1, size)];
+      for (int i = 0; i < mWorkers.length; i++) {
+        mWorkers[i] = new Worker(i);
+      }
+      for (Worker worker : mWorkers) {
+        worker.start();
+      }
+    }
+    return mWorkers;
+  }
+
+  private class Worker extends Thread {
+    private final LinkedList<Runnable> mDeque = new LinkedList<Runnable>();
+    private final Random mRandom = new Random();
+    volatile boolean mBusy;
+
+    Worker(int index) {
+      super(TAG + " #" + (index + 1));
+      setDaemon(true);
+    }
+
+    void push(Runnable work) {
+      synchronized (mDeque) {
+        mDeque.addLast(work);
+      }
+    }
+
+    private Runnable pollLast() {
+      synchronized (mDeque) {
+        return mDeque.isEmpty() ? null : mDeque.removeLast();
+      }
+    }
+
+    private Runnable pollFirst() {
+      synchronized (mDeque) {
+        return mDeque.isEmpty() ? null : mDeque.removeFirst();
+      }
+    }
+
+    /**
+     * @return the newest work of this worker, else the oldest work of another one, else the
+     *         oldest work submitted from outside
+     */
+    Runnable next() {
+      Runnable work = pollLast();
+      if (work == null) {
+        final Worker[] workers = mWorkers;
+        final int start = mRandom.nextInt(workers.length);
+        for (int i = 0; i < workers.length && work == null; i++) {
+          final Worker victim = workers[(start + i) % workers.length];
+          if (victim != this) {
+            work = victim.pollFirst();
+            if (work != null) {
+              mStolenCount.incrementAndGet();
+            }
+          }
+        }
+      }
+      if (work == null) {
+        synchronized (mShared) {
+          work = mShared.isEmpty() ? null : mShared.removeFirst();
+        }
+      }
+      if (work != null) {
+        mQueued.decrementAndGet();
+      }
+      return work;
+    }
+
+    void runWork(Runnable work) {
+      final boolean busy = mBusy;
+      mBusy = true;
+      try {
+        work.run();
+      } catch (RuntimeException e) {
+        // keeps the worker alive, tasks report their own failures
+        GLog.printStackTrace(TAG, e);
+      } finally {
+        mBusy = busy;
+        mExecutedCount.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void run() {
+      mCurrent.set(this);
+      while (true) {
+        final Runnable work = next();
+        if (work != null) {
+          runWork(work);
+          continue;
+        }
+        synchronized (mIdleLock) {
+          if (mQueued.get() > 0) {
+            continue;
+          }
+          if (mShutdown) {
+            break;
+          }
+          mIdleCount++;
+          try {
+            mIdleLock.wait(IDLE_WAIT);
+          } catch (InterruptedException e) {
+            // only shutdown() ends the workers
+          } finally {
+            mIdleCount--;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts down the parts of an {@link #invokeAll(List)} and keeps the first failure.
+   */
+  private static class Join {
+    private int mRemaining;
+    private RuntimeException mFailure;
+
+    Join(int count) {
+      mRemaining = count;
+    }
+
+    Runnable wrap(final Runnable part) {
+      return new Runnable() {
+        @Override
+        public void run() {
+          try {
+            part.run();
+          } catch (RuntimeException e) {
+            fail(e);
+          } finally {
+            countDown();
+          }
+        }
+      };
+    }
+
+    private synchronized void fail(RuntimeException e) {
+      if (mFailure == null) {
+        mFailure = e;
+      }
+    }
+
+    private synchronized void countDown() {
+      if (--mRemaining == 0) {
+        notifyAll();
+      }
+    }
+
+    synchronized boolean isDone() {
+      return mRemaining == 0;
+    }
+
+    synchronized void await() throws InterruptedException {
+      while (mRemaining > 0) {
+        wait();
+      }
+    }
+
+    synchronized void await(long millis) throws InterruptedException {
+      if (mRemaining > 0) {
+        wait(millis);
+      }
+    }
+
+    synchronized void rethrow() {
+      if (mFailure != null) {
+        throw mFailure;
+      }
+    }
+  }
+
+  /**
+   * Load and stealing counts of the executor.
+   */
+  public static class Stats {
+    public final int mParallelism;
+    /** Workers running work right now. */
+    public final int mBusy;
+    /** Work waiting in the deques. */
+    public final int mQueued;
+    public final long mSubmitted;
+    public final long mExecuted;
+    /** Work run by another worker than the one it was queued on. */
+    public final long mStolen;
+
+    Stats(int parallelism, int busy, int queued, long submitted, long executed, long stolen) {
+      mParallelism = parallelism;
+      mBusy = busy;
+      mQueued = queued;
+      mSubmitted = submitted;
+      mExecuted = executed;
+      mStolen = stolen;
+    }
+  }
+}
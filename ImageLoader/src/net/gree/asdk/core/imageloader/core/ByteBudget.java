@@ -0,0 +1,38 @@
+package net.gree.asdk.core.imageloader.core;
+
+/**
+ * Bounds the bytes of all downloads in flight. A download reserves its expected size before it
+ * reads the body and waits while the others hold the budget; a single download larger than the
+ * whole budget still runs, alone.
+ */
+class ByteBudget {
+  private final long mMaxBytes;
+  private long mInFlight;
+
+  ByteBudget(long maxBytes) {
+    mMaxBytes = maxBytes;
+  }
+
+  /**
+   * Waits until {@code bytes} fit into the budget and reserves them.
+   *
+   * @return the bytes reserved, to be passed to {@link #release(long)}
+   */
+  synchronized long acquire(long bytes) throws InterruptedException {
+    final long reserved = Math.max(1, Math.min(bytes, mMaxBytes));
+    while (mInFlight + reserved > mMaxBytes) {
+      wait();
+    }
+    mInFlight += reserved;
+    return reserved;
+  }
+
+  synchronized void release(long reserved) {
+    mInFlight -= reserved;
+    notifyAll();
+  }
+
+  synchronized long getInFlight() {
+    return mInFlight;
+  }
+}
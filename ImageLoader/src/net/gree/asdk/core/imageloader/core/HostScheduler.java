@@ -0,0 +1,207 @@
+package net.gree.asdk.core.imageloader.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Queues requests per host and dispatches them round-robin, weighted per host, without letting
+ * any host have more than its limit of requests in flight. A slow host then only holds up its own
+ * requests. A host is only tracked while it has requests queued or in flight, its policy outlives
+ * it. Not thread-safe, {@link RequestQueue} guards it with its own lock.
+ */
+public class HostScheduler {
+  private static final float LATENCY_SMOOTHING = 0.2f;
+
+  private final int mMaxPerHost;
+  /** Hosts with queued or in-flight requests. */
+  private final Map<String, Lane> mLanes = new HashMap<String, Lane>();
+  /** Lanes with queued requests, in the order they get their turn. */
+  private final LinkedList<Lane> mRotation = new LinkedList<Lane>();
+  private final Map<Request, Long> mInFlight = new HashMap<Request, Long>();
+  private final Map<String, int[]> mPolicies = new HashMap<String, int[]>();
+
+  /**
+   * @param maxPerHost number of requests to the same host that may be in flight at the same time
+   */
+  HostScheduler(int maxPerHost) {
+    mMaxPerHost = maxPerHost;
+  }
+
+  /**
+   * Overrides the limit and the share of a host.
+   *
+   * @param maxInFlight requests to {@code host} that may be in flight, 0 for the default limit
+   * @param weight requests dispatched to {@code host} in a row before the next host's turn
+   */
+  void setHostPolicy(String host, int maxInFlight, int weight) {
+    mPolicies.put(host, new int[] { maxInFlight, Math.max(1, weight) });
+    Lane lane = mLanes.get(host);
+    if (lane != null) {
+      lane.applyPolicy();
+    }
+  }
+
+  void add(Request request) {
+    final String host = getHost(request.getUrl());
+    Lane lane = mLanes.get(host);
+    if (lane == null) {
+      lane = new Lane(host);
+      mLanes.put(host, lane);
+    }
+    if (lane.mQueue.isEmpty()) {
+      mRotation.addLast(lane);
+    }
+    lane.mQueue.addLast(request);
+  }
+
+  /**
+   * @return the next request of the first host in turn that is below its limit, or null if every
+   *         host with queued requests is at its limit
+   */
+  Request poll() {
+    for (Iterator<Lane> i = mRotation.iterator(); i.hasNext();) {
+      final Lane lane = i.next();
+      if (lane.mInFlight >= lane.mMaxInFlight) {
+        continue;
+      }
+      final Request request = lane.mQueue.removeFirst();
+      lane.mInFlight++;
+      mInFlight.put(request, SystemClock.uptimeMillis());
+      lane.mCredits--;
+      if (lane.mQueue.isEmpty()) {
+        i.remove();
+        lane.mCredits = lane.mWeight;
+      } else if (lane.mCredits <= 0) {
+        i.remove();
+        mRotation.addLast(lane);
+        lane.mCredits = lane.mWeight;
+      }
+      return request;
+    }
+    return null;
+  }
+
+  /**
+   * Releases the slot of a dispatched request.
+   *
+   * @param completed true if the request ran to the end, its latency is recorded then
+   */
+  void onFinished(Request request, boolean completed) {
+    final Long dispatchTime = mInFlight.remove(request);
+    if (dispatchTime == null) {
+      return;
+    }
+    final Lane lane = mLanes.get(getHost(request.getUrl()));
+    if (lane == null) {
+      return;
+    }
+    lane.mInFlight--;
+    if (completed) {
+      lane.mCompletedCount++;
+      final long latency = SystemClock.uptimeMillis() - dispatchTime;
+      lane.mLatency = lane.mLatency < 0 ? latency
+          : (long) (LATENCY_SMOOTHING * latency + (1 - LATENCY_SMOOTHING) * lane.mLatency);
+    }
+    if (lane.mInFlight == 0 && lane.mQueue.isEmpty()) {
+      mLanes.remove(lane.mHost);
+    }
+  }
+
+  void clear() {
+    for (Iterator<Lane> i = mLanes.values().iterator(); i.hasNext();) {
+      final Lane lane = i.next();
+      lane.mQueue.clear();
+      lane.mCredits = lane.mWeight;
+      if (lane.mInFlight == 0) {
+        i.remove();
+      }
+    }
+    mRotation.clear();
+  }
+
+  /**
+   * @return one entry per host with queued or in-flight requests, the counts of a host start over
+   *         once it goes idle
+   */
+  List<HostStats> getStats() {
+    List<HostStats> stats = new ArrayList<HostStats>(mLanes.size());
+    for (Lane lane : mLanes.values()) {
+      stats.add(new HostStats(lane.mHost, lane.mQueue.size(), lane.mInFlight,
+          lane.mCompletedCount, lane.mLatency));
+    }
+    return stats;
+  }
+
+  static String getHost(String url) {
+    if (url == null) {
+      return "";
+    }
+    int start = url.indexOf("://");
+    start = start < 0 ? 0 : start + 3;
+    int end = start;
+    while (end < url.length()) {
+      final char c = url.charAt(end);
+      if (c == '/' || c == '?' || c == '#') {
+        break;
+      }
+      end++;
+    }
+    final int userInfo = url.lastIndexOf('@', end - 1);
+    if (userInfo >= start) {
+      start = userInfo + 1;
+    }
+    return url.substring(start, end).toLowerCase();
+  }
+
+  private class Lane {
+    final String mHost;
+    final LinkedList<Request> mQueue = new LinkedList<Request>();
+    int mMaxInFlight;
+    int mWeight;
+    int mCredits;
+    int mInFlight;
+    int mCompletedCount;
+    long mLatency = -1;
+
+    Lane(String host) {
+      mHost = host;
+      applyPolicy();
+      mCredits = mWeight;
+    }
+
+    void applyPolicy() {
+      final int[] policy = mPolicies.get(mHost);
+      mMaxInFlight = policy != null && policy[0] > 0 ? policy[0] : mMaxPerHost;
+      mWeight = policy != null ? policy[1] : 1;
+      mCredits = Math.min(mCredits, mWeight);
+    }
+  }
+
+  /**
+   * Queue depth and latency of one host.
+   */
+  public static class HostStats {
+    public final String mHost;
+    /** Requests waiting for a slot. */
+    public final int mQueued;
+    /** Requests dispatched and not finished yet. */
+    public final int mInFlight;
+    public final int mCompleted;
+    /** Moving average of the milliseconds from dispatch to completion, -1 if none completed. */
+    public final long mLatency;
+
+    HostStats(String host, int queued, int inFlight, int completed, long latency) {
+      mHost = host;
+      mQueued = queued;
+      mInFlight = inFlight;
+      mCompleted = completed;
+      mLatency = latency;
+    }
+  }
+}
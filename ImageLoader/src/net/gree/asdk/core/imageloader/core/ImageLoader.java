@@ -1,24 +1,46 @@
 package net.gree.asdk.core.imageloader.core;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
 import org.apache.http.HeaderIterator;
 
 import net.gree.asdk.core.imageloader.IconDownloadListener;
 import net.gree.asdk.core.imageloader.bitmap.BitmapUtil;
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
 import net.gree.asdk.core.imageloader.cache.ImageCache;
+import net.gree.asdk.core.imageloader.cache.NegativeCache;
 import net.gree.asdk.core.imageloader.concurrent.ITaskExecutor;
 import net.gree.asdk.core.imageloader.concurrent.Task;
+import net.gree.asdk.core.imageloader.download.BandwidthMeter;
+import net.gree.asdk.core.imageloader.download.CancellationSignal;
+import net.gree.asdk.core.imageloader.download.FetchConditions;
+import net.gree.asdk.core.imageloader.download.CircuitOpenException;
+import net.gree.asdk.core.imageloader.download.HttpStatusException;
 import net.gree.asdk.core.imageloader.download.ImageDownloader;
+import net.gree.asdk.core.imageloader.download.ImageResponse;
+import net.gree.asdk.core.imageloader.download.UrlVariantRewriter;
 import net.gree.asdk.core.imageloader.log.GLog;
+import net.gree.asdk.core.imageloader.metrics.LoaderMetrics;
+import net.gree.asdk.core.imageloader.metrics.RequestTracer;
 import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.Resources.NotFoundException;
+import android.os.SystemClock;
 import android.graphics.Bitmap;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
@@ -29,34 +51,301 @@ import android.widget.ImageView;
 
 public class ImageLoader {
 	private static final String TAG = ImageLoader.class.getSimpleName();
+	/** Bytes reserved in the byte budget for a body of unknown length. */
+	private static final long UNKNOWN_LENGTH_ESTIMATE = 64 * 1024;
 	
 	private Context mContext;
-	private RequestQueue mRequestQueue = new RequestQueue();
+	private RequestQueue mRequestQueue;
 	private ImageLoadingThread mImageLoadingWorkerThread;
+	private RequestQueue mDiskRequestQueue;
+	private ImageLoadingThread mDiskLoadingWorkerThread;
+	private RequestQueue mDecodeRequestQueue;
+	private ImageLoadingThread mDecodeLoadingWorkerThread;
 	private ImageCache mImageCache;
 	private final Hashtable<String, Bitmap> mLoadingImages = new Hashtable<String, Bitmap>(2);
 	private final BitmapUtil mBitmapUtil = new BitmapUtil();
 	private ITaskExecutor mTaskExecutor;
+	private ITaskExecutor mDiskTaskExecutor;
+	private ITaskExecutor mDecodeTaskExecutor;
 	private ImageDownloader mImageDownloader;
+	private Prefetcher mPrefetcher;
+	private int mPrefetchConcurrency;
+	private long mPrefetchByteBudget;
+	private long mRequestTimeout;
+	private long mResumeThreshold;
+	private final BandwidthMeter mBandwidthMeter = new BandwidthMeter();
+	private VariantSelector mVariantSelector;
+	private NegativeCache mNegativeCache;
+	private ByteBudget mByteBudget;
+	private Semaphore mDecodePermits;
+	private LoaderMetrics mMetrics;
+	private RequestTracer mTracer;
 	
 	public ImageLoader(Context context, ITaskExecutor taskExecutor) {
+		this(context, taskExecutor, null, 0);
+	}
+	
+	/**
+	 * @param taskExecutor executor for downloads, i.e. disk cache misses
+	 * @param diskTaskExecutor executor for disk cache lookups, {@code taskExecutor} if null
+	 * @param diskTaskCount number of disk lookups that may run at the same time
+	 */
+	public ImageLoader(Context context, ITaskExecutor taskExecutor,
+			ITaskExecutor diskTaskExecutor, int diskTaskCount) {
+		this(context, taskExecutor, diskTaskExecutor, diskTaskCount, 0);
+	}
+	
+	/**
+	 * @param maxDownloadsPerHost number of downloads from the same host that may run at the same
+	 *        time, 0 for no limit. With a limit, hosts take turns instead of downloads running in
+	 *        the order they were requested.
+	 */
+	public ImageLoader(Context context, ITaskExecutor taskExecutor,
+			ITaskExecutor diskTaskExecutor, int diskTaskCount, int maxDownloadsPerHost) {
+		this(context, taskExecutor, diskTaskExecutor, diskTaskCount, 0, maxDownloadsPerHost);
+	}
+	
+	/**
+	 * @param maxDownloads number of downloads that may run at the same time, 0 for the default
+	 */
+	public ImageLoader(Context context, ITaskExecutor taskExecutor,
+			ITaskExecutor diskTaskExecutor, int diskTaskCount, int maxDownloads,
+			int maxDownloadsPerHost) {
 		mContext = context;
+		mRequestQueue = new RequestQueue(maxDownloads, maxDownloadsPerHost);
 		mTaskExecutor = taskExecutor;
+		mDiskTaskExecutor = diskTaskExecutor != null ? diskTaskExecutor : taskExecutor;
+		mDiskRequestQueue = new RequestQueue(diskTaskCount);
 		mImageLoadingWorkerThread = new ImageLoadingThread(mRequestQueue);
 		mImageLoadingWorkerThread.start();	
+		mDiskLoadingWorkerThread = new ImageLoadingThread(mDiskRequestQueue);
+		mDiskLoadingWorkerThread.start();
+	}
+	
+	/**
+	 * Decodes downloaded images on {@code decodeTaskExecutor} instead of the download threads, so
+	 * that decoding never waits behind slow sockets and the downloads never wait behind decoding.
+	 * A download hands its received body to the decode stage and its thread moves on to the next
+	 * one. Set once, before the first load.
+	 * 
+	 * @param decodeTaskCount number of decodes that may run at the same time, usually one per core
+	 */
+	public void setDecodeTaskExecutor(ITaskExecutor decodeTaskExecutor, int decodeTaskCount) {
+		mDecodeTaskExecutor = decodeTaskExecutor;
+		mDecodeRequestQueue = new RequestQueue(decodeTaskCount);
+		mDecodeLoadingWorkerThread = new ImageLoadingThread(mDecodeRequestQueue);
+		mDecodeLoadingWorkerThread.start();
+		if (mMetrics != null) {
+			mDecodeRequestQueue.setMetrics(mMetrics, LoaderMetrics.QUEUE_WAIT_DECODE);
+		}
+		mDecodeRequestQueue.setTracer(mTracer);
 	}
 	
 	public void setImageCache(ImageCache imageCache) {
 		mImageCache = imageCache;
+		if (imageCache != null && mMetrics != null) {
+			imageCache.setMetrics(mMetrics);
+		}
+	}
+	
+	/**
+	 * Records cache hits, queue waits, latencies, bytes and evictions into {@code metrics}.
+	 * 
+	 * @param metrics null to record nothing, which costs nothing
+	 */
+	public void setMetrics(LoaderMetrics metrics) {
+		mMetrics = metrics;
+		mDiskRequestQueue.setMetrics(metrics, LoaderMetrics.QUEUE_WAIT_DISK);
+		mRequestQueue.setMetrics(metrics, LoaderMetrics.QUEUE_WAIT_NETWORK);
+		if (mDecodeRequestQueue != null) {
+			mDecodeRequestQueue.setMetrics(metrics, LoaderMetrics.QUEUE_WAIT_DECODE);
+		}
+		if (mImageCache != null) {
+			mImageCache.setMetrics(metrics);
+		}
+		mBandwidthMeter.setMetrics(metrics);
+	}
+	
+	public LoaderMetrics getMetrics() {
+		return mMetrics;
+	}
+	
+	/**
+	 * Records the timeline of every request into {@code tracer}, from being queued to being bound.
+	 * 
+	 * @param tracer null to stop tracing
+	 */
+	public void setTracer(RequestTracer tracer) {
+		mTracer = tracer;
+		mDiskRequestQueue.setTracer(tracer);
+		mRequestQueue.setTracer(tracer);
+		if (mDecodeRequestQueue != null) {
+			mDecodeRequestQueue.setTracer(tracer);
+		}
+		mBandwidthMeter.setTracer(tracer);
+	}
+	
+	public RequestTracer getTracer() {
+		return mTracer;
 	}
 	
 	public void setImageDownloader(ImageDownloader imageDownloader) {
 		mImageDownloader = imageDownloader;
 	}
 	
+	/**
+	 * @param negativeCache remembers urls that failed to load, null to always try again
+	 */
+	public void setNegativeCache(NegativeCache negativeCache) {
+		mNegativeCache = negativeCache;
+	}
+	
+	public NegativeCache getNegativeCache() {
+		return mNegativeCache;
+	}
+	
+	/**
+	 * @param requestTimeout milliseconds after which a request that has not been dispatched yet
+	 *        is dropped, or 0 to keep requests until they run
+	 */
+	public void setRequestTimeout(long requestTimeout) {
+		mRequestTimeout = requestTimeout;
+	}
+	
+	/**
+	 * @param resumeThreshold downloads of at least this many bytes are streamed into the disk cache
+	 *        before decoding, so that an interrupted one resumes where it stopped; 0 to disable
+	 */
+	public void setResumeThreshold(long resumeThreshold) {
+		mResumeThreshold = resumeThreshold;
+	}
+	
+	/**
+	 * Loads the CDN variant that fits the requested size instead of the given url.
+	 * 
+	 * @param rewriter maps urls to their variants, null to always load the given url
+	 * @param slowBytesPerSecond below this bandwidth smaller variants are accepted, 0 to never
+	 * @param slowSizeFactor factor applied to the requested size on a slow link
+	 */
+	public void setUrlVariantRewriter(UrlVariantRewriter rewriter, long slowBytesPerSecond,
+			float slowSizeFactor) {
+		if (rewriter == null) {
+			mVariantSelector = null;
+			return;
+		}
+		final VariantSelector selector = new VariantSelector(rewriter, mBandwidthMeter);
+		selector.setSlowBandwidth(slowBytesPerSecond, slowSizeFactor);
+		mVariantSelector = selector;
+	}
+	
+	public BandwidthMeter getBandwidthMeter() {
+		return mBandwidthMeter;
+	}
+	
+	/**
+	 * Gives {@code host} its own download limit and round-robin share, see
+	 * {@link RequestQueue#setHostPolicy}. Only applies with a per-host limit.
+	 */
+	public void setHostPolicy(String host, int maxDownloads, int weight) {
+		mRequestQueue.setHostPolicy(host, maxDownloads, weight);
+	}
+	
+	/**
+	 * @return queue depth, downloads in flight and latency per host with queued or running downloads
+	 */
+	public List<HostScheduler.HostStats> getHostStats() {
+		return mRequestQueue.getHostStats();
+	}
+	
+	/**
+	 * @return the number of requests dropped before dispatch because they expired or their
+	 *         view was rebound
+	 */
+	public int getShedCount() {
+		return mDiskRequestQueue.getShedCount() + mRequestQueue.getShedCount()
+				+ (mDecodeRequestQueue != null ? mDecodeRequestQueue.getShedCount() : 0);
+	}
+	
+	/**
+	 * Bounds downloads by the memory and CPU they take rather than by the threads that run them,
+	 * for executors that run every download on a thread of its own. Set before the first load.
+	 * 
+	 * @param maxBytesInFlight bytes all downloads may hold at the same time, 0 for no limit
+	 * @param maxConcurrentDecodes decodes that may run at the same time, 0 for no limit. With a
+	 *        limit, bodies are received in full before a decode slot is taken.
+	 */
+	public void setFetchLimits(long maxBytesInFlight, int maxConcurrentDecodes) {
+		mByteBudget = maxBytesInFlight > 0 ? new ByteBudget(maxBytesInFlight) : null;
+		mDecodePermits = maxConcurrentDecodes > 0 ? new Semaphore(maxConcurrentDecodes) : null;
+	}
+	
+	public void setPrefetchParameters(int concurrency, long byteBudget) {
+		mPrefetchConcurrency = concurrency;
+		mPrefetchByteBudget = byteBudget;
+	}
+	
+	/**
+	 * Downloads the given urls into the disk cache at low priority without decoding them.
+	 * Prefetching gives way to foreground requests, so some urls may be dropped.
+	 * 
+	 * @param urls urls of the images that are likely to be requested soon
+	 * @return a handle to cancel this group, or null if there is no disk cache to fill
+	 */
+	public synchronized Prefetcher.Group prefetch(Collection<String> urls) {
+		if (mImageCache == null || mImageDownloader == null) {
+			GLog.e(TAG, "prefetch needs an image cache and a downloader");
+			return null;
+		}
+		if (mPrefetcher == null) {
+			// prefetching also gives way to decodes that are waiting
+			final RequestQueue[] foregroundQueues = mDecodeRequestQueue != null
+					? new RequestQueue[] { mDiskRequestQueue, mRequestQueue, mDecodeRequestQueue }
+					: new RequestQueue[] { mDiskRequestQueue, mRequestQueue };
+			mPrefetcher = new Prefetcher(mImageCache, mImageDownloader, foregroundQueues,
+					mPrefetchConcurrency, mPrefetchByteBudget);
+		}
+		List<String> valid = new ArrayList<String>(urls.size());
+		for (String url : urls) {
+			if (isValidUrl(url)) {
+				valid.add(url);
+			}
+		}
+		return mPrefetcher.prefetch(valid);
+	}
+	
+	/**
+	 * Stops starting new disk and network work, e.g. while a list is flinging. Memory cache hits
+	 * are still bound immediately, and queued requests are dropped when their view is rebound.
+	 */
+	public void pause() {
+		mDiskRequestQueue.pause();
+		mRequestQueue.pause();
+		if (mDecodeRequestQueue != null) {
+			mDecodeRequestQueue.pause();
+		}
+	}
+	
+	public void resume() {
+		mDiskRequestQueue.resume();
+		mRequestQueue.resume();
+		if (mDecodeRequestQueue != null) {
+			mDecodeRequestQueue.resume();
+		}
+	}
+	
+	public boolean isPaused() {
+		return mRequestQueue.isPaused();
+	}
+	
+	public synchronized void cancelPrefetch() {
+		if (mPrefetcher != null) {
+			mPrefetcher.cancelAll();
+		}
+	}
+	
 	public void loadImage(String url, ImageView imageView, int resId,
 			int reqWidth, int reqHeight, int reqCornerRadius, int reqMargin) {
-		GLog.d(TAG, "request       : " + url);
+		GLog.d(TAG, "request       : {}", url);
 		if (!isValidUrl(url)) {
 			GLog.e(TAG, "invalid       : " + url);
 			return;
@@ -67,7 +356,7 @@ public class ImageLoader {
 	
 	public void loadImage(String url, ImageView imageView, int resId,
 			int reqWidth, int reqHeight, int reqMargin) {
-		GLog.d(TAG, "request       : " + url);
+		GLog.d(TAG, "request       : {}", url);
 		if (!isValidUrl(url)) {
 			GLog.e(TAG, "invalid       : " + url);
 			return;
@@ -78,7 +367,7 @@ public class ImageLoader {
 	
 	public void loadImage(String url, ImageView imageView, int resId,
 			int reqWidth, int reqHeight) {
-		GLog.d(TAG, "request       : " + url);
+		GLog.d(TAG, "request       : {}", url);
 		if (!isValidUrl(url)) {
 			GLog.e(TAG, "invalid       : " + url);
 			return;
@@ -96,28 +385,41 @@ public class ImageLoader {
 	   * @param listener
 	   */
 	  public void loadImage(String url, int reqWidth, int reqHeight, IconDownloadListener listener) {
-		GLog.d(TAG, "request       : " + url);
+		GLog.d(TAG, "request       : {}", url);
 		if (!isValidUrl(url)) {
 			GLog.e(TAG, "invalid       : " + url);
 			return;
 		}
+	    final VariantSelector.Selection variant = selectVariant(url, reqWidth, reqHeight);
+	    if (variant != null) {
+	      url = variant.mUrl;
+	    }
 	    Bitmap bitmap = null;
 	    if (mImageCache != null) {
 	      // tries to get the bitmap from memory first
 	      bitmap = mImageCache.getFromMemCache(url);
+	      count(bitmap != null ? LoaderMetrics.MEMORY_HIT : LoaderMetrics.MEMORY_MISS);
 	    }
 
+	    final NegativeCache.Entry failure = bitmap == null ? getFailure(url) : null;
 	    if (bitmap != null) {
 	      if (listener != null) {
 	        listener.onSuccess(bitmap);
 	      }
+	    } else if (failure != null) {
+	      if (listener != null) {
+	        listener.onFailure(getFailureCode(failure), null, "Failed recently, not retried yet");
+	      }
 	    } else {
 	      // declare a new bitmap worker task
-	      mBitmapTask = new BitmapWorkerTask(url, reqWidth, reqHeight, listener);
+	      final int stage = getInitialStage();
+	      mBitmapTask = new BitmapWorkerTask(url, reqWidth, reqHeight, listener, stage);
+	      mBitmapTask.mLargerUrls = variant != null ? variant.mLargerUrls : null;
 
-	      // download and put the bitmap on the cache
-	      Request req = new Request(url, mBitmapTask, mTaskExecutor);
-	      mRequestQueue.putRequest(req);
+	      // look the bitmap up on disk first, download and put it on the cache on a miss
+	      Request req = new Request(url, mBitmapTask, getTaskExecutor(stage), stage);
+	      mBitmapTask.mRequest = req;
+	      putRequest(req);
 	    }
 	  }
 	  
@@ -147,22 +449,39 @@ public class ImageLoader {
 
 	private void loadImage(String url, ImageView imageView,
 			Bitmap loadingBitmap, int reqWidth, int reqHeight, int reqCornerRadius, int reqMargin) {
+		final VariantSelector.Selection variant = selectVariant(url, reqWidth, reqHeight);
+		if (variant != null) {
+			url = variant.mUrl;
+		}
 		Bitmap bitmap = null;
 		if (mImageCache != null) {
 			bitmap = mImageCache.getFromMemCache(getCacheKey(url, reqCornerRadius));
+			count(bitmap != null ? LoaderMetrics.MEMORY_HIT : LoaderMetrics.MEMORY_MISS);
+		}
+
+		if (bitmap == null && getFailure(url) != null) {
+			// keeps showing the placeholder instead of queueing a load that is known to fail
+			cancelPotentialWork(url, imageView);
+			if (imageView != null) {
+				imageView.setImageBitmap(loadingBitmap);
+			}
+			return;
 		}
 
 		if (cancelPotentialWork(url, imageView) && bitmap == null) {
+			final int stage = getInitialStage();
 			final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(
-					imageView, reqWidth, reqHeight, reqCornerRadius, reqMargin);
-			Request req = new Request(url, task, mTaskExecutor);
+					imageView, reqWidth, reqHeight, reqCornerRadius, reqMargin, stage);
+			task.mLargerUrls = variant != null ? variant.mLargerUrls : null;
+			Request req = new Request(url, task, getTaskExecutor(stage), stage);
+			task.mRequest = req;
 			final AsyncDrawable asyncDrawable = new AsyncDrawable(
 					mContext.getResources(), loadingBitmap, req);
 			if (imageView != null) {
 				imageView.setImageDrawable(asyncDrawable);
 			}
 
-			mRequestQueue.putRequest(req);
+			putRequest(req);
 		} else if (bitmap != null && imageView != null) {
 			if (reqCornerRadius > 0) {
 				imageView.setImageDrawable(mBitmapUtil.getRoundedCornerDrawable(bitmap, reqCornerRadius, reqMargin));
@@ -172,6 +491,663 @@ public class ImageLoader {
 		}
 	}
 	
+	private NegativeCache.Entry getFailure(String url) {
+		final NegativeCache.Entry failure = mNegativeCache != null ? mNegativeCache.get(url) : null;
+		if (failure != null) {
+			GLog.d(TAG, "known failure : {}", url);
+		}
+		return failure;
+	}
+	
+	private int getFailureCode(NegativeCache.Entry failure) {
+		return failure != null && failure.mStatusCode > 0 ? failure.mStatusCode
+				: HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+	
+	private void recordFailure(String url, int failureClass, int statusCode) {
+		final CancellationSignal signal = CancellationSignal.current();
+		if (Thread.currentThread().isInterrupted() || (signal != null && signal.isCancelled())) {
+			return;
+		}
+		count(LoaderMetrics.FAILURE);
+		if (mNegativeCache != null) {
+			mNegativeCache.put(url, failureClass, statusCode);
+		}
+	}
+	
+	private void count(int counter) {
+		final LoaderMetrics metrics = mMetrics;
+		if (metrics != null) {
+			metrics.increment(counter);
+		}
+	}
+	
+	/**
+	 * @return the start of a latency to record with {@link #recordSince}, 0 without metrics
+	 */
+	private long startTiming() {
+		return mMetrics != null ? System.nanoTime() : 0;
+	}
+	
+	private void recordSince(int histogram, long start) {
+		final LoaderMetrics metrics = mMetrics;
+		if (metrics != null && start != 0) {
+			metrics.recordSince(histogram, start);
+		}
+	}
+	
+	/**
+	 * Binds the trace id of {@code request} to the current thread for the stages below to use.
+	 * 
+	 * @return the id to restore with {@link #unbindTrace(int)}
+	 */
+	private int bindTrace(Request request) {
+		return mTracer != null && request != null ? RequestTracer.bind(request.mTraceId) : -1;
+	}
+	
+	private static void unbindTrace(int previous) {
+		if (previous >= 0) {
+			RequestTracer.bind(previous);
+		}
+	}
+	
+	private void traceBegin(int event) {
+		final RequestTracer tracer = mTracer;
+		if (tracer != null) {
+			tracer.begin(RequestTracer.current(), event);
+		}
+	}
+	
+	private void traceEnd(int event) {
+		final RequestTracer tracer = mTracer;
+		if (tracer != null) {
+			tracer.end(RequestTracer.current(), event);
+		}
+	}
+	
+	private void traceMark(int event) {
+		final RequestTracer tracer = mTracer;
+		if (tracer != null) {
+			tracer.mark(RequestTracer.current(), event);
+		}
+	}
+	
+	private void traceBind(Request request) {
+		final RequestTracer tracer = mTracer;
+		if (tracer != null && request != null) {
+			tracer.mark(request.mTraceId, RequestTracer.BIND);
+		}
+	}
+	
+	private void recordFailure(String url, IOException e) {
+		if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+			// cancelled, not a failure of the url
+			return;
+		}
+		if (e instanceof HttpStatusException) {
+			final int code = ((HttpStatusException) e).getStatusCode();
+			final int failureClass;
+			if (code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE) {
+				failureClass = NegativeCache.FAILURE_NOT_FOUND;
+			} else if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+				failureClass = NegativeCache.FAILURE_SERVER_ERROR;
+			} else {
+				failureClass = NegativeCache.FAILURE_CLIENT_ERROR;
+			}
+			recordFailure(url, failureClass, code);
+		} else if (e instanceof CircuitOpenException) {
+			recordFailure(url, NegativeCache.FAILURE_SERVER_ERROR, 0);
+		} else {
+			recordFailure(url, NegativeCache.FAILURE_NETWORK, 0);
+		}
+	}
+	
+	private VariantSelector.Selection selectVariant(String url, int reqWidth, int reqHeight) {
+		final VariantSelector selector = mVariantSelector;
+		if (selector == null) {
+			return null;
+		}
+		final VariantSelector.Selection variant = selector.select(url, reqWidth, reqHeight);
+		if (variant != null) {
+			GLog.d(TAG, "variant       : {}", variant.mUrl);
+		}
+		return variant;
+	}
+	
+	private int getInitialStage() {
+		if (mImageCache != null && mImageCache.hasDiskCache()) {
+			return Request.STAGE_DISK;
+		}
+		return Request.STAGE_NETWORK;
+	}
+	
+	private ITaskExecutor getTaskExecutor(int stage) {
+		switch (stage) {
+		case Request.STAGE_DISK:
+			return mDiskTaskExecutor;
+		case Request.STAGE_DECODE:
+			return mDecodeTaskExecutor;
+		default:
+			return mTaskExecutor;
+		}
+	}
+	
+	private RequestQueue getRequestQueue(int stage) {
+		switch (stage) {
+		case Request.STAGE_DISK:
+			return mDiskRequestQueue;
+		case Request.STAGE_DECODE:
+			return mDecodeRequestQueue;
+		default:
+			return mRequestQueue;
+		}
+	}
+	
+	private boolean hasDecodeStage() {
+		return mDecodeTaskExecutor != null;
+	}
+	
+	private void putRequest(Request request) {
+		if (mRequestTimeout > 0) {
+			request.setDeadline(SystemClock.uptimeMillis() + mRequestTimeout);
+		}
+		getRequestQueue(request.getStage()).putRequest(request);
+	}
+	
+	private void cancelRequest(Request request) {
+		final int stage = request.cancel();
+		getRequestQueue(stage).removeRequest(request);
+	}
+	
+	/**
+	 * Hands a request that missed the disk cache over to the network stage.
+	 * 
+	 * @param stale metadata of a disk entry the download has to revalidate, may be null
+	 * @return false if the request was cancelled before it could be forwarded
+	 */
+	private boolean forwardToNetwork(Request request, Task<String, ?, ?> task, CacheMetadata stale) {
+		if (request == null || !request.forward(task, mTaskExecutor, Request.STAGE_NETWORK)) {
+			return false;
+		}
+		// a fetching executor starts the download before the task runs and asks the same
+		final ImageCache.Partial partial = getPartial(request.getUrl());
+		if (partial != null) {
+			request.setFetchConditions(new FetchConditions(stale, partial.getLength(),
+					partial.getMetadata().getRangeValidator()));
+		} else if (stale != null) {
+			request.setFetchConditions(new FetchConditions(stale, 0, null));
+		}
+		mRequestQueue.putRequest(request);
+		return true;
+	}
+	
+	/**
+	 * Hands a request whose body has been received over to the decode stage.
+	 * 
+	 * @return false if the request was cancelled before it could be forwarded
+	 */
+	private boolean forwardToDecode(Request request, Task<String, ?, ?> task) {
+		if (request == null || !request.forward(task, mDecodeTaskExecutor, Request.STAGE_DECODE)) {
+			return false;
+		}
+		// the body is here, decoding it late is cheaper than downloading it again
+		request.setDeadline(0);
+		mDecodeRequestQueue.putRequest(request);
+		return true;
+	}
+	
+	/**
+	 * @return the metadata of the disk entry if it has to be revalidated before it may be used,
+	 *         null if the entry is fresh or missing
+	 */
+	private CacheMetadata getStaleMetadata(String cacheKey) {
+		final CacheMetadata metadata = mImageCache.getMetadata(cacheKey);
+		if (metadata != null && !metadata.isFresh(System.currentTimeMillis())) {
+			GLog.d(TAG, "stale         : {}", cacheKey);
+			return metadata;
+		}
+		return null;
+	}
+	
+	/**
+	 * @return the interrupted download of {@code url} to resume, null if there is none to resume
+	 */
+	private ImageCache.Partial getPartial(String url) {
+		if (mResumeThreshold <= 0 || mImageCache == null || !mImageCache.hasDiskCache()) {
+			return null;
+		}
+		return mImageCache.getPartial(url);
+	}
+	
+	private boolean isResumable(ImageResponse response) {
+		if (mResumeThreshold <= 0 || mImageCache == null || !mImageCache.hasDiskCache()) {
+			return false;
+		}
+		return response.isPartial() || response.getContentLength() >= mResumeThreshold;
+	}
+	
+	/**
+	 * @return the metadata of the complete entry {@code response} is part of
+	 */
+	private static CacheMetadata getReceivedMetadata(ImageResponse response,
+			ImageCache.Partial partial) {
+		if (response.isPartial() && partial != null) {
+			return partial.getMetadata().revalidate(response.getMetadata());
+		}
+		return response.getMetadata();
+	}
+	
+	/**
+	 * Streams the original bytes into the disk cache under {@code url}, to be decoded from there.
+	 * If the transfer breaks, the bytes received so far stay on disk and the next attempt only asks
+	 * for the rest.
+	 * 
+	 * @return the size of the entry, -1 if it could not be written, or
+	 *         {@link ImageCache#EDIT_IN_PROGRESS} if another write of {@code url}, e.g. a prefetch,
+	 *         holds the entry and the whole body is still to be read from {@code response}
+	 */
+	private long receiveToDisk(String url, ImageResponse response, CacheMetadata metadata)
+			throws IOException {
+		final InputStream in = mBandwidthMeter.meter(response.getStream());
+		long length = -1;
+		try {
+			length = mImageCache.putResumableStreamToDisk(url, in, metadata,
+					response.isPartial() ? response.getOffset() : 0);
+		} finally {
+			if (length != ImageCache.EDIT_IN_PROGRESS || response.isPartial()) {
+				// the rest of a partial entry cannot be decoded on its own
+				in.close();
+				length = Math.max(length, -1);
+			}
+		}
+		return length;
+	}
+	
+	/**
+	 * Decodes the original bytes received to disk under {@code url}, scales them and puts the
+	 * result into the cache under {@code cacheKey}.
+	 * 
+	 * @param exact whether the bitmap has to be scaled to exactly the requested size
+	 */
+	private Bitmap decodeFromDisk(String url, String cacheKey, CacheMetadata metadata,
+			int reqWidth, int reqHeight, boolean exact) throws IOException {
+		Bitmap bitmap;
+		acquireDecode();
+		try {
+			final InputStream in;
+			try {
+				in = mImageCache.openFromDisk(url);
+			} catch (IOException e) {
+				GLog.e(TAG, e.toString());
+				return null;
+			}
+			if (in == null) {
+				// evicted since it was written, nothing is known about the url
+				return null;
+			}
+			bitmap = decode(url, in, false);
+			if (bitmap == null) {
+				return null;
+			}
+			final long start = startTiming();
+			traceBegin(RequestTracer.SCALE);
+			bitmap = exact ? mBitmapUtil.scaleBitmapExactly(bitmap, reqWidth, reqHeight)
+					: mBitmapUtil.scaleBitmap(bitmap, reqWidth, reqHeight, true);
+			traceEnd(RequestTracer.SCALE);
+			recordSince(LoaderMetrics.SCALE, start);
+		} finally {
+			releaseDecode();
+		}
+		if (cacheKey.equals(url)) {
+			// keeps the original bytes on disk, they are scaled again when loaded from there
+			mImageCache.put(cacheKey, bitmap);
+		} else {
+			mImageCache.put(cacheKey, bitmap, metadata);
+		}
+		traceMark(RequestTracer.CACHE_PUT);
+		return bitmap;
+	}
+	
+	/**
+	 * Scales the image down from a larger variant in the disk cache instead of downloading it.
+	 * A variant is looked up like {@link #loadFromDisk}: under its own cache key for
+	 * {@code cornerRadius}, then as the original bytes under its url.
+	 */
+	private Bitmap loadFromLargerVariant(List<String> largerUrls, String cacheKey, int cornerRadius,
+			int reqWidth, int reqHeight, boolean exact) {
+		if (largerUrls == null) {
+			return null;
+		}
+		for (String largerUrl : largerUrls) {
+			final String largerKey = getCacheKey(largerUrl, cornerRadius);
+			// a variant that is not on disk does not take a decode slot
+			if (!mImageCache.containsKeyInDisk(largerKey)
+					&& (largerKey.equals(largerUrl) || !mImageCache.containsKeyInDisk(largerUrl))) {
+				continue;
+			}
+			Bitmap bitmap;
+			try {
+				acquireDecode();
+			} catch (InterruptedIOException e) {
+				return null;
+			}
+			try {
+				bitmap = mImageCache.getFromDisk(largerKey);
+				if (bitmap == null && !largerKey.equals(largerUrl)) {
+					bitmap = mImageCache.getFromDisk(largerUrl);
+				}
+				if (bitmap != null) {
+					bitmap = exact ? mBitmapUtil.scaleBitmapExactly(bitmap, reqWidth, reqHeight)
+							: mBitmapUtil.scaleBitmap(bitmap, reqWidth, reqHeight, false);
+				}
+			} finally {
+				releaseDecode();
+			}
+			if (bitmap != null) {
+				GLog.d(TAG, "derived       : {} from {}", cacheKey, largerUrl);
+				mImageCache.put(cacheKey, bitmap);
+				traceMark(RequestTracer.CACHE_PUT);
+				return bitmap;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Decodes the disk entry of {@code cacheKey} and puts it into the memory cache.
+	 * 
+	 * @param exact whether the bitmap has to be scaled to exactly the requested size
+	 */
+	private Bitmap loadFromDisk(String url, String cacheKey, int reqWidth, int reqHeight, boolean exact) {
+		final long start = startTiming();
+		traceBegin(RequestTracer.DISK_LOOKUP);
+		Bitmap bitmap = mImageCache.getFromDisk(cacheKey);
+		if (bitmap == null && !cacheKey.equals(url)) {
+			// a prefetched entry is stored under the plain url with its original bytes
+			bitmap = mImageCache.getFromDisk(url);
+			if (bitmap != null) {
+				bitmap = exact ? mBitmapUtil.scaleBitmapExactly(bitmap, reqWidth, reqHeight)
+						: mBitmapUtil.scaleBitmap(bitmap, reqWidth, reqHeight, false);
+			}
+		} else if (bitmap != null) {
+			// prefetched entries are not scaled yet, already scaled ones are returned as is
+			bitmap = mBitmapUtil.scaleBitmap(bitmap, reqWidth, reqHeight, false);
+		}
+		if (bitmap != null) {
+			mImageCache.put(cacheKey, bitmap);
+			traceMark(RequestTracer.CACHE_PUT);
+		}
+		traceEnd(RequestTracer.DISK_LOOKUP);
+		recordSince(LoaderMetrics.DISK_READ, start);
+		count(bitmap != null ? LoaderMetrics.DISK_HIT : LoaderMetrics.DISK_MISS);
+		return bitmap;
+	}
+	
+	/**
+	 * Downloads, decodes and caches the image. When {@code stale} is set the request is
+	 * conditional and a 304 Not Modified answer reuses the bytes on disk.
+	 * 
+	 * @param stale metadata of a disk entry that needs revalidation, may be null
+	 * @param exact whether the bitmap has to be scaled to exactly the requested size
+	 * @param deferDecode receive the body without decoding it, for the decode stage
+	 * @return the decoded bitmap or the received body, null if the download failed
+	 */
+	private Body loadFromNetwork(Request request, String url, String cacheKey,
+			CacheMetadata stale, int reqWidth, int reqHeight, boolean exact, boolean deferDecode) {
+		final CancellationSignal signal = request != null ? request.getCancellationSignal() : null;
+		final CancellationSignal previous = CancellationSignal.bind(signal);
+		try {
+			return loadFromNetwork(url, cacheKey, stale, reqWidth, reqHeight, exact, deferDecode);
+		} finally {
+			if (signal != null) {
+				// the connection may serve another request by now
+				signal.setOnCancel(null);
+			}
+			CancellationSignal.bind(previous);
+		}
+	}
+	
+	private Body loadFromNetwork(String url, String cacheKey, CacheMetadata stale,
+			int reqWidth, int reqHeight, boolean exact, boolean deferDecode) {
+		Bitmap bitmap = null;
+		if (getFailure(url) != null) {
+			// another request for the url failed while this one was queued
+			return null;
+		}
+		try {
+			final ImageCache.Partial partial = getPartial(url);
+			final long start = startTiming();
+			traceBegin(RequestTracer.CONNECT);
+			ImageResponse response;
+			try {
+				response = partial != null
+						? mImageDownloader.getResponse(new URI(url), stale, partial.getLength(),
+								partial.getMetadata().getRangeValidator())
+						: mImageDownloader.getResponse(new URI(url), stale);
+			} finally {
+				traceEnd(RequestTracer.CONNECT);
+			}
+			recordSince(LoaderMetrics.RESPONSE, start);
+			if (response.isNotModified() && stale != null && mImageCache != null) {
+				GLog.d(TAG, "not modified  : {}", url);
+				count(LoaderMetrics.NOT_MODIFIED);
+				mImageCache.updateMetadata(cacheKey, stale.revalidate(response.getMetadata()));
+				bitmap = loadFromDisk(url, cacheKey, reqWidth, reqHeight, exact);
+				if (bitmap != null) {
+					return new Body(bitmap);
+				}
+				// the entry was evicted in the meantime
+				response = mImageDownloader.getResponse(new URI(url), null);
+			}
+			final long reserved = acquireBytes(response);
+			long held = reserved;
+			try {
+				if (!deferDecode) {
+					bitmap = loadResponse(url, cacheKey, response, partial, reqWidth, reqHeight, exact);
+				} else {
+					if (isResumable(response)) {
+						final CacheMetadata metadata = getReceivedMetadata(response, partial);
+						final long length = receiveToDisk(url, response, metadata);
+						if (length >= 0) {
+							count(LoaderMetrics.NETWORK_LOAD);
+							return new Body(url, null, metadata, 0);
+						}
+						if (length != ImageCache.EDIT_IN_PROGRESS) {
+							return null;
+						}
+						// the entry is being written by another load, this one keeps the body
+					}
+					final byte[] bytes = readFully(mBandwidthMeter.meter(response.getStream()),
+							response.getContentLength());
+					// the body keeps its share of the budget until it is decoded
+					held = 0;
+					count(LoaderMetrics.NETWORK_LOAD);
+					return new Body(url, bytes, response.getMetadata(), reserved);
+				}
+			} finally {
+				releaseBytes(held);
+			}
+		} catch (IOException e) {
+			GLog.e(TAG, e.toString());
+			// e.printStackTrace();
+			recordFailure(url, e);
+		} catch (URISyntaxException e) {
+			GLog.e(TAG, e.toString());
+			// e.printStackTrace();
+			recordFailure(url, NegativeCache.FAILURE_NOT_FOUND, 0);
+		}
+		if (bitmap == null) {
+			return null;
+		}
+		count(LoaderMetrics.NETWORK_LOAD);
+		return new Body(bitmap);
+	}
+	
+	/**
+	 * Decodes, scales and caches the image in the body of {@code response}.
+	 */
+	private Bitmap loadResponse(String url, String cacheKey, ImageResponse response,
+			ImageCache.Partial partial, int reqWidth, int reqHeight, boolean exact) throws IOException {
+		if (isResumable(response)) {
+			final CacheMetadata metadata = getReceivedMetadata(response, partial);
+			final long length = receiveToDisk(url, response, metadata);
+			if (length >= 0) {
+				return decodeFromDisk(url, cacheKey, metadata, reqWidth, reqHeight, exact);
+			}
+			if (length != ImageCache.EDIT_IN_PROGRESS) {
+				return null;
+			}
+			// the entry is being written by another load, this one decodes the body in memory
+		}
+		InputStream stream = mBandwidthMeter.meter(response.getStream());
+		if (mDecodePermits != null) {
+			// a slow body must not hold a decode slot while it arrives
+			stream = new ByteArrayInputStream(readFully(stream, response.getContentLength()));
+		}
+		return decodeStream(url, cacheKey, stream, response.getMetadata(), reqWidth, reqHeight, exact);
+	}
+	
+	/**
+	 * Decodes, scales and caches a body received by the network stage, and releases it.
+	 */
+	private Bitmap decodeBody(Body body, String cacheKey, int reqWidth, int reqHeight,
+			boolean exact) {
+		try {
+			if (body.mBytes == null) {
+				return decodeFromDisk(body.mUrl, cacheKey, body.mMetadata, reqWidth, reqHeight, exact);
+			}
+			return decodeStream(body.mUrl, cacheKey, new ByteArrayInputStream(body.mBytes),
+					body.mMetadata, reqWidth, reqHeight, exact);
+		} catch (IOException e) {
+			GLog.e(TAG, e.toString());
+			return null;
+		} finally {
+			body.release();
+		}
+	}
+	
+	private Bitmap decodeStream(String url, String cacheKey, InputStream stream,
+			CacheMetadata metadata, int reqWidth, int reqHeight, boolean exact) throws IOException {
+		Bitmap bitmap;
+		acquireDecode();
+		try {
+			bitmap = decode(url, stream, true);
+			GLog.d(TAG, "Image URI: {}", url);
+			GLog.d(TAG, bitmap == null ?  "bitmap is null" : "bitmap not null");
+			if (bitmap != null) {
+				final long start = startTiming();
+				traceBegin(RequestTracer.SCALE);
+				if (exact) {
+					bitmap = mBitmapUtil.scaleBitmapExactly(bitmap, reqWidth, reqHeight);
+				} else {
+					bitmap = mBitmapUtil.scaleBitmap(bitmap, reqWidth, reqHeight, true);
+				}
+				traceEnd(RequestTracer.SCALE);
+				recordSince(LoaderMetrics.SCALE, start);
+			}
+		} finally {
+			releaseDecode();
+		}
+		if (bitmap != null && mImageCache != null) {
+			mImageCache.put(cacheKey, bitmap, metadata);
+			traceMark(RequestTracer.CACHE_PUT);
+		}
+		return bitmap;
+	}
+	
+	/**
+	 * Decodes and closes {@code stream}. Only content that was read in full and rejected by the
+	 * decoder is recorded as undecodable. Running out of memory is not recorded, it says nothing
+	 * about the url.
+	 * 
+	 * @param recordReadFailure whether a read error is recorded as a failure of the url, as for a
+	 *        download
+	 */
+	private Bitmap decode(String url, InputStream stream, boolean recordReadFailure) {
+		final TrackingInputStream in = new TrackingInputStream(stream);
+		final Bitmap bitmap;
+		final long start = startTiming();
+		traceBegin(RequestTracer.DECODE);
+		try {
+			bitmap = mBitmapUtil.decodeInputStream(in);
+		} catch (OutOfMemoryError e) {
+			GLog.w(TAG, "out of memory : {}", url);
+			return null;
+		} finally {
+			traceEnd(RequestTracer.DECODE);
+			recordSince(LoaderMetrics.DECODE, start);
+		}
+		if (bitmap == null) {
+			// the decoder swallows read errors, only content that arrived in full is undecodable
+			if (in.mFailure == null) {
+				recordFailure(url, NegativeCache.FAILURE_UNDECODABLE, 0);
+			} else if (recordReadFailure) {
+				recordFailure(url, in.mFailure);
+			}
+		}
+		return bitmap;
+	}
+	
+	private static byte[] readFully(InputStream in, long contentLength) throws IOException {
+		try {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream(
+					contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : 8192);
+			final byte[] buffer = new byte[8192];
+			int count;
+			while ((count = in.read(buffer)) != -1) {
+				out.write(buffer, 0, count);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reserves the expected size of the body in the byte budget, waiting while other downloads
+	 * hold it.
+	 * 
+	 * @return the bytes to release once the body has been decoded
+	 */
+	private long acquireBytes(ImageResponse response) throws IOException {
+		final ByteBudget budget = mByteBudget;
+		if (budget == null || response.isNotModified()) {
+			return 0;
+		}
+		final long length = response.getContentLength();
+		try {
+			return budget.acquire(length > 0 ? length : UNKNOWN_LENGTH_ESTIMATE);
+		} catch (InterruptedException e) {
+			response.getStream().close();
+			throw new InterruptedIOException("interrupted waiting for the byte budget");
+		}
+	}
+	
+	private void releaseBytes(long reserved) {
+		final ByteBudget budget = mByteBudget;
+		if (budget != null && reserved > 0) {
+			budget.release(reserved);
+		}
+	}
+	
+	private void acquireDecode() throws InterruptedIOException {
+		final Semaphore permits = mDecodePermits;
+		if (permits != null) {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("interrupted waiting for a decode slot");
+			}
+		}
+	}
+	
+	private void releaseDecode() {
+		final Semaphore permits = mDecodePermits;
+		if (permits != null) {
+			permits.release();
+		}
+	}
+	
 	private String getCacheKey(String url, int type) {
 		String key = url;
 		if (type > 0) {
@@ -238,10 +1214,23 @@ public class ImageLoader {
 	  }
 	
 	public void clearAll() {
+	    synchronized (this) {
+	      if (mPrefetcher != null) {
+	        mPrefetcher.shutdown();
+	        mPrefetcher = null;
+	      }
+	    }
 	    if (mImageCache != null) {
 	      mImageCache.close();
 	    }
+	    mDiskRequestQueue.resume();
+	    mRequestQueue.resume();
+	    mDiskLoadingWorkerThread.requestFinish();
 	    mImageLoadingWorkerThread.requestFinish();
+	    if (mDecodeRequestQueue != null) {
+	      mDecodeRequestQueue.resume();
+	      mDecodeLoadingWorkerThread.requestFinish();
+	    }
 	  }
 	
 	private static Request getBitmapRequest(ImageView imageView) {
@@ -255,26 +1244,108 @@ public class ImageLoader {
 	    return null;
 	  }
 	
-	private boolean cancelPotentialWork(Object data, ImageView imageView) {
+	private boolean cancelPotentialWork(String data, ImageView imageView) {
 	    final Request request = getBitmapRequest(imageView);
-	    if (request != null) {
-	      final ImageViewBitmapWorkerTask bitmapWorkerTask =
-	          (ImageViewBitmapWorkerTask) request.getTask();
-
-	      if (bitmapWorkerTask != null) {
-	        final Object bitmapData = bitmapWorkerTask.data;
-	        if (bitmapData == null || !bitmapData.equals(data)) {
-	          bitmapWorkerTask.cancel(true);
-	          mRequestQueue.removeRequest(request);
-	          GLog.d(TAG, "cancelled " + String.valueOf(bitmapData));
-	        } else {
-	          return false;
-	        }
+	    // a finished task that left its request on the view has failed, so it may be retried
+	    if (request != null && !request.isCancelled()
+	        && request.getTask().getStatus() != Task.Status.FINISHED) {
+	      final String bitmapData = request.getUrl();
+	      if (bitmapData == null || !bitmapData.equals(data)) {
+	        cancelRequest(request);
+	        GLog.d(TAG, "cancelled {}", bitmapData);
+	      } else {
+	        return false;
 	      }
 	    }
 	    return true;
 	  }
 	
+	/**
+	 * The result of the network stage: either the decoded bitmap, or the body received for the
+	 * decode stage. A body in memory holds its share of the byte budget until it is released.
+	 */
+	private class Body {
+		final Bitmap mBitmap;
+		final String mUrl;
+		/** Null if the body was streamed into the disk cache under {@link #mUrl}. */
+		final byte[] mBytes;
+		final CacheMetadata mMetadata;
+		private long mReserved;
+		
+		Body(Bitmap bitmap) {
+			this(bitmap, null, null, null, 0);
+		}
+		
+		Body(String url, byte[] bytes, CacheMetadata metadata, long reserved) {
+			this(null, url, bytes, metadata, reserved);
+		}
+		
+		private Body(Bitmap bitmap, String url, byte[] bytes, CacheMetadata metadata, long reserved) {
+			mBitmap = bitmap;
+			mUrl = url;
+			mBytes = bytes;
+			mMetadata = metadata;
+			mReserved = reserved;
+		}
+		
+		boolean isDecoded() {
+			return mBitmap != null;
+		}
+		
+		/**
+		 * Gives the share of the byte budget back, once the body is decoded or dropped.
+		 */
+		void release() {
+			final long reserved;
+			synchronized (this) {
+				reserved = mReserved;
+				mReserved = 0;
+			}
+			releaseBytes(reserved);
+		}
+	}
+	
+	/**
+	 * Remembers the read error of a stream, the decoder only returns null for it.
+	 */
+	private static class TrackingInputStream extends FilterInputStream {
+	    private IOException mFailure;
+
+	    TrackingInputStream(InputStream in) {
+	      super(in);
+	    }
+
+	    @Override
+	    public int read() throws IOException {
+	      try {
+	        return in.read();
+	      } catch (IOException e) {
+	        mFailure = e;
+	        throw e;
+	      }
+	    }
+
+	    @Override
+	    public int read(byte[] buffer, int offset, int count) throws IOException {
+	      try {
+	        return in.read(buffer, offset, count);
+	      } catch (IOException e) {
+	        mFailure = e;
+	        throw e;
+	      }
+	    }
+
+	    @Override
+	    public long skip(long n) throws IOException {
+	      try {
+	        return in.skip(n);
+	      } catch (IOException e) {
+	        mFailure = e;
+	        throw e;
+	      }
+	    }
+	  }
+	
 	private static class AsyncDrawable extends BitmapDrawable {
 	    private Request mRequest;
 
@@ -288,73 +1359,122 @@ public class ImageLoader {
 	    }
 	  }
 	
-	private class ImageViewBitmapWorkerTask extends Task<String, Void, Bitmap> {
-	    private Object data;
+	private class ImageViewBitmapWorkerTask extends Task<String, Void, Bitmap>
+			implements Request.Attachable {
 	    private int mWidth;
 	    private int mHeight;
 	    private int mCornerRadius;
 	    private int mMargin;
+	    private final int mStage;
 	    private final WeakReference<ImageView> mImageViewReference;
+	    private Request mRequest;
+	    private CacheMetadata mStale;
+	    private List<String> mLargerUrls;
+	    private Body mBody;
+	    private boolean mForwarded;
 	    
-	    public ImageViewBitmapWorkerTask(ImageView imageView, int reqWidth, int reqHeight) {
-	    	this(imageView, reqWidth, reqHeight, -1, 0);
+	    public ImageViewBitmapWorkerTask(ImageView imageView, int reqWidth, int reqHeight, int stage) {
+	    	this(imageView, reqWidth, reqHeight, -1, 0, stage);
 	    }
 	    
 		public ImageViewBitmapWorkerTask(ImageView imageView, int reqWidth,
-				int reqHeight, int cornerRadius, int margin) {
+				int reqHeight, int cornerRadius, int margin, int stage) {
 			mImageViewReference = new WeakReference<ImageView>(imageView);
 			mWidth = reqWidth;
 			mHeight = reqHeight;
 			mCornerRadius = cornerRadius;
 			mMargin = margin;
+			mStage = stage;
 		}
 
 	    @Override
 	    protected Bitmap doInBackground(String... params) {
-	      data = params[0];
-	      final String dataString = String.valueOf(data);
+	      final int previousTrace = bindTrace(mRequest);
+	      try {
+	        return load(params);
+	      } finally {
+	        unbindTrace(previousTrace);
+	      }
+	    }
+
+	    private Bitmap load(String... params) {
+	      final String dataString = String.valueOf(params[0]);
 	      final String cacheKey = getCacheKey(dataString, mCornerRadius);
 	      Bitmap bitmap = null;
 
-	      if (mImageCache != null && !isCancelled() && getAttachedImageView() != null) {
-	        bitmap = mImageCache.getFromDisk(cacheKey);
+	      if (isCancelled() || getAttachedImageView() == null) {
+	        return null;
+	      }
+
+	      if (mStage == Request.STAGE_DISK) {
+	        final CacheMetadata stale = getStaleMetadata(cacheKey);
+	        if (stale == null) {
+	          bitmap = loadFromDisk(dataString, cacheKey, mWidth, mHeight, mCornerRadius > 0);
+	          if (bitmap == null) {
+	            bitmap = loadFromLargerVariant(mLargerUrls, cacheKey, mCornerRadius, mWidth, mHeight,
+	                mCornerRadius > 0);
+	          }
+	        }
 
 	        if (bitmap == null) {
-	        	try {
-					bitmap = mBitmapUtil.decodeInputStream(mImageDownloader.getStream(new URI(dataString)));
-					GLog.d(TAG, "Image URI: " + dataString);
-					GLog.d(TAG, bitmap == null ?  "bitmap is null" : "bitmap not null");
-					if (mCornerRadius > 0) {
-						bitmap = mBitmapUtil.scaleBitmapExactly(bitmap, mWidth, mHeight);
-					} else {
-						bitmap = mBitmapUtil.scaleBitmap(bitmap, mWidth, mHeight, true);
-					}
-				} catch (IOException e) {
-					GLog.e(TAG, e.toString());
-					// e.printStackTrace();
-				} catch (URISyntaxException e) {
-					GLog.e(TAG, e.toString());
-					// e.printStackTrace();
-				}
+	          final ImageView imageView = getAttachedImageView();
+	          if (imageView != null && !isCancelled()) {
+	            final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(imageView,
+	                mWidth, mHeight, mCornerRadius, mMargin, Request.STAGE_NETWORK);
+	            task.mRequest = mRequest;
+	            task.mStale = stale;
+	            mForwarded = forwardToNetwork(mRequest, task, stale);
+	          }
+	          return null;
 	        }
+	      } else if (mStage == Request.STAGE_DECODE) {
+	        bitmap = decodeBody(mBody, cacheKey, mWidth, mHeight, mCornerRadius > 0);
+	      } else {
+	        final Body body = loadFromNetwork(mRequest, dataString, cacheKey, mStale, mWidth,
+	            mHeight, mCornerRadius > 0, hasDecodeStage());
+	        if (body != null && !body.isDecoded()) {
+	          final ImageView imageView = getAttachedImageView();
+	          if (imageView != null && !isCancelled()) {
+	            final ImageViewBitmapWorkerTask task = new ImageViewBitmapWorkerTask(imageView,
+	                mWidth, mHeight, mCornerRadius, mMargin, Request.STAGE_DECODE);
+	            task.mRequest = mRequest;
+	            task.mBody = body;
+	            mForwarded = forwardToDecode(mRequest, task);
+	          }
+	          if (!mForwarded) {
+	            body.release();
+	          }
+	          return null;
+	        }
+	        bitmap = body != null ? body.mBitmap : null;
 	      }
 
+	      return bitmap;
+	    }
 
-	      if (bitmap != null && mImageCache != null) {
-	        mImageCache.put(cacheKey, bitmap);
+	    @Override
+	    protected void onCancelled() {
+	      if (mBody != null) {
+	        mBody.release();
 	      }
-
-	      return bitmap;
 	    }
 
 	    @Override
 	    protected void onPostExecute(Bitmap bitmap) {
 	      final ImageView imageView = getAttachedImageView();
+	      if (mBody != null) {
+	        // the decode did not run if the view was rebound in the meantime
+	        mBody.release();
+	      }
 	      if (isCancelled()) {
 	        bitmap = null;
 	        return;
 	      }
-	      mRequestQueue.notifyCompleteRequest();
+	      getRequestQueue(mStage).notifyCompleteRequest(mRequest);
+	      if (mForwarded) {
+	        return;
+	      }
+	      traceBind(mRequest);
 
 	      if (bitmap != null && imageView != null) {
 	    	  if (mCornerRadius > 0) {
@@ -365,14 +1485,16 @@ public class ImageLoader {
 	      }
 	    }
 
+	    @Override
+	    public boolean isAttached() {
+	      return getAttachedImageView() != null;
+	    }
+
 	    private ImageView getAttachedImageView() {
 	      final ImageView imageView = mImageViewReference.get();
 	      final Request request = getBitmapRequest(imageView);
 	      if (request != null) {
-	        final ImageViewBitmapWorkerTask bitmapWorkerTask =
-	            (ImageViewBitmapWorkerTask) request.getTask();
-
-	        if (this == bitmapWorkerTask && imageView != null) {
+	        if (this == request.getTask() && imageView != null) {
 	          return imageView;
 	        }
 	      }
@@ -380,63 +1502,119 @@ public class ImageLoader {
 	    }
 	  }
 
-	  private class BitmapWorkerTask extends Task<String,Void,Bitmap> {
+	  private class BitmapWorkerTask extends Task<String,Void,Bitmap> implements Request.Attachable {
 	    private int mWidth;
 	    private int mHeight;
 	    private String mUrl;
+	    private final int mStage;
 	    private WeakReference<IconDownloadListener> mWeakListener;
+	    private Request mRequest;
+	    private CacheMetadata mStale;
+	    private List<String> mLargerUrls;
+	    private Body mBody;
+	    private boolean mForwarded;
 
-	    public BitmapWorkerTask(String url, int reqWidth, int reqHeight, IconDownloadListener listener) {
+	    public BitmapWorkerTask(String url, int reqWidth, int reqHeight, IconDownloadListener listener,
+	        int stage) {
 	      mUrl = url;
 	      mWidth = reqWidth;
 	      mHeight = reqHeight;
+	      mStage = stage;
 	      mWeakListener = new WeakReference<IconDownloadListener>(listener);
 	    }
 
 	    @Override
 	    protected Bitmap doInBackground(String... params) {
-	      Bitmap bitmap = null;
-
-	      if (mImageCache != null && !isCancelled()) {
-	        bitmap = mImageCache.getFromDisk(mUrl);
+	      final int previousTrace = bindTrace(mRequest);
+	      try {
+	        return load();
+	      } finally {
+	        unbindTrace(previousTrace);
 	      }
+	    }
 
-	      if (bitmap == null) {
-	    	  try {
-				bitmap = mBitmapUtil.decodeInputStream(mImageDownloader.getStream(new URI(mUrl)));
-				bitmap = mBitmapUtil.scaleBitmap(bitmap, mWidth, mHeight, true);
-			} catch (IOException e) {
-				GLog.e(TAG, e.toString());
-				// e.printStackTrace();
-			} catch (URISyntaxException e) {
-				GLog.e(TAG, e.toString());
-				// e.printStackTrace();
-			}
-	      }
+	    private Bitmap load() {
+	      Bitmap bitmap = null;
 
-	      if (bitmap != null && mImageCache != null) {
-	        mImageCache.put(mUrl, bitmap);
+	      if (mStage == Request.STAGE_DISK) {
+	        CacheMetadata stale = null;
+	        if (!isCancelled()) {
+	          stale = getStaleMetadata(mUrl);
+	          if (stale == null) {
+	            bitmap = loadFromDisk(mUrl, mUrl, mWidth, mHeight, false);
+	            if (bitmap == null) {
+	              bitmap = loadFromLargerVariant(mLargerUrls, mUrl, 0, mWidth, mHeight, false);
+	            }
+	          }
+	        }
+	        if (bitmap == null) {
+	          final IconDownloadListener listener = getAttachedListener();
+	          if (listener != null && !isCancelled()) {
+	            final BitmapWorkerTask task = new BitmapWorkerTask(mUrl, mWidth, mHeight, listener,
+	                Request.STAGE_NETWORK);
+	            task.mRequest = mRequest;
+	            task.mStale = stale;
+	            mForwarded = forwardToNetwork(mRequest, task, stale);
+	          }
+	          return null;
+	        }
+	      } else if (mStage == Request.STAGE_DECODE) {
+	        bitmap = decodeBody(mBody, mUrl, mWidth, mHeight, false);
+	      } else {
+	        final Body body = loadFromNetwork(mRequest, mUrl, mUrl, mStale, mWidth, mHeight, false,
+	            hasDecodeStage());
+	        if (body != null && !body.isDecoded()) {
+	          final IconDownloadListener listener = getAttachedListener();
+	          if (listener != null && !isCancelled()) {
+	            final BitmapWorkerTask task = new BitmapWorkerTask(mUrl, mWidth, mHeight, listener,
+	                Request.STAGE_DECODE);
+	            task.mRequest = mRequest;
+	            task.mBody = body;
+	            mForwarded = forwardToDecode(mRequest, task);
+	          }
+	          if (!mForwarded) {
+	            body.release();
+	          }
+	          return null;
+	        }
+	        bitmap = body != null ? body.mBitmap : null;
 	      }
 	      return bitmap;
 	    }
 
+	    @Override
+	    protected void onCancelled() {
+	      if (mBody != null) {
+	        mBody.release();
+	      }
+	    }
+
 	    @Override
 	    protected void onPostExecute(Bitmap bitmap) {
 	      if (isCancelled()) {
 	        return;
 	      }
-	      mRequestQueue.notifyCompleteRequest();
+	      getRequestQueue(mStage).notifyCompleteRequest(mRequest);
+	      if (mForwarded) {
+	        return;
+	      }
+	      traceBind(mRequest);
 	      IconDownloadListener listener = getAttachedListener();
 	      // we need to issue a failure to the listener, so we call one here if there are no bitmaps to return
 	      if(bitmap == null && listener != null){
-	    	  
-	    	  listener.onFailure(HttpURLConnection.HTTP_INTERNAL_ERROR, null, "Failure on retreival of the Bitmap");
+	    	  final NegativeCache.Entry failure = mNegativeCache != null ? mNegativeCache.peek(mUrl) : null;
+	    	  listener.onFailure(getFailureCode(failure), null, "Failure on retreival of the Bitmap");
 	      }
 	      else if (listener != null) {
 	    	  listener.onSuccess(bitmap);
 	      }
 	    }
 	    
+	    @Override
+	    public boolean isAttached() {
+	      return getAttachedListener() != null;
+	    }
+
 	    private IconDownloadListener getAttachedListener() {
 	    	if (mWeakListener != null) {
 	    		return mWeakListener.get();
@@ -19,6 +19,8 @@
  */
 package net.gree.asdk.core.imageloader.core;
 
+import java.util.concurrent.RejectedExecutionException;
+
 import net.gree.asdk.core.imageloader.log.GLog;
 
 public class ImageLoadingThread extends Thread {
@@ -35,7 +37,16 @@ public class ImageLoadingThread extends Thread {
       while (!mFinishRequested) {
         Request req = mRequestQueue.getRequest();
         if (req != null) {
-          req.execute();
+          try {
+            req.execute();
+          } catch (RejectedExecutionException e) {
+            // the executor did not take the task, the request completes as cancelled
+            GLog.w(TAG, "rejected      : {}", req.getUrl());
+            if (!req.isCancelled()) {
+              req.cancel();
+              mRequestQueue.removeRequest(req);
+            }
+          }
         }
       }
     } catch (InterruptedException e) {
@@ -0,0 +1,285 @@
+package net.gree.asdk.core.imageloader.core;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+import net.gree.asdk.core.imageloader.cache.ImageCache;
+import net.gree.asdk.core.imageloader.download.ImageDownloader;
+import net.gree.asdk.core.imageloader.download.ImageResponse;
+import net.gree.asdk.core.imageloader.log.GLog;
+
+import android.os.Process;
+
+/**
+ * Downloads images straight into the disk cache without decoding them, so that a later load only
+ * costs a local decode. Prefetching runs at the lowest thread priority on its own small pool, stops
+ * once the byte budget of its group is spent, and backs off whenever foreground requests are
+ * waiting in one of the loader's {@link RequestQueue}s.
+ */
+public class Prefetcher {
+  private static final String TAG = Prefetcher.class.getSimpleName();
+  private static final int DEFAULT_CONCURRENCY = 1;
+  private static final long DEFAULT_BYTE_BUDGET = 4 * 1024 * 1024;
+  private static final int DEFAULT_KEEP_ALIVE = 1000;
+
+  private final ImageCache mImageCache;
+  private final ImageDownloader mImageDownloader;
+  private final RequestQueue[] mForegroundQueues;
+  private final long mByteBudget;
+  private final ThreadPoolExecutor mExecutor;
+  private final List<Group> mGroups = new ArrayList<Group>();
+
+  private final AtomicInteger mPrefetchedCount = new AtomicInteger();
+  private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+  public Prefetcher(ImageCache imageCache, ImageDownloader imageDownloader,
+      RequestQueue[] foregroundQueues, int concurrency, long byteBudget) {
+    mImageCache = imageCache;
+    mImageDownloader = imageDownloader;
+    mForegroundQueues = foregroundQueues;
+    mByteBudget = byteBudget > 0 ? byteBudget : DEFAULT_BYTE_BUDGET;
+    int poolSize = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+    mExecutor = new ThreadPoolExecutor(poolSize, poolSize, DEFAULT_KEEP_ALIVE,
+        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger mCount = new AtomicInteger(1);
+
+          public Thread newThread(Runnable r) {
+            return new Thread(r, TAG + " #" + mCount.getAndIncrement());
+          }
+        });
+  }
+
+  /**
+   * Queues the given urls for download into the disk cache.
+   *
+   * @param urls urls to warm, in the order they should be fetched
+   * @return a handle that cancels the whole group at once
+   */
+  public Group prefetch(Collection<String> urls) {
+    final Group group = new Group(this, mByteBudget);
+    if (urls == null || urls.isEmpty()) {
+      return group;
+    }
+    synchronized (mGroups) {
+      mGroups.add(group);
+    }
+    group.mPending.set(urls.size());
+    for (String url : urls) {
+      mExecutor.execute(new PrefetchRunnable(url, group));
+    }
+    return group;
+  }
+
+  /**
+   * Cancels every group that is still pending or running.
+   */
+  public void cancelAll() {
+    final Group[] groups;
+    synchronized (mGroups) {
+      groups = mGroups.toArray(new Group[mGroups.size()]);
+    }
+    for (Group group : groups) {
+      group.cancel();
+    }
+  }
+
+  public void shutdown() {
+    cancelAll();
+    mExecutor.shutdownNow();
+  }
+
+  public int getPrefetchedCount() {
+    return mPrefetchedCount.get();
+  }
+
+  public int getDroppedCount() {
+    return mDroppedCount.get();
+  }
+
+  private boolean isForegroundWaiting() {
+    if (mForegroundQueues != null) {
+      for (RequestQueue queue : mForegroundQueues) {
+        if (queue.getPendingCount() > 0) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void onItemFinished(Group group) {
+    if (group.mPending.decrementAndGet() <= 0) {
+      synchronized (mGroups) {
+        mGroups.remove(group);
+      }
+    }
+  }
+
+  private void fetch(String url, Group group) {
+    if (group.isCancelled() || group.isBudgetSpent() || isForegroundWaiting()) {
+      mDroppedCount.incrementAndGet();
+      GLog.d(TAG, "drop          : {}", url);
+      return;
+    }
+    if (mImageCache.getFromMemCache(url) != null || mImageCache.containsKeyInDisk(url)) {
+      return;
+    }
+    InputStream in = null;
+    try {
+      ImageCache.Partial partial = mImageCache.getPartial(url);
+      ImageResponse response = partial != null
+          ? mImageDownloader.getResponse(new URI(url), null, partial.getLength(),
+              partial.getMetadata().getRangeValidator())
+          : mImageDownloader.getResponse(new URI(url), null);
+      in = response.getStream();
+      if (in == null) {
+        return;
+      }
+      CacheMetadata metadata = response.getMetadata();
+      if (response.isPartial() && partial != null) {
+        metadata = partial.getMetadata().revalidate(metadata);
+      }
+      // an aborted prefetch keeps its bytes, the next attempt resumes from there
+      long written = mImageCache.putResumableStreamToDisk(url, new GuardedInputStream(in, group),
+          metadata, response.isPartial() ? response.getOffset() : 0);
+      if (written >= 0) {
+        mPrefetchedCount.incrementAndGet();
+        if (GLog.isLoggable(GLog.DEBUG)) {
+          GLog.d(TAG, "prefetched    : " + url + " " + written + " bytes");
+        }
+      } else {
+        mDroppedCount.incrementAndGet();
+      }
+    } catch (IOException e) {
+      GLog.e(TAG, e.toString());
+    } catch (URISyntaxException e) {
+      GLog.e(TAG, e.toString());
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore
+        }
+      }
+    }
+  }
+
+  private class PrefetchRunnable implements Runnable {
+    private final String mUrl;
+    private final Group mGroup;
+
+    PrefetchRunnable(String url, Group group) {
+      mUrl = url;
+      mGroup = group;
+    }
+
+    public void run() {
+      Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+      try {
+        fetch(mUrl, mGroup);
+      } finally {
+        onItemFinished(mGroup);
+      }
+    }
+  }
+
+  /**
+   * Aborts the copy into the disk cache as soon as the group is cancelled, its budget is spent or
+   * foreground work shows up, so that the partial entry is discarded.
+   */
+  private class GuardedInputStream extends FilterInputStream {
+    private final Group mGroup;
+
+    GuardedInputStream(InputStream in, Group group) {
+      super(in);
+      mGroup = group;
+    }
+
+    @Override
+    public int read() throws IOException {
+      checkState();
+      int b = super.read();
+      if (b != -1) {
+        mGroup.mBytes.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+      checkState();
+      int read = super.read(buffer, offset, count);
+      if (read > 0) {
+        mGroup.mBytes.addAndGet(read);
+      }
+      return read;
+    }
+
+    private void checkState() throws IOException {
+      if (mGroup.isCancelled()) {
+        throw new InterruptedIOException("prefetch cancelled");
+      }
+      if (mGroup.isBudgetSpent()) {
+        throw new InterruptedIOException("prefetch byte budget spent");
+      }
+      if (isForegroundWaiting()) {
+        throw new InterruptedIOException("foreground requests waiting");
+      }
+    }
+  }
+
+  /**
+   * A set of urls passed to a single {@link Prefetcher#prefetch} call.
+   */
+  public static class Group {
+    private final Prefetcher mPrefetcher;
+    private final long mByteBudget;
+    private final AtomicBoolean mCancelled = new AtomicBoolean();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicInteger mPending = new AtomicInteger();
+
+    private Group(Prefetcher prefetcher, long byteBudget) {
+      mPrefetcher = prefetcher;
+      mByteBudget = byteBudget;
+    }
+
+    /**
+     * Drops every url of this group that has not been fetched yet and aborts the ones in flight.
+     */
+    public void cancel() {
+      if (!mCancelled.getAndSet(true)) {
+        synchronized (mPrefetcher.mGroups) {
+          mPrefetcher.mGroups.remove(this);
+        }
+      }
+    }
+
+    public boolean isCancelled() {
+      return mCancelled.get();
+    }
+
+    public long getBytesDownloaded() {
+      return mBytes.get();
+    }
+
+    private boolean isBudgetSpent() {
+      return mBytes.get() >= mByteBudget;
+    }
+  }
+}
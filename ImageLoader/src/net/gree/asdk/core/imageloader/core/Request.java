@@ -2,31 +2,179 @@ package net.gree.asdk.core.imageloader.core;
 
 import android.annotation.TargetApi;
 import android.os.Build;
+import android.os.SystemClock;
 import net.gree.asdk.core.imageloader.concurrent.ITaskExecutor;
 import net.gree.asdk.core.imageloader.concurrent.Task;
+import net.gree.asdk.core.imageloader.download.CancellationSignal;
+import net.gree.asdk.core.imageloader.download.FetchConditions;
 
 public class Request {
+	/** The request looks the image up in the disk cache. */
+	public static final int STAGE_DISK = 1;
+	/** The request downloads the image, it only gets here on a disk cache miss. */
+	public static final int STAGE_NETWORK = 2;
+	/** The request decodes the body the network stage received, on a pool sized to the cores. */
+	public static final int STAGE_DECODE = 3;
+
 	private Task<String, ?, ?> mTask;
 	private String mUrl;
+	/** The parameters of every stage's task, allocated once instead of per stage. */
+	private final String[] mParams;
 	private ITaskExecutor mTaskExecutor;
+	private int mStage;
+	private boolean mCancelled;
+	/** State in the queue of the current stage, maintained by {@link RequestQueue}. */
+	volatile int mQueueState;
+	/** {@link System#nanoTime()} the request was put into its queue, only kept with metrics. */
+	long mEnqueuedAt;
+	/** Identifies the request in the trace over all its stages, 0 when tracing is off. */
+	int mTraceId;
+	private long mDeadline;
+	/**
+	 * Created when the request reaches the network stage, most requests end in the disk cache.
+	 */
+	private CancellationSignal mCancellationSignal;
+	/** What the download of the network stage revalidates or resumes, null for a plain one. */
+	private volatile FetchConditions mFetchConditions;
+
+	/**
+	 * Implemented by tasks that can tell whether anybody still waits for their result, e.g.
+	 * whether their view has not been rebound to another request in the meantime.
+	 */
+	public interface Attachable {
+		boolean isAttached();
+	}
 
 	public Request(String url, Task<String, ?, ?> task,
 			ITaskExecutor taskExecutor) {
+		this(url, task, taskExecutor, STAGE_NETWORK);
+	}
+
+	public Request(String url, Task<String, ?, ?> task,
+			ITaskExecutor taskExecutor, int stage) {
 		mUrl = url;
+		mParams = new String[] { url };
 		mTask = task;
 		mTaskExecutor = taskExecutor;
+		mStage = stage;
 	}
 
 	public String getUrl() {
 		return mUrl;
 	}
 
-	public Task<String, ?, ?> getTask() {
+	public synchronized Task<String, ?, ?> getTask() {
 		return mTask;
 	}
 
+	public synchronized int getStage() {
+		return mStage;
+	}
+
+	/**
+	 * Moves this request on to the next stage, which runs {@code task} on {@code taskExecutor}.
+	 * 
+	 * @return false if the request has been cancelled in the meantime
+	 */
+	public synchronized boolean forward(Task<String, ?, ?> task,
+			ITaskExecutor taskExecutor, int stage) {
+		if (mCancelled) {
+			return false;
+		}
+		mTask = task;
+		mTaskExecutor = taskExecutor;
+		mStage = stage;
+		return true;
+	}
+
+	/**
+	 * Cancels the task of the current stage and prevents any further forwarding.
+	 * 
+	 * @return the stage the request was cancelled in
+	 */
+	public int cancel() {
+		final int stage;
+		final CancellationSignal signal;
+		synchronized (this) {
+			mCancelled = true;
+			mTask.cancel(true);
+			stage = mStage;
+			signal = mCancellationSignal;
+		}
+		// outside the lock, aborting closes sockets
+		if (signal != null) {
+			signal.cancel();
+		}
+		return stage;
+	}
+
+	/**
+	 * @return the signal that aborts the download of this request when it is cancelled
+	 */
+	public synchronized CancellationSignal getCancellationSignal() {
+		if (mCancellationSignal == null) {
+			mCancellationSignal = new CancellationSignal();
+			if (mCancelled) {
+				mCancellationSignal.cancel();
+			}
+		}
+		return mCancellationSignal;
+	}
+
+	public void setFetchConditions(FetchConditions conditions) {
+		mFetchConditions = conditions;
+	}
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * @param deadline time in {@link SystemClock#uptimeMillis()} after which the request is not
+	 *        worth dispatching any more, or 0 for no deadline
+	 */
+	public void setDeadline(long deadline) {
+		mDeadline = deadline;
+	}
+
+	public long getDeadline() {
+		return mDeadline;
+	}
+
+	/**
+	 * @return true if the request has expired or the task of its current stage is no longer
+	 *         attached to anything that could use the result
+	 */
+	public boolean isStale() {
+		if (mDeadline > 0 && SystemClock.uptimeMillis() > mDeadline) {
+			return true;
+		}
+		final Task<String, ?, ?> task = getTask();
+		return task instanceof Attachable && !((Attachable) task).isAttached();
+	}
+
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
 	public void execute() throws InterruptedException {
-		mTaskExecutor.execute(mTask, mUrl);
+		final Task<String, ?, ?> task;
+		final ITaskExecutor taskExecutor;
+		final int stage;
+		synchronized (this) {
+			task = mTask;
+			taskExecutor = mTaskExecutor;
+			stage = mStage;
+		}
+		if (stage != STAGE_NETWORK) {
+			taskExecutor.execute(task, mParams);
+			return;
+		}
+		// a fetching executor may start the download right here
+		final CancellationSignal previous = CancellationSignal.bind(getCancellationSignal());
+		final FetchConditions previousConditions = FetchConditions.bind(mFetchConditions);
+		try {
+			taskExecutor.execute(task, mParams);
+		} finally {
+			FetchConditions.bind(previousConditions);
+			CancellationSignal.bind(previous);
+		}
 	}
 }
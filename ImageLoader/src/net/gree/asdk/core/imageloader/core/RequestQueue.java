@@ -19,80 +19,338 @@
  */
 package net.gree.asdk.core.imageloader.core;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 import net.gree.asdk.core.imageloader.log.GLog;
+import net.gree.asdk.core.imageloader.metrics.LoaderMetrics;
+import net.gree.asdk.core.imageloader.metrics.RequestTracer;
 
+/**
+ * Queues requests for a single dispatching thread. Requests are put from any thread, mostly the
+ * main thread, without taking a lock: they go into a lock-free queue, the counts are atomic and
+ * the dispatcher is woken with {@link LockSupport#unpark}. A removed request is only marked dead
+ * and skipped when the dispatcher gets to it. With a per-host limit the dispatcher moves put
+ * requests into its {@link HostScheduler}, which only it and completions touch, under the lock.
+ */
 public class RequestQueue {
   private static final String TAG = RequestQueue.class.getSimpleName();
   private static final int MAXIMUM_TASK_COUNT = 5;
 
-  private final BlockingQueue<Request> mQueue = new LinkedBlockingQueue<Request>();
-  private volatile int mRequestCount = 0;
-  
+  /** States of a request in the queue of its current stage. */
+  private static final int STATE_QUEUED = 1;
+  private static final int STATE_DISPATCHED = 2;
+  private static final int STATE_DEAD = 3;
+  private static final AtomicIntegerFieldUpdater<Request> sState =
+      AtomicIntegerFieldUpdater.newUpdater(Request.class, "mQueueState");
+
+  /** Requests put and not dispatched yet, including dead ones. Only the dispatcher polls it. */
+  private final ConcurrentLinkedQueue<Request> mQueue = new ConcurrentLinkedQueue<Request>();
+  private final int mMaximumTaskCount;
+  /** Requests put and not yet completed, removed or shed. */
+  private final AtomicInteger mRequestCount = new AtomicInteger();
+  /** Of those, the ones that are not dispatched yet. */
+  private final AtomicInteger mQueuedCount = new AtomicInteger();
+  private volatile int mShedCount = 0;
+  private volatile boolean mPaused = false;
+  private volatile Thread mDispatcher;
+  /** Set while the dispatcher is about to park, so that only then wakers pay for an unpark. */
+  private volatile boolean mParked;
+  private volatile LoaderMetrics mMetrics;
+  private int mWaitHistogram;
+  private volatile RequestTracer mTracer;
+  /** Queues requests per host after {@link #mQueue} when there is a per-host limit. */
+  private final HostScheduler mHostScheduler;
+
+  public RequestQueue() {
+    this(MAXIMUM_TASK_COUNT);
+  }
+
+  /**
+   * @param maximumTaskCount number of dispatched requests that may run at the same time
+   */
+  public RequestQueue(int maximumTaskCount) {
+    this(maximumTaskCount, 0);
+  }
+
+  /**
+   * @param maximumTaskCount number of dispatched requests that may run at the same time
+   * @param maximumTaskCountPerHost number of those that may go to the same host, 0 for no limit.
+   *        With a limit requests are dispatched round-robin across hosts instead of in order.
+   */
+  public RequestQueue(int maximumTaskCount, int maximumTaskCountPerHost) {
+    mMaximumTaskCount = maximumTaskCount > 0 ? maximumTaskCount : MAXIMUM_TASK_COUNT;
+    mHostScheduler = maximumTaskCountPerHost > 0 ? new HostScheduler(maximumTaskCountPerHost) : null;
+  }
+
+  /**
+   * Waits until a request may be dispatched. Only one thread may call this.
+   *
+   * @return the request to run, or null if the thread was interrupted
+   */
   public Request getRequest() {
-    Request req = null;
-    final int runCount;
-    synchronized (this) {
-      runCount = mRequestCount -  mQueue.size();
-    }
-    if (runCount > MAXIMUM_TASK_COUNT) {
-      synchronized (this) {
-        try {
-          GLog.d(TAG, "get wait");
-          this.wait();
-        } catch (InterruptedException e) {
-          GLog.printStackTrace(TAG, e);
+    mDispatcher = Thread.currentThread();
+    boolean parking = false;
+    while (true) {
+      if (!mPaused && mRequestCount.get() - mQueuedCount.get() <= mMaximumTaskCount) {
+        final Request req = mHostScheduler != null ? pollScheduled() : poll();
+        if (req != null) {
+          mParked = false;
+          GLog.d(TAG, "get request.getUrl : {}", req.getUrl());
+          final LoaderMetrics metrics = mMetrics;
+          if (metrics != null && req.mEnqueuedAt != 0) {
+            metrics.recordSince(mWaitHistogram, req.mEnqueuedAt);
+          }
+          final RequestTracer tracer = mTracer;
+          if (tracer != null) {
+            tracer.mark(req.mTraceId, RequestTracer.DISPATCH);
+          }
+          return req;
         }
       }
-    } else {
-      try {
-        req = mQueue.take();
-      } catch (InterruptedException e) {
-        GLog.printStackTrace(TAG, e);
+      if (!parking) {
+        // announce the park and look once more, a change made before wakers saw the flag is
+        // seen now, any later one unparks this thread
+        mParked = true;
+        parking = true;
+        continue;
+      }
+      LockSupport.park(this);
+      mParked = false;
+      parking = false;
+      if (Thread.interrupted()) {
+        GLog.d(TAG, "dispatcher interrupted");
         return null;
       }
-      GLog.d(TAG, "get request.getUrl : " + req.getUrl());
     }
-    return req;
-  }
-  
-  public synchronized void putRequest(Request request) {
-    try {
-      GLog.d(TAG, "put request.getUrl : " + request.getUrl());
-      mQueue.put(request);
-      mRequestCount += 1;
-    } catch (InterruptedException e) {
-      GLog.printStackTrace(TAG, e);
+  }
+
+  private Request poll() {
+    Request req;
+    while ((req = mQueue.poll()) != null) {
+      if (sState.compareAndSet(req, STATE_QUEUED, STATE_DISPATCHED) && dispatch(req)) {
+        return req;
+      }
     }
+    return null;
   }
-  
-  public synchronized void removeRequest(Request request) {
+
+  private Request pollScheduled() {
+    Request req;
+    synchronized (this) {
+      while ((req = mQueue.poll()) != null) {
+        if (sState.get(req) == STATE_QUEUED) {
+          mHostScheduler.add(req);
+        }
+      }
+      while ((req = mHostScheduler.poll()) != null) {
+        if (sState.compareAndSet(req, STATE_QUEUED, STATE_DISPATCHED)) {
+          break;
+        }
+        // removed while queued, gives the slot it was just given back
+        mHostScheduler.onFinished(req, false);
+      }
+    }
+    return req != null && dispatch(req) ? req : null;
+  }
+
+  /**
+   * Takes a request that has just been marked dispatched out of the queued count.
+   *
+   * @return false if the request was cancelled or shed instead
+   */
+  private boolean dispatch(Request req) {
+    mQueuedCount.decrementAndGet();
+    if (req.getTask().isCancelled()) {
+      return false;
+    }
+    if (req.isStale()) {
+      shed(req);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Records the time requests wait in this queue into {@code waitHistogram} of {@code metrics}.
+   *
+   * @param metrics null to stop recording
+   */
+  public void setMetrics(LoaderMetrics metrics, int waitHistogram) {
+    mWaitHistogram = waitHistogram;
+    mMetrics = metrics;
+  }
+
+  /**
+   * Records when requests enter and leave this queue into {@code tracer}, null to stop.
+   */
+  public void setTracer(RequestTracer tracer) {
+    mTracer = tracer;
+  }
+
+  /**
+   * Sets the limit and the round-robin share of a single host, e.g. to give a fast CDN more
+   * slots than third-party hosts. Only applies to queues created with a per-host limit.
+   *
+   * @param maximumTaskCount requests to {@code host} that may be in flight, 0 for the default
+   * @param weight requests dispatched to {@code host} in a row when it is its turn
+   */
+  public void setHostPolicy(String host, int maximumTaskCount, int weight) {
+    if (mHostScheduler != null) {
+      synchronized (this) {
+        mHostScheduler.setHostPolicy(host.toLowerCase(), maximumTaskCount, weight);
+      }
+      wakeDispatcher();
+    }
+  }
+
+  /**
+   * @return queue depth, requests in flight and latency per busy host, empty without a per-host
+   *         limit
+   */
+  public synchronized List<HostScheduler.HostStats> getHostStats() {
+    if (mHostScheduler == null) {
+      return Collections.emptyList();
+    }
+    return mHostScheduler.getStats();
+  }
+
+  /**
+   * Holds back dispatching of queued requests until {@link #resume()} is called. Requests can
+   * still be put and removed while paused.
+   */
+  public void pause() {
+    mPaused = true;
+  }
+
+  public void resume() {
+    mPaused = false;
+    wakeDispatcher();
+  }
+
+  public boolean isPaused() {
+    return mPaused;
+  }
+
+  /**
+   * Queues {@code request}, never blocks.
+   */
+  public void putRequest(Request request) {
+    GLog.d(TAG, "put request.getUrl : {}", request.getUrl());
+    request.mEnqueuedAt = mMetrics != null ? System.nanoTime() : 0;
+    final RequestTracer tracer = mTracer;
+    if (tracer != null) {
+      if (request.mTraceId == 0) {
+        request.mTraceId = tracer.newId();
+      }
+      tracer.enqueue(request.mTraceId, request.getUrl(), request.getStage());
+    }
+    sState.set(request, STATE_QUEUED);
+    // counted before it can be polled, so that the counts never go below zero
+    mRequestCount.incrementAndGet();
+    mQueuedCount.incrementAndGet();
+    mQueue.offer(request);
+    wakeDispatcher();
+  }
+
+  /**
+   * Removes a queued request by marking it dead, or frees the slot of a dispatched one.
+   */
+  public void removeRequest(Request request) {
     if (request == null) {
       return;
     }
-    mQueue.remove(request);
-    mRequestCount -= 1;
-    if (mRequestCount < 0) {
-      mRequestCount = 0;
+    if (sState.compareAndSet(request, STATE_QUEUED, STATE_DEAD)) {
+      mQueuedCount.decrementAndGet();
+    } else if (mHostScheduler != null) {
+      synchronized (this) {
+        mHostScheduler.onFinished(request, false);
+      }
     }
-    notifyAll();
+    decrement(mRequestCount);
+    wakeDispatcher();
   }
-  public synchronized void notifyCompleteRequest() {
-    mRequestCount -= 1;
-    if (mRequestCount < 0) {
-      mRequestCount = 0;
+
+  public void notifyCompleteRequest() {
+    decrement(mRequestCount);
+    wakeDispatcher();
+  }
+
+  /**
+   * Like {@link #notifyCompleteRequest()}, but also frees the slot of the request's host. Queues
+   * with a per-host limit have to be notified through this method.
+   */
+  public void notifyCompleteRequest(Request request) {
+    if (mHostScheduler != null) {
+      synchronized (this) {
+        mHostScheduler.onFinished(request, true);
+      }
     }
-    notifyAll();
+    decrement(mRequestCount);
+    wakeDispatcher();
   }
-  
+
   public void removeAll() {
-    for (Request item : mQueue) {
-      mQueue.remove(item);
+    mQueue.clear();
+    if (mHostScheduler != null) {
+      synchronized (this) {
+        mHostScheduler.clear();
+      }
+    }
+  }
+
+  /**
+   * Drops a request that expired or lost its target before it was dispatched.
+   */
+  private void shed(Request request) {
+    GLog.d(TAG, "shed request.getUrl : {}", request.getUrl());
+    request.cancel();
+    if (mHostScheduler != null) {
+      synchronized (this) {
+        mHostScheduler.onFinished(request, false);
+      }
     }
+    // only the dispatcher sheds
+    mShedCount += 1;
+    decrement(mRequestCount);
   }
+
+  private void wakeDispatcher() {
+    final Thread dispatcher = mDispatcher;
+    if (mParked && dispatcher != null) {
+      LockSupport.unpark(dispatcher);
+    }
+  }
+
+  private static void decrement(AtomicInteger count) {
+    int value;
+    do {
+      value = count.get();
+      if (value <= 0) {
+        return;
+      }
+    } while (!count.compareAndSet(value, value - 1));
+  }
+
+  /**
+   * @return the number of requests dropped before dispatch because they were stale
+   */
+  public int getShedCount() {
+    return mShedCount;
+  }
+
   public int getLength() {
-    return mRequestCount;
+    return mRequestCount.get();
+  }
+
+  /**
+   * @return the number of requests that are queued but not dispatched yet
+   */
+  public int getPendingCount() {
+    return mQueuedCount.get();
   }
 }
@@ -0,0 +1,83 @@
+package net.gree.asdk.core.imageloader.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.gree.asdk.core.imageloader.download.BandwidthMeter;
+import net.gree.asdk.core.imageloader.download.UrlVariantRewriter;
+import net.gree.asdk.core.imageloader.download.UrlVariantRewriter.Variant;
+
+/**
+ * Picks the variant of an image url to download for a requested size. On a slow link the requested
+ * size is reduced first, so a smaller variant is accepted.
+ */
+public class VariantSelector {
+  private final UrlVariantRewriter mRewriter;
+  private final BandwidthMeter mBandwidthMeter;
+  private long mSlowBytesPerSecond;
+  private float mSlowSizeFactor = 1f;
+
+  public VariantSelector(UrlVariantRewriter rewriter, BandwidthMeter bandwidthMeter) {
+    mRewriter = rewriter;
+    mBandwidthMeter = bandwidthMeter;
+  }
+
+  /**
+   * @param slowBytesPerSecond below this estimated bandwidth the link counts as slow, 0 to never
+   * @param sizeFactor factor applied to the requested size on a slow link, between 0 and 1
+   */
+  public void setSlowBandwidth(long slowBytesPerSecond, float sizeFactor) {
+    mSlowBytesPerSecond = slowBytesPerSecond;
+    mSlowSizeFactor = Math.max(0.1f, Math.min(1f, sizeFactor));
+  }
+
+  /**
+   * @return the smallest variant of {@code url} covering the requested size, the largest one if
+   *         none does, or null if {@code url} has no variants or no size was requested
+   */
+  public Selection select(String url, int reqWidth, int reqHeight) {
+    if (reqWidth <= 0 || reqHeight <= 0) {
+      return null;
+    }
+    final List<Variant> variants = mRewriter.getVariants(url);
+    if (variants == null || variants.isEmpty()) {
+      return null;
+    }
+    if (isSlow()) {
+      reqWidth = Math.max(1, (int) (reqWidth * mSlowSizeFactor));
+      reqHeight = Math.max(1, (int) (reqHeight * mSlowSizeFactor));
+    }
+    int selected = variants.size() - 1;
+    for (int i = 0; i < variants.size(); i++) {
+      if (variants.get(i).covers(reqWidth, reqHeight)) {
+        selected = i;
+        break;
+      }
+    }
+    List<String> larger = new ArrayList<String>(variants.size() - selected - 1);
+    for (int i = selected + 1; i < variants.size(); i++) {
+      larger.add(variants.get(i).mUrl);
+    }
+    return new Selection(variants.get(selected).mUrl, larger);
+  }
+
+  private boolean isSlow() {
+    if (mSlowBytesPerSecond <= 0) {
+      return false;
+    }
+    final long bytesPerSecond = mBandwidthMeter.getBytesPerSecond();
+    return bytesPerSecond >= 0 && bytesPerSecond < mSlowBytesPerSecond;
+  }
+
+  public static class Selection {
+    /** The variant to load. */
+    public final String mUrl;
+    /** Larger variants, smallest first, the image may be scaled down from if one is cached. */
+    public final List<String> mLargerUrls;
+
+    Selection(String url, List<String> largerUrls) {
+      mUrl = url;
+      mLargerUrls = largerUrls;
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.gree.asdk.core.imageloader.metrics.LoaderMetrics;
+import net.gree.asdk.core.imageloader.metrics.RequestTracer;
+
+import android.os.SystemClock;
+
+/**
+ * Estimates the download bandwidth from the image transfers, as a moving average that follows the
+ * network when the device moves between Wi-Fi and mobile links.
+ */
+public class BandwidthMeter {
+	/** Smaller transfers mostly measure latency, not bandwidth. */
+	private static final long MIN_SAMPLE_BYTES = 16 * 1024;
+	private static final float SMOOTHING = 0.25f;
+
+	private long mBytesPerSecond = -1;
+	private volatile LoaderMetrics mMetrics;
+	private volatile RequestTracer mTracer;
+	
+	/**
+	 * Counts the bytes of metered streams into {@link LoaderMetrics#BYTES_DOWNLOADED}, null to stop.
+	 */
+	public void setMetrics(LoaderMetrics metrics) {
+		mMetrics = metrics;
+	}
+	
+	/**
+	 * Marks the first and the last byte of metered streams in the trace of their request.
+	 */
+	public void setTracer(RequestTracer tracer) {
+		mTracer = tracer;
+	}
+
+	/**
+	 * Records a transfer of {@code bytes} that took {@code millis}.
+	 */
+	public synchronized void addSample(long bytes, long millis) {
+		if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+			return;
+		}
+		final long sample = bytes * 1000 / millis;
+		if (mBytesPerSecond < 0) {
+			mBytesPerSecond = sample;
+		} else {
+			mBytesPerSecond = (long) (SMOOTHING * sample + (1 - SMOOTHING) * mBytesPerSecond);
+		}
+	}
+
+	/**
+	 * @return the estimated bandwidth, or -1 if nothing has been measured yet
+	 */
+	public synchronized long getBytesPerSecond() {
+		return mBytesPerSecond;
+	}
+
+	/**
+	 * @return {@code in} counting its bytes into this meter, the sample is taken when it is closed
+	 */
+	public InputStream meter(InputStream in) {
+		return in != null ? new MeteredInputStream(in) : null;
+	}
+
+	private class MeteredInputStream extends FilterInputStream {
+		private final long mStart = SystemClock.uptimeMillis();
+		private final LoaderMetrics mStreamMetrics = mMetrics;
+		private final RequestTracer mStreamTracer = mTracer;
+		private final int mTraceId = mStreamTracer != null ? RequestTracer.current() : 0;
+		private long mBytes;
+		private boolean mEnded;
+		private boolean mClosed;
+
+		MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			count(b != -1 ? 1 : -1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			int read = in.read(buffer, offset, count);
+			count(read);
+			return read;
+		}
+
+		private void count(int read) {
+			if (read > 0) {
+				if (mBytes == 0 && mStreamTracer != null) {
+					mStreamTracer.mark(mTraceId, RequestTracer.FIRST_BYTE);
+				}
+				mBytes += read;
+				if (mStreamMetrics != null) {
+					mStreamMetrics.add(LoaderMetrics.BYTES_DOWNLOADED, read);
+				}
+			} else if (read == -1) {
+				end();
+			}
+		}
+
+		private void end() {
+			if (!mEnded && mBytes > 0 && mStreamTracer != null) {
+				mStreamTracer.mark(mTraceId, RequestTracer.LAST_BYTE);
+			}
+			mEnded = true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!mClosed) {
+				mClosed = true;
+				// decoders may stop reading before the end of a complete image
+				end();
+				addSample(mBytes, SystemClock.uptimeMillis() - mStart);
+			}
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Lets another thread abort a download in progress, e.g. when the view it was for is rebound to
+ * another url. Interrupting the downloading thread is not enough, blocking socket reads do not
+ * notice it. While a signal is bound to the current thread, downloaders register how to abort
+ * their current exchange, by closing its socket or aborting its request, and the signal runs
+ * that when it is cancelled.
+ */
+public class CancellationSignal {
+	private static final ThreadLocal<CancellationSignal> sCurrent = new ThreadLocal<CancellationSignal>();
+
+	private boolean mCancelled;
+	private Runnable mOnCancel;
+
+	/**
+	 * Binds {@code signal} to the current thread, null to unbind.
+	 *
+	 * @return the signal bound before, to be restored afterwards
+	 */
+	public static CancellationSignal bind(CancellationSignal signal) {
+		final CancellationSignal previous = sCurrent.get();
+		sCurrent.set(signal);
+		return previous;
+	}
+
+	/**
+	 * @return the signal bound to the current thread, or null
+	 */
+	public static CancellationSignal current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Registers {@code abort} with the signal bound to the current thread, if there is one.
+	 */
+	public static void onCancel(Runnable abort) {
+		final CancellationSignal signal = sCurrent.get();
+		if (signal != null) {
+			signal.setOnCancel(abort);
+		}
+	}
+
+	/**
+	 * @throws InterruptedIOException if the signal bound to the current thread was cancelled
+	 */
+	public static void throwIfCancelled() throws InterruptedIOException {
+		final CancellationSignal signal = sCurrent.get();
+		if (signal != null && signal.isCancelled()) {
+			throw new InterruptedIOException("download cancelled");
+		}
+	}
+
+	/**
+	 * Cancels the signal and runs the abort registered last. Later calls do nothing.
+	 */
+	public void cancel() {
+		final Runnable abort;
+		synchronized (this) {
+			if (mCancelled) {
+				return;
+			}
+			mCancelled = true;
+			abort = mOnCancel;
+			mOnCancel = null;
+		}
+		if (abort != null) {
+			abort.run();
+		}
+	}
+
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	/**
+	 * Replaces the abort to run on cancellation, null once the exchange is over. Runs
+	 * {@code abort} at once if the signal has already been cancelled.
+	 */
+	public void setOnCancel(Runnable abort) {
+		synchronized (this) {
+			if (!mCancelled) {
+				mOnCancel = abort;
+				return;
+			}
+		}
+		if (abort != null) {
+			abort.run();
+		}
+	}
+}
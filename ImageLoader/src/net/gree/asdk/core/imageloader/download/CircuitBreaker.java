@@ -0,0 +1,91 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+/**
+ * Tracks failures per host. After {@code failureThreshold} failures in a row the circuit of the
+ * host opens and requests to it fail at once. When the open period is over a single probe request
+ * is let through: it closes the circuit if it succeeds and opens it again, for twice as long up to
+ * a limit, if it fails.
+ */
+public class CircuitBreaker {
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+	public static final long DEFAULT_OPEN_DURATION = 30 * 1000; // milliseconds
+	private static final int MAX_OPEN_DURATION_FACTOR = 8;
+
+	private final int mFailureThreshold;
+	private final long mOpenDuration;
+	private final Map<String, HostState> mHosts = new HashMap<String, HostState>();
+
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+	}
+
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		mFailureThreshold = failureThreshold;
+		mOpenDuration = openDuration;
+	}
+
+	/**
+	 * @return true if a request to {@code host} may be sent; when the open period is over this
+	 *         lets one probe through and holds back the others until it is done
+	 */
+	public synchronized boolean allowRequest(String host) {
+		final HostState state = mHosts.get(host);
+		if (state == null || state.mOpenUntil == 0) {
+			return true;
+		}
+		if (state.mProbing || SystemClock.uptimeMillis() < state.mOpenUntil) {
+			return false;
+		}
+		state.mProbing = true;
+		return true;
+	}
+
+	public synchronized void onSuccess(String host) {
+		mHosts.remove(host);
+	}
+
+	public synchronized void onFailure(String host) {
+		HostState state = mHosts.get(host);
+		if (state == null) {
+			state = new HostState();
+			mHosts.put(host, state);
+		}
+		state.mFailures++;
+		if (state.mProbing) {
+			state.mProbing = false;
+			state.mOpenFactor = Math.min(state.mOpenFactor * 2, MAX_OPEN_DURATION_FACTOR);
+			state.mOpenUntil = SystemClock.uptimeMillis() + mOpenDuration * state.mOpenFactor;
+		} else if (state.mOpenUntil == 0 && state.mFailures >= mFailureThreshold) {
+			state.mOpenUntil = SystemClock.uptimeMillis() + mOpenDuration;
+		}
+	}
+
+	/**
+	 * Releases a probe that ended without telling anything about the host, e.g. when it was
+	 * cancelled.
+	 */
+	public synchronized void onAbandoned(String host) {
+		final HostState state = mHosts.get(host);
+		if (state != null) {
+			state.mProbing = false;
+		}
+	}
+
+	public synchronized boolean isOpen(String host) {
+		final HostState state = mHosts.get(host);
+		return state != null && state.mOpenUntil != 0;
+	}
+
+	private static class HostState {
+		int mFailures;
+		/** Time in {@link SystemClock#uptimeMillis()} the circuit opens until, 0 if closed. */
+		long mOpenUntil;
+		int mOpenFactor = 1;
+		boolean mProbing;
+	}
+}
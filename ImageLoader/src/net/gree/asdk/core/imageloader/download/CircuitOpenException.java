@@ -0,0 +1,14 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request to a host whose circuit is open.
+ */
+public class CircuitOpenException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String host) {
+		super("circuit open : " + host);
+	}
+}
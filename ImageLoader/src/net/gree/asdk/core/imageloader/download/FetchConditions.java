@@ -0,0 +1,60 @@
+package net.gree.asdk.core.imageloader.download;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+
+/**
+ * What a download that a fetching executor starts ahead of its task has to ask for: the cached
+ * entry to revalidate and the partial body to resume. The task only passes them to
+ * {@link ImageDownloader#getResponse} once it runs, so they are bound to the thread that hands the
+ * task to the executor, like a {@link CancellationSignal}.
+ */
+public class FetchConditions {
+	private static final ThreadLocal<FetchConditions> sCurrent = new ThreadLocal<FetchConditions>();
+
+	public final CacheMetadata mCached;
+	public final long mOffset;
+	public final String mIfRange;
+
+	/**
+	 * @param cached metadata of a disk entry to revalidate, may be null
+	 * @param offset length of the partial body to resume from
+	 * @param ifRange validator of the partial body, null to download the whole body
+	 */
+	public FetchConditions(CacheMetadata cached, long offset, String ifRange) {
+		mCached = cached;
+		mOffset = offset;
+		mIfRange = ifRange;
+	}
+
+	/**
+	 * Binds {@code conditions} to the current thread, null to unbind.
+	 *
+	 * @return the conditions bound before, to be restored afterwards
+	 */
+	public static FetchConditions bind(FetchConditions conditions) {
+		final FetchConditions previous = sCurrent.get();
+		sCurrent.set(conditions);
+		return previous;
+	}
+
+	/**
+	 * @return the conditions bound to the current thread, or null
+	 */
+	public static FetchConditions current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * @return whether a download made under {@code conditions} answers a request with the given
+	 *         ones; null conditions ask for nothing
+	 */
+	static boolean matches(FetchConditions conditions, CacheMetadata cached, long offset,
+			String ifRange) {
+		if (conditions == null) {
+			return cached == null && ifRange == null;
+		}
+		return conditions.mCached == cached
+				&& (ifRange == null ? conditions.mIfRange == null
+						: ifRange.equals(conditions.mIfRange) && offset == conditions.mOffset);
+	}
+}
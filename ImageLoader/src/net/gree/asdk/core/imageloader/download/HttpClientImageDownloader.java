@@ -1,29 +1,194 @@
 package net.gree.asdk.core.imageloader.download;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.entity.BufferedHttpEntity;
 
+/**
+ * Downloads images with a {@link HttpClient}. The body is streamed straight from the connection
+ * through a small buffer, so decoding overlaps the transfer and memory does not grow with the image.
+ */
 public class HttpClientImageDownloader extends ImageDownloader {
 
 	private HttpClient httpClient;
+	private final long maxContentLength;
 
 	public HttpClientImageDownloader(HttpClient httpClient) {
+		this(httpClient, 0);
+	}
+
+	/**
+	 * @param maxContentLength bodies larger than this many bytes are aborted, 0 for no limit
+	 */
+	public HttpClientImageDownloader(HttpClient httpClient, long maxContentLength) {
 		this.httpClient = httpClient;
+		this.maxContentLength = maxContentLength;
 	}
 
 	@Override
 	protected InputStream getStreamFromNetwork(URI imageUri) throws IOException {
+		return getResponseFromNetwork(imageUri, null, 0, null).getStream();
+	}
+
+	@Override
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached, long offset,
+			String ifRange) throws IOException {
 		HttpGet httpRequest = new HttpGet(imageUri.toString());
+		httpRequest.addHeader(HEADER_ACCEPT, getAccept());
+		httpRequest.addHeader(HEADER_ACCEPT_ENCODING, getAcceptEncoding(ifRange != null));
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				httpRequest.addHeader(HEADER_IF_NONE_MATCH, cached.getETag());
+			}
+			if (cached.getLastModified() != null) {
+				httpRequest.addHeader(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+		if (ifRange != null) {
+			httpRequest.addHeader(HEADER_RANGE, "bytes=" + offset + "-");
+			httpRequest.addHeader(HEADER_IF_RANGE, ifRange);
+		}
+		final HttpGet abortable = httpRequest;
+		CancellationSignal.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				abortable.abort();
+			}
+		});
 		HttpResponse response = httpClient.execute(httpRequest);
+		int statusCode = response.getStatusLine().getStatusCode();
 		HttpEntity entity = response.getEntity();
-		BufferedHttpEntity bufHttpEntity = new BufferedHttpEntity(entity);
-		return bufHttpEntity.getContent();
+		CacheMetadata metadata = CacheMetadata.fromHeaders(getHeader(response, HEADER_ETAG),
+				getHeader(response, HEADER_LAST_MODIFIED), getHeader(response, HEADER_CACHE_CONTROL),
+				getHeader(response, HEADER_CONTENT_TYPE));
+		if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+				|| statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+			if (entity != null) {
+				entity.consumeContent();
+			}
+			if (statusCode != HttpURLConnection.HTTP_NOT_MODIFIED) {
+				throw new HttpStatusException(statusCode, imageUri.toString());
+			}
+			return new ImageResponse(statusCode, null, metadata);
+		}
+		if (entity == null) {
+			throw new IOException("no content : " + imageUri);
+		}
+		long contentLength = entity.getContentLength();
+		if (maxContentLength > 0 && contentLength > maxContentLength) {
+			httpRequest.abort();
+			throw new IOException("content length " + contentLength + " exceeds " + maxContentLength
+					+ " : " + imageUri);
+		}
+		long start = statusCode == HttpURLConnection.HTTP_PARTIAL
+				? parseContentRangeStart(getHeader(response, HEADER_CONTENT_RANGE)) : 0;
+		InputStream content;
+		try {
+			content = entity.getContent();
+		} catch (IOException e) {
+			httpRequest.abort();
+			throw e;
+		}
+		String encoding = getHeader(response, HEADER_CONTENT_ENCODING);
+		return new ImageResponse(statusCode,
+				decodeContent(new EntityInputStream(content, httpRequest, entity, maxContentLength),
+						encoding),
+				metadata, start, isGzip(encoding) ? -1 : contentLength);
+	}
+
+	private static String getHeader(HttpResponse response, String name) {
+		Header header = response.getFirstHeader(name);
+		return header != null ? header.getValue() : null;
+	}
+
+	/**
+	 * Streams an entity and releases its connection when closed: back to the connection manager
+	 * if the body was read to the end, aborted otherwise so that no unread bytes are transferred.
+	 * Reading stops with an {@link InterruptedIOException} once the reading thread is interrupted,
+	 * e.g. because its task was cancelled, or {@link #cancel()} was called.
+	 */
+	public static class EntityInputStream extends FilterInputStream {
+		private final HttpGet mRequest;
+		private final HttpEntity mEntity;
+		private final long mMaxLength;
+		private long mCount;
+		private boolean mEof;
+		private boolean mClosed;
+		private volatile boolean mCancelled;
+
+		EntityInputStream(InputStream content, HttpGet request, HttpEntity entity, long maxLength) {
+			super(new BufferedInputStream(content, BUFFER_SIZE));
+			mRequest = request;
+			mEntity = entity;
+			mMaxLength = maxLength;
+		}
+
+		/**
+		 * Aborts the transfer. May be called from any thread.
+		 */
+		public void cancel() {
+			mCancelled = true;
+			mRequest.abort();
+		}
+
+		@Override
+		public int read() throws IOException {
+			checkState();
+			int b = in.read();
+			onRead(b == -1 ? -1 : 1);
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkState();
+			int read = in.read(buffer, offset, count);
+			onRead(read);
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			if (mEof) {
+				mEntity.consumeContent();
+			} else {
+				mRequest.abort();
+			}
+		}
+
+		private void checkState() throws IOException {
+			if (mCancelled || Thread.currentThread().isInterrupted()) {
+				mRequest.abort();
+				throw new InterruptedIOException("download cancelled");
+			}
+		}
+
+		private void onRead(int read) throws IOException {
+			if (read == -1) {
+				mEof = true;
+				return;
+			}
+			mCount += read;
+			if (mMaxLength > 0 && mCount > mMaxLength) {
+				mRequest.abort();
+				throw new IOException("content exceeds " + mMaxLength + " bytes");
+			}
+		}
 	}
 }
@@ -0,0 +1,470 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A single persistent HTTP/1.1 connection. Response bodies are exposed as streams that hand the
+ * connection back to its {@link HttpConnectionPool} once they have been read to the end and closed.
+ */
+public class HttpConnection {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	/** Bodies with more unread bytes than this are not drained on close, the socket is closed instead. */
+	private static final int MAX_DRAIN_BYTES = 64 * 1024;
+	private static final String CRLF = "\r\n";
+
+	private final String mRoute;
+	private final Socket mSocket;
+	private final InputStream mIn;
+	private final OutputStream mOut;
+	private final int mReadTimeout;
+	private long mIdleSince;
+	private int mUseCount;
+	/** True from sending a request until its body is closed. */
+	private boolean mBusy;
+
+	private HttpConnection(String route, Socket socket, int readTimeout) throws IOException {
+		mRoute = route;
+		mSocket = socket;
+		mReadTimeout = readTimeout;
+		mIn = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+		mOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+	}
+
+	/**
+	 * Connects to {@code host}, performing the TLS handshake and host name verification for https.
+	 */
+	public static HttpConnection open(String route, boolean secure, String host, int port,
+			int connectTimeout, int readTimeout) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			if (secure) {
+				SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
+				SSLSocket sslSocket = (SSLSocket) factory.createSocket(socket, host, port, true);
+				socket = sslSocket;
+				sslSocket.startHandshake();
+				if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, sslSocket.getSession())) {
+					throw new IOException("hostname " + host + " not verified");
+				}
+			}
+			return new HttpConnection(route, socket, readTimeout);
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+	}
+
+	public String getRoute() {
+		return mRoute;
+	}
+
+	long getIdleSince() {
+		return mIdleSince;
+	}
+
+	void setIdleSince(long idleSince) {
+		mIdleSince = idleSince;
+	}
+
+	/**
+	 * @return how many requests have been sent over this connection
+	 */
+	public synchronized int getUseCount() {
+		return mUseCount;
+	}
+
+	/**
+	 * Closes the connection from another thread, failing the blocked read of the exchange, if it
+	 * is still busy with the request {@code useCount}. A connection that has been handed back to
+	 * the pool in the meantime is left alone.
+	 */
+	public void abort(int useCount) {
+		synchronized (this) {
+			if (!mBusy || mUseCount != useCount) {
+				return;
+			}
+			mBusy = false;
+		}
+		close();
+	}
+
+	private synchronized void release() {
+		mBusy = false;
+	}
+
+	/**
+	 * Checks whether an idle connection can still be used, i.e. the server has not closed it.
+	 */
+	boolean isHealthy() {
+		if (mSocket.isClosed() || mSocket.isInputShutdown() || mSocket.isOutputShutdown()) {
+			return false;
+		}
+		try {
+			mSocket.setSoTimeout(1);
+			try {
+				mIn.mark(1);
+				if (mIn.read() == -1) {
+					return false;
+				}
+				mIn.reset();
+				// unexpected data on an idle connection, it is out of sync
+				return false;
+			} finally {
+				mSocket.setSoTimeout(mReadTimeout);
+			}
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a GET request for {@code path} with the given headers.
+	 */
+	public void writeRequest(String path, Map<String, String> headers) throws IOException {
+		synchronized (this) {
+			mUseCount++;
+			mBusy = true;
+		}
+		StringBuilder request = new StringBuilder(256);
+		request.append("GET ").append(path).append(" HTTP/1.1").append(CRLF);
+		for (Map.Entry<String, String> header : headers.entrySet()) {
+			request.append(header.getKey()).append(": ").append(header.getValue()).append(CRLF);
+		}
+		request.append(CRLF);
+		try {
+			mOut.write(request.toString().getBytes("ISO-8859-1"));
+			mOut.flush();
+		} catch (SocketException e) {
+			throw new NoResponseException(e);
+		}
+	}
+
+	/**
+	 * Reads the status line and headers of the response. The body has to be closed to release the
+	 * connection, back to {@code pool} if it can be reused.
+	 */
+	public Response readResponse(HttpConnectionPool pool) throws IOException {
+		awaitResponse();
+		int code;
+		String statusLine;
+		Map<String, String> headers;
+		do {
+			// interim responses like 100 Continue and 103 Early Hints precede the real one
+			statusLine = readLine();
+			if (statusLine == null || !statusLine.startsWith("HTTP/")) {
+				throw new IOException("unexpected status line: " + statusLine);
+			}
+			int codeStart = statusLine.indexOf(' ');
+			if (codeStart < 0 || statusLine.length() < codeStart + 4) {
+				throw new IOException("unexpected status line: " + statusLine);
+			}
+			try {
+				code = Integer.parseInt(statusLine.substring(codeStart + 1, codeStart + 4));
+			} catch (NumberFormatException e) {
+				throw new IOException("unexpected status line: " + statusLine);
+			}
+			headers = readHeaders();
+		} while (code / 100 == 1);
+		final boolean http10 = statusLine.startsWith("HTTP/1.0");
+
+		String connection = headers.get("connection");
+		boolean keepAlive = http10 ? "keep-alive".equalsIgnoreCase(connection)
+				: !"close".equalsIgnoreCase(connection);
+
+		final BodyInputStream body;
+		if (code == 204 || code == 304) {
+			body = new FixedLengthInputStream(pool, keepAlive, 0);
+		} else if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+			body = new ChunkedInputStream(pool, keepAlive);
+		} else if (headers.containsKey("content-length")) {
+			long length;
+			try {
+				length = Long.parseLong(headers.get("content-length"));
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid content-length " + headers.get("content-length"));
+			}
+			body = new FixedLengthInputStream(pool, keepAlive, length);
+		} else {
+			// the body ends when the server closes the connection
+			body = new FixedLengthInputStream(pool, false, -1);
+		}
+		return new Response(code, headers, body);
+	}
+
+	public void close() {
+		closeQuietly(mSocket);
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new HashMap<String, String>();
+		String line;
+		while ((line = readLine()) != null && line.length() > 0) {
+			int colon = line.indexOf(':');
+			if (colon > 0) {
+				headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+		}
+		if (line == null) {
+			throw new IOException("unexpected end of stream");
+		}
+		return headers;
+	}
+
+	/**
+	 * Waits for the first byte of the response without taking it.
+	 * 
+	 * @throws NoResponseException if the connection ends or is reset before it
+	 */
+	private void awaitResponse() throws IOException {
+		final int first;
+		try {
+			mIn.mark(1);
+			first = mIn.read();
+		} catch (SocketException e) {
+			throw new NoResponseException(e);
+		}
+		if (first == -1) {
+			throw new NoResponseException(null);
+		}
+		mIn.reset();
+	}
+
+	private String readLine() throws IOException {
+		StringBuilder line = new StringBuilder(64);
+		int c;
+		while ((c = mIn.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return line.length() > 0 ? line.toString() : null;
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// ignore
+		}
+	}
+
+	/**
+	 * Status, headers and body of a response. Header names are lower case.
+	 */
+	/**
+	 * Thrown when the connection ended or was reset before any byte of the response arrived, e.g.
+	 * because the server had closed it while it was idle. A timeout is not one of these.
+	 */
+	public static class NoResponseException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		NoResponseException(IOException cause) {
+			super("connection closed before the response", cause);
+		}
+	}
+
+	public static class Response {
+		public final int mCode;
+		public final Map<String, String> mHeaders;
+		public final InputStream mBody;
+
+		Response(int code, Map<String, String> headers, InputStream body) {
+			mCode = code;
+			mHeaders = headers;
+			mBody = body;
+		}
+
+		public String getHeader(String name) {
+			return mHeaders.get(name.toLowerCase());
+		}
+	}
+
+	private abstract class BodyInputStream extends InputStream {
+		private final HttpConnectionPool mPool;
+		private final boolean mKeepAlive;
+		protected boolean mEof;
+		private boolean mClosed;
+
+		BodyInputStream(HttpConnectionPool pool, boolean keepAlive) {
+			mPool = pool;
+			mKeepAlive = keepAlive;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int read = read(single, 0, 1);
+			return read == -1 ? -1 : single[0] & 0xff;
+		}
+
+		/**
+		 * Drains what is left of a short body so that the connection can be reused, and hands the
+		 * connection back to the pool. Connections that cannot be reused are closed.
+		 */
+		@Override
+		public void close() throws IOException {
+			if (mClosed) {
+				return;
+			}
+			if (!mEof && mKeepAlive) {
+				try {
+					byte[] buffer = new byte[BUFFER_SIZE];
+					long drained = 0;
+					while (!mEof && drained < MAX_DRAIN_BYTES) {
+						int read = read(buffer, 0, buffer.length);
+						if (read > 0) {
+							drained += read;
+						}
+					}
+				} catch (IOException e) {
+					mEof = false;
+				}
+			}
+			mClosed = true;
+			release();
+			if (mEof && mKeepAlive && mPool != null) {
+				mPool.recycle(HttpConnection.this);
+			} else {
+				HttpConnection.this.close();
+			}
+		}
+
+		protected void checkNotClosed() throws IOException {
+			if (mClosed) {
+				throw new IOException("stream closed");
+			}
+		}
+	}
+
+	private class FixedLengthInputStream extends BodyInputStream {
+		/** Remaining bytes, or -1 if the body ends with the connection. */
+		private long mRemaining;
+		private final boolean mUntilClose;
+
+		FixedLengthInputStream(HttpConnectionPool pool, boolean keepAlive, long length) {
+			super(pool, keepAlive);
+			mUntilClose = length < 0;
+			mRemaining = length;
+			mEof = length == 0;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkNotClosed();
+			if (mEof) {
+				return -1;
+			}
+			int toRead = mUntilClose ? count : (int) Math.min(count, mRemaining);
+			int read = mIn.read(buffer, offset, toRead);
+			if (read == -1) {
+				mEof = true;
+				if (!mUntilClose) {
+					throw new IOException("unexpected end of stream, " + mRemaining + " bytes missing");
+				}
+				return -1;
+			}
+			if (!mUntilClose) {
+				mRemaining -= read;
+				mEof = mRemaining == 0;
+			}
+			return read;
+		}
+
+		@Override
+		public int available() throws IOException {
+			checkNotClosed();
+			if (mEof) {
+				return 0;
+			}
+			int available = mIn.available();
+			return mUntilClose ? available : (int) Math.min(available, mRemaining);
+		}
+	}
+
+	private class ChunkedInputStream extends BodyInputStream {
+		private long mChunkRemaining = -1;
+
+		ChunkedInputStream(HttpConnectionPool pool, boolean keepAlive) {
+			super(pool, keepAlive);
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count) throws IOException {
+			checkNotClosed();
+			if (mEof) {
+				return -1;
+			}
+			if (mChunkRemaining <= 0) {
+				readChunkSize();
+				if (mEof) {
+					return -1;
+				}
+			}
+			int read = mIn.read(buffer, offset, (int) Math.min(count, mChunkRemaining));
+			if (read == -1) {
+				throw new IOException("unexpected end of chunked stream");
+			}
+			mChunkRemaining -= read;
+			return read;
+		}
+
+		private void readChunkSize() throws IOException {
+			if (mChunkRemaining == 0) {
+				// CRLF that ends the previous chunk
+				readLine();
+			}
+			String line = readLine();
+			if (line == null) {
+				throw new IOException("unexpected end of chunked stream");
+			}
+			int extension = line.indexOf(';');
+			if (extension >= 0) {
+				line = line.substring(0, extension);
+			}
+			try {
+				mChunkRemaining = Long.parseLong(line.trim(), 16);
+			} catch (NumberFormatException e) {
+				throw new IOException("invalid chunk size " + line);
+			}
+			if (mChunkRemaining == 0) {
+				// skip trailers
+				String trailer;
+				while ((trailer = readLine()) != null && trailer.length() > 0) {
+				}
+				mEof = true;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			checkNotClosed();
+			if (mEof || mChunkRemaining <= 0) {
+				return 0;
+			}
+			return (int) Math.min(mIn.available(), mChunkRemaining);
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.SystemClock;
+
+/**
+ * Keeps idle persistent connections per route (scheme, host and port) so that images from the same
+ * host do not pay for a new TCP and TLS handshake each. Idle connections are evicted after the
+ * keep-alive duration, and at most {@code maxIdlePerRoute} of them are kept for each route.
+ */
+public class HttpConnectionPool {
+	public static final int DEFAULT_MAX_IDLE_PER_ROUTE = 5;
+	public static final long DEFAULT_KEEP_ALIVE_DURATION = 60 * 1000; // milliseconds
+
+	private final int mMaxIdlePerRoute;
+	private final long mKeepAliveDuration;
+	/** Idle connections per route, the most recently used last. */
+	private final Map<String, LinkedList<HttpConnection>> mIdle =
+			new HashMap<String, LinkedList<HttpConnection>>();
+
+	private final AtomicLong mConnectCount = new AtomicLong();
+	private final AtomicLong mReuseCount = new AtomicLong();
+	private final AtomicLong mEvictCount = new AtomicLong();
+
+	public HttpConnectionPool() {
+		this(DEFAULT_MAX_IDLE_PER_ROUTE, DEFAULT_KEEP_ALIVE_DURATION);
+	}
+
+	public HttpConnectionPool(int maxIdlePerRoute, long keepAliveDuration) {
+		mMaxIdlePerRoute = maxIdlePerRoute;
+		mKeepAliveDuration = keepAliveDuration;
+	}
+
+	/**
+	 * @return a healthy idle connection to {@code route}, or null if a new one has to be opened
+	 */
+	public HttpConnection get(String route) {
+		while (true) {
+			HttpConnection connection = null;
+			final List<HttpConnection> expired;
+			synchronized (this) {
+				expired = evictExpired(SystemClock.uptimeMillis());
+				LinkedList<HttpConnection> idle = mIdle.get(route);
+				if (idle != null && !idle.isEmpty()) {
+					connection = idle.removeLast();
+				}
+			}
+			for (HttpConnection c : expired) {
+				mEvictCount.incrementAndGet();
+				c.close();
+			}
+			if (connection == null) {
+				return null;
+			}
+			if (connection.isHealthy()) {
+				mReuseCount.incrementAndGet();
+				return connection;
+			}
+			mEvictCount.incrementAndGet();
+			connection.close();
+		}
+	}
+
+	/**
+	 * Records that a new connection had to be opened.
+	 */
+	void onConnected() {
+		mConnectCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns a connection whose last response has been read completely.
+	 */
+	public void recycle(HttpConnection connection) {
+		List<HttpConnection> toClose = new ArrayList<HttpConnection>(1);
+		synchronized (this) {
+			final long now = SystemClock.uptimeMillis();
+			connection.setIdleSince(now);
+			LinkedList<HttpConnection> idle = mIdle.get(connection.getRoute());
+			if (idle == null) {
+				idle = new LinkedList<HttpConnection>();
+				mIdle.put(connection.getRoute(), idle);
+			}
+			idle.addLast(connection);
+			while (idle.size() > mMaxIdlePerRoute) {
+				toClose.add(idle.removeFirst());
+			}
+			toClose.addAll(evictExpired(now));
+		}
+		for (HttpConnection c : toClose) {
+			mEvictCount.incrementAndGet();
+			c.close();
+		}
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void evictAll() {
+		List<HttpConnection> toClose = new ArrayList<HttpConnection>();
+		synchronized (this) {
+			for (LinkedList<HttpConnection> idle : mIdle.values()) {
+				toClose.addAll(idle);
+			}
+			mIdle.clear();
+		}
+		for (HttpConnection c : toClose) {
+			mEvictCount.incrementAndGet();
+			c.close();
+		}
+	}
+
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (LinkedList<HttpConnection> idle : mIdle.values()) {
+			count += idle.size();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of connections opened, i.e. handshakes paid for
+	 */
+	public long getConnectCount() {
+		return mConnectCount.get();
+	}
+
+	/**
+	 * @return the number of requests sent over a reused connection
+	 */
+	public long getReuseCount() {
+		return mReuseCount.get();
+	}
+
+	public long getEvictCount() {
+		return mEvictCount.get();
+	}
+
+	/**
+	 * @return the share of requests that did not need a new connection, between 0 and 1
+	 */
+	public float getReuseRate() {
+		long reused = mReuseCount.get();
+		long total = reused + mConnectCount.get();
+		return total == 0 ? 0f : (float) reused / total;
+	}
+
+	private List<HttpConnection> evictExpired(long now) {
+		List<HttpConnection> expired = new ArrayList<HttpConnection>(0);
+		Iterator<LinkedList<HttpConnection>> routes = mIdle.values().iterator();
+		while (routes.hasNext()) {
+			LinkedList<HttpConnection> idle = routes.next();
+			while (!idle.isEmpty() && now - idle.getFirst().getIdleSince() > mKeepAliveDuration) {
+				expired.add(idle.removeFirst());
+			}
+			if (idle.isEmpty()) {
+				routes.remove();
+			}
+		}
+		return expired;
+	}
+}
@@ -0,0 +1,21 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server answers an image request with an error status.
+ */
+public class HttpStatusException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final int mStatusCode;
+
+	public HttpStatusException(int statusCode, String url) {
+		super("HTTP " + statusCode + " : " + url);
+		mStatusCode = statusCode;
+	}
+
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+}
@@ -3,7 +3,12 @@ package net.gree.asdk.core.imageloader.download;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.util.zip.GZIPInputStream;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+import net.gree.asdk.core.imageloader.utils.Util;
 
 /**
  * Provides retrieving of {@link InputStream} of image by URI.
@@ -20,6 +25,32 @@ public abstract class ImageDownloader {
 
 	protected static final int BUFFER_SIZE = 8 * 1024; // 8 Kb
 
+	protected static final String HEADER_ETAG = "ETag";
+	protected static final String HEADER_LAST_MODIFIED = "Last-Modified";
+	protected static final String HEADER_CACHE_CONTROL = "Cache-Control";
+	protected static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+	protected static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+	protected static final String HEADER_RANGE = "Range";
+	protected static final String HEADER_IF_RANGE = "If-Range";
+	protected static final String HEADER_CONTENT_RANGE = "Content-Range";
+	protected static final String HEADER_CONTENT_LENGTH = "Content-Length";
+	protected static final String HEADER_CONTENT_TYPE = "Content-Type";
+	protected static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+	protected static final String HEADER_ACCEPT = "Accept";
+	protected static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+	/** Accept header of a client whose decoder reads every kind of WebP. */
+	public static final String ACCEPT_WEBP = "image/webp,image/*;q=0.8,*/*;q=0.5";
+	/** Accept header of a client that only reads the formats every Android version decodes. */
+	public static final String ACCEPT_LEGACY = "image/png,image/jpeg,image/gif,image/*;q=0.8,*/*;q=0.5";
+
+	protected static final String ENCODING_GZIP = "gzip";
+	protected static final String ENCODING_IDENTITY = "identity";
+
+	private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+	private String mAccept = getDefaultAccept();
+
 	/** Retrieves {@link InputStream} of image by URI. Image can be located as in the network and on local file system. */
 	public InputStream getStream(URI imageUri) throws IOException {
 		String scheme = imageUri.getScheme();
@@ -32,6 +63,165 @@ public abstract class ImageDownloader {
 		}
 	}
 
+	/**
+	 * Retrieves the image by URI together with its cache metadata. When {@code cached} has
+	 * validators, network requests are made conditional and may come back as 304 Not Modified
+	 * without a stream. Other sources always return the full image.
+	 * 
+	 * @param cached metadata of the cached copy that needs revalidation, may be null
+	 */
+	public ImageResponse getResponse(URI imageUri, CacheMetadata cached) throws IOException {
+		return getResponse(imageUri, cached, 0, null);
+	}
+
+	/**
+	 * Like {@link #getResponse(URI, CacheMetadata)}, but asks for the image from byte {@code offset}
+	 * on if the server still has the version identified by {@code ifRange}. The response is
+	 * {@link ImageResponse#isPartial() partial} only if it really starts at {@code offset}, otherwise
+	 * the whole image is requested.
+	 * 
+	 * @param ifRange strong ETag or Last-Modified date of the bytes received so far
+	 */
+	public ImageResponse getResponse(URI imageUri, CacheMetadata cached, long offset, String ifRange)
+			throws IOException {
+		String scheme = imageUri.getScheme();
+		if (!PROTOCOL_HTTP.equals(scheme) && !PROTOCOL_HTTPS.equals(scheme)) {
+			return new ImageResponse(HttpURLConnection.HTTP_OK, getStream(imageUri), null);
+		}
+		if (offset <= 0 || ifRange == null) {
+			return getResponseFromNetwork(imageUri, cached, 0, null);
+		}
+		final ImageResponse response;
+		try {
+			response = getResponseFromNetwork(imageUri, cached, offset, ifRange);
+		} catch (HttpStatusException e) {
+			if (e.getStatusCode() != HTTP_RANGE_NOT_SATISFIABLE) {
+				throw e;
+			}
+			return getResponseFromNetwork(imageUri, cached, 0, null);
+		}
+		if (response.isPartial() && response.getOffset() != offset) {
+			closeQuietly(response.getStream());
+			return getResponseFromNetwork(imageUri, cached, 0, null);
+		}
+		return response;
+	}
+
+	/**
+	 * Retrieves the image from the network, conditionally if {@code cached} has validators.
+	 * Should be overridden by successors that can read response headers.
+	 */
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached) throws IOException {
+		return new ImageResponse(HttpURLConnection.HTTP_OK, getStreamFromNetwork(imageUri), null);
+	}
+
+	/**
+	 * Retrieves the image from the network starting at byte {@code offset} when {@code ifRange} is
+	 * not null. Successors that cannot send range requests may ignore them and return the whole
+	 * image, which is what the default implementation does.
+	 */
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached, long offset,
+			String ifRange) throws IOException {
+		return getResponseFromNetwork(imageUri, cached);
+	}
+
+	/**
+	 * Overrides the formats advertised in the Accept header of image requests, e.g. to ask for
+	 * {@link #ACCEPT_WEBP} on a device whose decoder only reads lossy WebP when the server is
+	 * known to never send lossless or transparent WebP.
+	 */
+	public void setAccept(String accept) {
+		mAccept = accept != null ? accept : getDefaultAccept();
+	}
+
+	/**
+	 * @return the value of the Accept header of image requests
+	 */
+	public String getAccept() {
+		return mAccept;
+	}
+
+	/**
+	 * @return the value of the Accept-Encoding header: compressed transfer is accepted, which
+	 *         servers use for text payloads like SVG and leave already compressed images alone,
+	 *         except for range requests whose byte offsets refer to the unencoded image
+	 */
+	protected String getAcceptEncoding(boolean ranged) {
+		return ranged ? ENCODING_IDENTITY : ENCODING_GZIP;
+	}
+
+	/**
+	 * WebP is advertised only where the platform decoder reads all of it: lossy WebP decodes since
+	 * Ice Cream Sandwich, lossless and transparent WebP only since Jelly Bean MR2, and the Accept
+	 * header cannot tell the kinds apart.
+	 */
+	public static String getDefaultAccept() {
+		return Util.hasJellyBeanMR2() ? ACCEPT_WEBP : ACCEPT_LEGACY;
+	}
+
+	/**
+	 * @return {@code in} decoded according to the Content-Encoding header of its response
+	 */
+	protected static InputStream decodeContent(InputStream in, String contentEncoding)
+			throws IOException {
+		if (in == null || !isGzip(contentEncoding)) {
+			return in;
+		}
+		try {
+			return new GZIPInputStream(in, BUFFER_SIZE);
+		} catch (IOException e) {
+			closeQuietly(in);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return true if the body is gzip encoded, its Content-Length then says nothing about the size
+	 *         of the image
+	 */
+	protected static boolean isGzip(String contentEncoding) {
+		return contentEncoding != null && contentEncoding.trim().equalsIgnoreCase(ENCODING_GZIP);
+	}
+
+	/**
+	 * @return the first byte position of a Content-Range header like "bytes 100-199/200", or -1
+	 */
+	protected static long parseContentRangeStart(String contentRange) {
+		if (contentRange == null || !contentRange.startsWith("bytes ")) {
+			return -1;
+		}
+		int dash = contentRange.indexOf('-');
+		if (dash < 0) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring("bytes ".length(), dash).trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	protected static long parseContentLength(String contentLength) {
+		if (contentLength == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentLength.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
 	/**
 	 * Retrieves {@link InputStream} of image by URI from other source. Should be overriden by successors to implement
 	 * image downloading from special sources (not local file and not web URL).
@@ -0,0 +1,67 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+
+/**
+ * Result of an image request: the body stream and the cache metadata sent with it. A
+ * {@link HttpURLConnection#HTTP_NOT_MODIFIED} response has no stream, the cached copy is still valid.
+ * A {@link HttpURLConnection#HTTP_PARTIAL} response streams the image from {@link #getOffset()} on.
+ */
+public class ImageResponse {
+	private final int mStatusCode;
+	private final InputStream mStream;
+	private final CacheMetadata mMetadata;
+	private final long mOffset;
+	private final long mContentLength;
+
+	public ImageResponse(int statusCode, InputStream stream, CacheMetadata metadata) {
+		this(statusCode, stream, metadata, 0, -1);
+	}
+
+	/**
+	 * @param offset position in the image of the first byte of {@code stream}
+	 * @param contentLength number of bytes in {@code stream}, or -1 if unknown
+	 */
+	public ImageResponse(int statusCode, InputStream stream, CacheMetadata metadata, long offset,
+			long contentLength) {
+		mStatusCode = statusCode;
+		mStream = stream;
+		mMetadata = metadata;
+		mOffset = offset;
+		mContentLength = contentLength;
+	}
+
+	public int getStatusCode() {
+		return mStatusCode;
+	}
+
+	public InputStream getStream() {
+		return mStream;
+	}
+
+	/**
+	 * @return freshness and validation information of the response, may be null
+	 */
+	public CacheMetadata getMetadata() {
+		return mMetadata;
+	}
+
+	public long getOffset() {
+		return mOffset;
+	}
+
+	public long getContentLength() {
+		return mContentLength;
+	}
+
+	public boolean isPartial() {
+		return mStatusCode == HttpURLConnection.HTTP_PARTIAL;
+	}
+
+	public boolean isNotModified() {
+		return mStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+	}
+}
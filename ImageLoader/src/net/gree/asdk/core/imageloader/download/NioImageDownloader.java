@@ -0,0 +1,835 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+import net.gree.asdk.core.imageloader.concurrent.FetchingTaskExecutor;
+import net.gree.asdk.core.imageloader.log.GLog;
+
+import android.os.SystemClock;
+
+/**
+ * Downloads over non-blocking channels. A single selector thread multiplexes every plain http
+ * exchange, so hundreds of slow downloads do not take hundreds of threads. Bodies are received in
+ * full into memory before they are handed on.
+ * <p>
+ * Used as a {@link FetchingTaskExecutor.Fetcher}, a download does not take a pool thread at all:
+ * the task only runs, e.g. to decode, once its body is complete, and {@link #getResponse} then
+ * returns that body on the task's thread. Called directly, {@link #getResponse} blocks until the
+ * exchange is done. https and other schemes are handed to a blocking fallback downloader.
+ */
+public class NioImageDownloader extends ImageDownloader implements FetchingTaskExecutor.Fetcher {
+	private static final String TAG = NioImageDownloader.class.getSimpleName();
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 64;
+	/** {@value} */
+	public static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 5 * 1000; // milliseconds
+	/** {@value} */
+	public static final int DEFAULT_HTTP_READ_TIMEOUT = 20 * 1000; // milliseconds
+	public static final long DEFAULT_MAX_CONTENT_LENGTH = 16 * 1024 * 1024;
+
+	private static final int MAX_REDIRECTS = 5;
+	private static final int MAX_HEAD_LENGTH = 64 * 1024;
+	private static final int MAX_LINE_LENGTH = 1024;
+	private static final int SELECT_TIMEOUT = 1000; // milliseconds
+	/** Threads that resolve host names, lookups block and must not run on the selector. */
+	private static final int RESOLVER_THREADS = 4;
+	private static final String CRLF = "\r\n";
+
+	private final ImageDownloader mFallback;
+	private final int mMaxConnections;
+	private final int mConnectTimeout;
+	private final int mReadTimeout;
+	private final long mMaxContentLength;
+
+	private final Object mLock = new Object();
+	/** Exchanges waiting for a connection slot, guarded by {@link #mLock}. */
+	private final LinkedList<Exchange> mPending = new LinkedList<Exchange>();
+	private Selector mSelector;
+	private Thread mThread;
+	private ThreadPoolExecutor mResolver;
+	/** Exchanges with a channel, guarded by {@link #mLock}. */
+	private final List<Exchange> mActive = new ArrayList<Exchange>();
+	private final ByteBuffer mReadBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	private final ThreadLocal<Handoff> mHandoff = new ThreadLocal<Handoff>();
+
+	public NioImageDownloader() {
+		this(DEFAULT_MAX_CONNECTIONS);
+	}
+
+	public NioImageDownloader(int maxConnections) {
+		this(maxConnections, DEFAULT_HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT,
+				DEFAULT_MAX_CONTENT_LENGTH, new PooledImageDownloader());
+	}
+
+	/**
+	 * @param maxConnections exchanges that may be connected at the same time, others wait
+	 * @param maxContentLength largest body that is received into memory
+	 * @param fallback downloads what this downloader does not handle, e.g. https
+	 */
+	public NioImageDownloader(int maxConnections, int connectTimeout, int readTimeout,
+			long maxContentLength, ImageDownloader fallback) {
+		mMaxConnections = Math.max(1, maxConnections);
+		mConnectTimeout = connectTimeout;
+		mReadTimeout = readTimeout;
+		mMaxContentLength = maxContentLength;
+		mFallback = fallback;
+	}
+
+	@Override
+	public void setAccept(String accept) {
+		super.setAccept(accept);
+		if (mFallback != null) {
+			mFallback.setAccept(accept);
+		}
+	}
+
+	/**
+	 * @return the number of exchanges connected or waiting for a connection
+	 */
+	public int getActiveCount() {
+		synchronized (mLock) {
+			return mActive.size() + mPending.size();
+		}
+	}
+
+	@Override
+	public void fetch(final String url, final Runnable task, final Executor executor) {
+		URI uri = null;
+		try {
+			uri = url != null ? new URI(url) : null;
+		} catch (URISyntaxException e) {
+			// the task reports it
+		}
+		if (uri == null || !isSupported(uri)) {
+			executor.execute(task);
+			return;
+		}
+		// revalidates or resumes like the task would, it gets this response instead of asking
+		final FetchConditions conditions = FetchConditions.current();
+		final Listener listener = new Listener() {
+			@Override
+			public void onComplete(final Result result) {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						runWith(url, conditions, result, task);
+					}
+				});
+			}
+		};
+		try {
+			final Exchange exchange = conditions != null
+					? new Exchange(uri, conditions.mCached, conditions.mOffset, conditions.mIfRange,
+							listener, null)
+					: new Exchange(uri, null, 0, null, listener, null);
+			cancelOnSignal(exchange);
+			submit(exchange);
+		} catch (IOException e) {
+			listener.onComplete(new Result(null, e, null));
+		}
+	}
+
+	/**
+	 * Returns the body fetched for {@code imageUri} if the current thread runs a task handed over
+	 * by {@link #fetch}, downloads it otherwise.
+	 */
+	@Override
+	public ImageResponse getResponse(URI imageUri, CacheMetadata cached, long offset, String ifRange)
+			throws IOException {
+		final Handoff handoff = mHandoff.get();
+		if (handoff != null && !handoff.mTaken && handoff.mUrl.equals(imageUri.toString())
+				&& FetchConditions.matches(handoff.mConditions, cached, offset, ifRange)) {
+			handoff.mTaken = true;
+			final Result result = handoff.mResult;
+			if (result.mError != null) {
+				throw result.mError;
+			}
+			if (result.mResponse != null) {
+				return result.mResponse;
+			}
+			if (result.mRedirect != null) {
+				return mFallback.getResponse(result.mRedirect, cached, 0, null);
+			}
+		}
+		return super.getResponse(imageUri, cached, offset, ifRange);
+	}
+
+	@Override
+	protected InputStream getStreamFromNetwork(URI imageUri) throws IOException {
+		return getResponseFromNetwork(imageUri, null, 0, null).getStream();
+	}
+
+	@Override
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached, long offset,
+			String ifRange) throws IOException {
+		if (!isSupported(imageUri)) {
+			return mFallback.getResponse(imageUri, cached, offset, ifRange);
+		}
+		final BlockingListener listener = new BlockingListener();
+		final Exchange exchange = new Exchange(imageUri, cached, offset, ifRange, listener, null);
+		cancelOnSignal(exchange);
+		submit(exchange);
+		final Result result = listener.await(exchange);
+		if (result.mError != null) {
+			throw result.mError;
+		}
+		if (result.mRedirect != null) {
+			return mFallback.getResponse(result.mRedirect, cached, 0, null);
+		}
+		return result.mResponse;
+	}
+
+	private void runWith(String url, FetchConditions conditions, Result result, Runnable task) {
+		final Handoff handoff = new Handoff(url, conditions, result);
+		mHandoff.set(handoff);
+		try {
+			task.run();
+		} finally {
+			mHandoff.set(null);
+			if (!handoff.mTaken && result.mResponse != null) {
+				closeQuietly(result.mResponse.getStream());
+			}
+		}
+	}
+
+	/**
+	 * Lets a {@link CancellationSignal} bound to this thread cancel {@code exchange}. In
+	 * {@link #fetch} that is the signal of the request whose task waits for the exchange.
+	 */
+	private static void cancelOnSignal(final Exchange exchange) {
+		CancellationSignal.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				exchange.cancel();
+			}
+		});
+	}
+
+	private static boolean isSupported(URI uri) {
+		return PROTOCOL_HTTP.equals(uri.getScheme()) && uri.getHost() != null;
+	}
+
+	private byte[] buildRequest(URI uri, CacheMetadata cached, long offset, String ifRange)
+			throws IOException {
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		if (uri.getRawQuery() != null) {
+			path += "?" + uri.getRawQuery();
+		}
+		StringBuilder request = new StringBuilder(256);
+		request.append("GET ").append(path).append(" HTTP/1.1").append(CRLF);
+		request.append("Host: ").append(uri.getHost());
+		if (uri.getPort() != -1) {
+			request.append(':').append(uri.getPort());
+		}
+		request.append(CRLF);
+		request.append("Connection: close").append(CRLF);
+		request.append(HEADER_ACCEPT).append(": ").append(getAccept()).append(CRLF);
+		request.append(HEADER_ACCEPT_ENCODING).append(": ").append(getAcceptEncoding(ifRange != null))
+				.append(CRLF);
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				request.append(HEADER_IF_NONE_MATCH).append(": ").append(cached.getETag()).append(CRLF);
+			}
+			if (cached.getLastModified() != null) {
+				request.append(HEADER_IF_MODIFIED_SINCE).append(": ").append(cached.getLastModified())
+						.append(CRLF);
+			}
+		}
+		if (ifRange != null) {
+			request.append(HEADER_RANGE).append(": bytes=").append(offset).append('-').append(CRLF);
+			request.append(HEADER_IF_RANGE).append(": ").append(ifRange).append(CRLF);
+		}
+		request.append(CRLF);
+		return request.toString().getBytes("ISO-8859-1");
+	}
+
+	/**
+	 * Resolves the host of {@code exchange} on a resolver thread and then queues it for the
+	 * selector thread, so that a slow lookup holds up neither the caller, which may be the
+	 * selector following a redirect or the dispatcher of the network queue, nor any other exchange.
+	 */
+	private void submit(final Exchange exchange) throws IOException {
+		final Executor resolver;
+		synchronized (mLock) {
+			if (mSelector == null) {
+				mSelector = Selector.open();
+				mThread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						loop();
+					}
+				}, TAG);
+				mThread.setDaemon(true);
+				mThread.start();
+				mResolver = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 0,
+						TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+							private final AtomicInteger mCount = new AtomicInteger(1);
+
+							@Override
+							public Thread newThread(Runnable r) {
+								final Thread thread = new Thread(r, TAG + " resolver #" + mCount.getAndIncrement());
+								thread.setDaemon(true);
+								return thread;
+							}
+						});
+			}
+			resolver = mResolver;
+		}
+		resolver.execute(new Runnable() {
+			@Override
+			public void run() {
+				resolve(exchange);
+			}
+		});
+	}
+
+	private void resolve(Exchange exchange) {
+		final URI uri = exchange.mUri;
+		if (exchange.isCancelled()) {
+			exchange.mListener.onComplete(new Result(null, new InterruptedIOException("cancelled"), null));
+			return;
+		}
+		final InetSocketAddress address = new InetSocketAddress(uri.getHost(),
+				uri.getPort() != -1 ? uri.getPort() : 80);
+		if (address.isUnresolved()) {
+			exchange.mListener.onComplete(new Result(null, new UnknownHostException(uri.getHost()), null));
+			return;
+		}
+		exchange.mAddress = address;
+		final Selector selector;
+		synchronized (mLock) {
+			mPending.addLast(exchange);
+			selector = mSelector;
+		}
+		selector.wakeup();
+	}
+
+	private void loop() {
+		final Selector selector = mSelector;
+		while (true) {
+			startPending(selector);
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				GLog.printStackTrace(TAG, e);
+				continue;
+			}
+			for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+				final SelectionKey key = i.next();
+				i.remove();
+				final Exchange exchange = (Exchange) key.attachment();
+				try {
+					if (key.isValid() && key.isConnectable()) {
+						exchange.finishConnect(key);
+					}
+					if (key.isValid() && key.isWritable()) {
+						exchange.write(key);
+					}
+					if (key.isValid() && key.isReadable()) {
+						exchange.read();
+					}
+				} catch (IOException e) {
+					finish(exchange, new Result(null, e, null));
+				}
+			}
+			expire();
+		}
+	}
+
+	private void startPending(Selector selector) {
+		while (true) {
+			final Exchange exchange;
+			synchronized (mLock) {
+				if (mPending.isEmpty() || mActive.size() >= mMaxConnections) {
+					return;
+				}
+				exchange = mPending.removeFirst();
+				if (exchange.isCancelled()) {
+					exchange.mListener.onComplete(new Result(null,
+							new InterruptedIOException("cancelled"), null));
+					continue;
+				}
+				mActive.add(exchange);
+			}
+			try {
+				exchange.connect(selector);
+			} catch (IOException e) {
+				finish(exchange, new Result(null, e, null));
+			}
+		}
+	}
+
+	/**
+	 * Fails exchanges that were cancelled or made no progress within their timeout.
+	 */
+	private void expire() {
+		final long now = SystemClock.uptimeMillis();
+		final List<Exchange> active;
+		synchronized (mLock) {
+			active = new ArrayList<Exchange>(mActive);
+		}
+		for (Exchange exchange : active) {
+			if (exchange.isCancelled()) {
+				finish(exchange, new Result(null, new InterruptedIOException("cancelled"), null));
+			} else if (now > exchange.mDeadline) {
+				finish(exchange, new Result(null,
+						new SocketTimeoutException("timed out : " + exchange.mUri), null));
+			}
+		}
+	}
+
+	private void finish(Exchange exchange, Result result) {
+		synchronized (mLock) {
+			if (!mActive.remove(exchange)) {
+				return;
+			}
+		}
+		exchange.close();
+		exchange.mListener.onComplete(result);
+	}
+
+	/**
+	 * Turns a complete exchange into its result, following redirects to other plain http urls.
+	 */
+	private void complete(Exchange exchange) {
+		final int code = exchange.mCode;
+		final String location = exchange.getHeader("Location");
+		if (code >= HttpURLConnection.HTTP_MULT_CHOICE && code < HttpURLConnection.HTTP_BAD_REQUEST
+				&& code != HttpURLConnection.HTTP_NOT_MODIFIED && location != null) {
+			synchronized (mLock) {
+				mActive.remove(exchange);
+			}
+			exchange.close();
+			if (exchange.mRedirects >= MAX_REDIRECTS) {
+				exchange.mListener.onComplete(new Result(null,
+						new HttpStatusException(code, exchange.mUri.toString()), null));
+				return;
+			}
+			final URI target;
+			try {
+				target = exchange.mUri.resolve(location);
+			} catch (IllegalArgumentException e) {
+				exchange.mListener.onComplete(new Result(null,
+						new IOException("invalid redirect " + location), null));
+				return;
+			}
+			if (!isSupported(target)) {
+				exchange.mListener.onComplete(new Result(null, null, target));
+				return;
+			}
+			try {
+				// the same conditions and the same cancellation carry over to the new location
+				submit(new Exchange(target, exchange.mCached, exchange.mOffset, exchange.mIfRange,
+						exchange.mListener, exchange));
+			} catch (IOException e) {
+				exchange.mListener.onComplete(new Result(null, e, null));
+			}
+			return;
+		}
+		final CacheMetadata metadata = CacheMetadata.fromHeaders(exchange.getHeader(HEADER_ETAG),
+				exchange.getHeader(HEADER_LAST_MODIFIED), exchange.getHeader(HEADER_CACHE_CONTROL),
+				exchange.getHeader(HEADER_CONTENT_TYPE));
+		Result result;
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			result = new Result(new ImageResponse(code, null, metadata), null, null);
+		} else if (code >= HttpURLConnection.HTTP_MULT_CHOICE) {
+			result = new Result(null, new HttpStatusException(code, exchange.mUri.toString()), null);
+		} else {
+			final long start = code == HttpURLConnection.HTTP_PARTIAL
+					? parseContentRangeStart(exchange.getHeader(HEADER_CONTENT_RANGE)) : 0;
+			final String encoding = exchange.getHeader(HEADER_CONTENT_ENCODING);
+			try {
+				result = new Result(new ImageResponse(code,
+						decodeContent(new ByteArrayInputStream(exchange.mBody, 0, exchange.mBodyLength),
+								encoding),
+						metadata, start, isGzip(encoding) ? -1 : exchange.mBodyLength), null, null);
+			} catch (IOException e) {
+				result = new Result(null, e, null);
+			}
+		}
+		finish(exchange, result);
+	}
+
+	private static void closeQuietly(InputStream in) {
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private interface Listener {
+		/** Called once per exchange, on the selector thread or a resolver thread. */
+		void onComplete(Result result);
+	}
+
+	/**
+	 * Exactly one of response, error and redirect is set. A redirect points to a url that has to
+	 * be downloaded by the fallback downloader.
+	 */
+	private static class Result {
+		final ImageResponse mResponse;
+		final IOException mError;
+		final URI mRedirect;
+
+		Result(ImageResponse response, IOException error, URI redirect) {
+			mResponse = response;
+			mError = error;
+			mRedirect = redirect;
+		}
+	}
+
+	private static class Handoff {
+		final String mUrl;
+		final FetchConditions mConditions;
+		final Result mResult;
+		boolean mTaken;
+
+		Handoff(String url, FetchConditions conditions, Result result) {
+			mUrl = url;
+			mConditions = conditions;
+			mResult = result;
+		}
+	}
+
+	/**
+	 * Shared by an exchange and the ones following its redirects, so that cancelling the first
+	 * one reaches whichever is running.
+	 */
+	private static class CancelFlag {
+		volatile boolean mCancelled;
+	}
+
+	private static class BlockingListener implements Listener {
+		private Result mResult;
+
+		@Override
+		public synchronized void onComplete(Result result) {
+			mResult = result;
+			notifyAll();
+		}
+
+		synchronized Result await(Exchange exchange) throws InterruptedIOException {
+			while (mResult == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					exchange.cancel();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("download cancelled");
+				}
+			}
+			return mResult;
+		}
+	}
+
+	/**
+	 * One request and its response over its own connection. Apart from {@link #cancel()} it is
+	 * only touched by the selector thread.
+	 */
+	private class Exchange {
+		private static final int CHUNK_SIZE = 0;
+		private static final int CHUNK_DATA = 1;
+		private static final int CHUNK_CRLF = 2;
+		private static final int CHUNK_TRAILER = 3;
+
+		final URI mUri;
+		final CacheMetadata mCached;
+		final long mOffset;
+		final String mIfRange;
+		final Listener mListener;
+		final int mRedirects;
+		final ByteBuffer mRequest;
+		InetSocketAddress mAddress;
+		private final CancelFlag mCancel;
+
+		private SocketChannel mChannel;
+		private long mDeadline;
+
+		private byte[] mHead = new byte[512];
+		private int mHeadLength;
+		private boolean mHeadDone;
+		int mCode;
+		private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+		private long mContentLength = -1;
+		private boolean mChunked;
+		private boolean mUntilClose;
+		private int mChunkState = CHUNK_SIZE;
+		private long mChunkRemaining;
+		private final StringBuilder mLine = new StringBuilder();
+		byte[] mBody = new byte[0];
+		int mBodyLength;
+		private boolean mDone;
+
+		/**
+		 * @param redirectedFrom the exchange whose redirect this one follows, or null
+		 */
+		Exchange(URI uri, CacheMetadata cached, long offset, String ifRange, Listener listener,
+				Exchange redirectedFrom) throws IOException {
+			mUri = uri;
+			mCached = cached;
+			mOffset = offset;
+			mIfRange = ifRange;
+			mRequest = ByteBuffer.wrap(buildRequest(uri, cached, offset, ifRange));
+			mListener = listener;
+			mRedirects = redirectedFrom != null ? redirectedFrom.mRedirects + 1 : 0;
+			mCancel = redirectedFrom != null ? redirectedFrom.mCancel : new CancelFlag();
+		}
+
+		boolean isCancelled() {
+			return mCancel.mCancelled;
+		}
+
+		void cancel() {
+			mCancel.mCancelled = true;
+			final Selector selector = mSelector;
+			if (selector != null) {
+				selector.wakeup();
+			}
+		}
+
+		String getHeader(String name) {
+			return mHeaders.get(name.toLowerCase());
+		}
+
+		void connect(Selector selector) throws IOException {
+			mChannel = SocketChannel.open();
+			mChannel.configureBlocking(false);
+			mChannel.socket().setTcpNoDelay(true);
+			mDeadline = SystemClock.uptimeMillis() + mConnectTimeout;
+			if (mChannel.connect(mAddress)) {
+				onConnected();
+				mChannel.register(selector, SelectionKey.OP_WRITE, this);
+			} else {
+				mChannel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		}
+
+		void finishConnect(SelectionKey key) throws IOException {
+			if (mChannel.finishConnect()) {
+				onConnected();
+				key.interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+
+		private void onConnected() {
+			mDeadline = SystemClock.uptimeMillis() + mReadTimeout;
+		}
+
+		void write(SelectionKey key) throws IOException {
+			mChannel.write(mRequest);
+			if (!mRequest.hasRemaining()) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			mDeadline = SystemClock.uptimeMillis() + mReadTimeout;
+		}
+
+		void read() throws IOException {
+			final ByteBuffer buffer = mReadBuffer;
+			buffer.clear();
+			final int read = mChannel.read(buffer);
+			if (read < 0) {
+				if (mHeadDone && mUntilClose) {
+					mDone = true;
+				} else {
+					throw new IOException("unexpected end of stream : " + mUri);
+				}
+			} else if (read > 0) {
+				mDeadline = SystemClock.uptimeMillis() + mReadTimeout;
+				consume(buffer.array(), 0, read);
+			}
+			if (mDone) {
+				complete(this);
+			}
+		}
+
+		void close() {
+			if (mChannel != null) {
+				try {
+					mChannel.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		private void consume(byte[] bytes, int offset, int count) throws IOException {
+			int i = offset;
+			final int end = offset + count;
+			while (!mHeadDone && i < end) {
+				if (mHeadLength == mHead.length) {
+					if (mHeadLength >= MAX_HEAD_LENGTH) {
+						throw new IOException("response head too long : " + mUri);
+					}
+					final byte[] head = new byte[mHeadLength * 2];
+					System.arraycopy(mHead, 0, head, 0, mHeadLength);
+					mHead = head;
+				}
+				mHead[mHeadLength++] = bytes[i++];
+				if (endsHead()) {
+					parseHead();
+				}
+			}
+			if (mHeadDone && !mDone && i < end) {
+				consumeBody(bytes, i, end - i);
+			}
+		}
+
+		private boolean endsHead() {
+			final int n = mHeadLength;
+			return n >= 2 && mHead[n - 1] == '\n'
+					&& (mHead[n - 2] == '\n' || n >= 4 && mHead[n - 2] == '\r' && mHead[n - 3] == '\n');
+		}
+
+		private void parseHead() throws IOException {
+			final String[] lines = new String(mHead, 0, mHeadLength, "ISO-8859-1").split("\r?\n");
+			final String statusLine = lines[0];
+			final int codeStart = statusLine.indexOf(' ');
+			if (!statusLine.startsWith("HTTP/") || codeStart < 0 || statusLine.length() < codeStart + 4) {
+				throw new IOException("unexpected status line: " + statusLine);
+			}
+			final int code;
+			try {
+				code = Integer.parseInt(statusLine.substring(codeStart + 1, codeStart + 4));
+			} catch (NumberFormatException e) {
+				throw new IOException("unexpected status line: " + statusLine);
+			}
+			mHeadLength = 0;
+			if (code / 100 == 1) {
+				// interim response, the real one follows
+				return;
+			}
+			mCode = code;
+			for (int i = 1; i < lines.length; i++) {
+				final int colon = lines[i].indexOf(':');
+				if (colon > 0) {
+					mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(),
+							lines[i].substring(colon + 1).trim());
+				}
+			}
+			mHeadDone = true;
+			mHead = null;
+			if (code == HttpURLConnection.HTTP_NO_CONTENT || code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				mDone = true;
+			} else if ("chunked".equalsIgnoreCase(mHeaders.get("transfer-encoding"))) {
+				mChunked = true;
+			} else if (mHeaders.containsKey("content-length")) {
+				mContentLength = parseContentLength(mHeaders.get("content-length"));
+				if (mContentLength < 0) {
+					throw new IOException("invalid content-length " + mHeaders.get("content-length"));
+				}
+				ensureCapacity(mContentLength);
+				mDone = mContentLength == 0;
+			} else {
+				mUntilClose = true;
+			}
+		}
+
+		private void consumeBody(byte[] bytes, int offset, int count) throws IOException {
+			if (!mChunked) {
+				final int n = mUntilClose ? count : (int) Math.min(count, mContentLength - mBodyLength);
+				append(bytes, offset, n);
+				mDone = !mUntilClose && mBodyLength == mContentLength;
+				return;
+			}
+			int i = offset;
+			final int end = offset + count;
+			while (i < end && !mDone) {
+				if (mChunkState == CHUNK_DATA) {
+					final int n = (int) Math.min(end - i, mChunkRemaining);
+					append(bytes, i, n);
+					i += n;
+					mChunkRemaining -= n;
+					if (mChunkRemaining == 0) {
+						mChunkState = CHUNK_CRLF;
+					}
+					continue;
+				}
+				final char c = (char) (bytes[i++] & 0xff);
+				if (c != '\n') {
+					if (mLine.length() >= MAX_LINE_LENGTH) {
+						throw new IOException("chunk line too long : " + mUri);
+					}
+					mLine.append(c);
+					continue;
+				}
+				String line = mLine.toString().trim();
+				mLine.setLength(0);
+				if (mChunkState == CHUNK_CRLF) {
+					mChunkState = CHUNK_SIZE;
+				} else if (mChunkState == CHUNK_SIZE) {
+					final int extension = line.indexOf(';');
+					if (extension >= 0) {
+						line = line.substring(0, extension).trim();
+					}
+					try {
+						mChunkRemaining = Long.parseLong(line, 16);
+					} catch (NumberFormatException e) {
+						throw new IOException("invalid chunk size " + line);
+					}
+					if (mChunkRemaining < 0) {
+						throw new IOException("invalid chunk size " + line);
+					}
+					mChunkState = mChunkRemaining == 0 ? CHUNK_TRAILER : CHUNK_DATA;
+				} else if (line.length() == 0) {
+					// the empty line after the trailers
+					mDone = true;
+				}
+			}
+		}
+
+		private void append(byte[] bytes, int offset, int count) throws IOException {
+			ensureCapacity((long) mBodyLength + count);
+			System.arraycopy(bytes, offset, mBody, mBodyLength, count);
+			mBodyLength += count;
+		}
+
+		private void ensureCapacity(long length) throws IOException {
+			if (mMaxContentLength > 0 && length > mMaxContentLength || length > Integer.MAX_VALUE) {
+				throw new IOException("content length " + length + " exceeds " + mMaxContentLength
+						+ " : " + mUri);
+			}
+			if (length <= mBody.length) {
+				return;
+			}
+			final int capacity = (int) Math.max(length, Math.min((long) mBody.length * 2,
+					mMaxContentLength > 0 ? mMaxContentLength : Integer.MAX_VALUE));
+			final byte[] body = new byte[Math.max(capacity, BUFFER_SIZE)];
+			System.arraycopy(mBody, 0, body, 0, mBodyLength);
+			mBody = body;
+		}
+	}
+}
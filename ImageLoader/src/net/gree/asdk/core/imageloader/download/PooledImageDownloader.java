@@ -0,0 +1,190 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+
+/**
+ * Downloads images over persistent HTTP/1.1 connections kept in a {@link HttpConnectionPool}.
+ * Response bodies are drained when their stream is closed, so the socket can serve the next image
+ * from the same host without a new handshake.
+ */
+public class PooledImageDownloader extends ImageDownloader {
+	/** {@value} */
+	public static final int DEFAULT_HTTP_CONNECT_TIMEOUT = 5 * 1000; // milliseconds
+	/** {@value} */
+	public static final int DEFAULT_HTTP_READ_TIMEOUT = 20 * 1000; // milliseconds
+
+	private static final int MAX_REDIRECTS = 5;
+	private static final int HTTP_TEMPORARY_REDIRECT = 307;
+	private static final int HTTP_PERMANENT_REDIRECT = 308;
+
+	private final int connectTimeout;
+	private final int readTimeout;
+	private final HttpConnectionPool mPool;
+
+	public PooledImageDownloader() {
+		this(DEFAULT_HTTP_CONNECT_TIMEOUT, DEFAULT_HTTP_READ_TIMEOUT, new HttpConnectionPool());
+	}
+
+	public PooledImageDownloader(int connectTimeout, int readTimeout, HttpConnectionPool pool) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+		mPool = pool;
+	}
+
+	/**
+	 * @return the pool holding the idle connections and their reuse counters
+	 */
+	public HttpConnectionPool getConnectionPool() {
+		return mPool;
+	}
+
+	@Override
+	protected InputStream getStreamFromNetwork(URI imageUri) throws IOException {
+		return getResponseFromNetwork(imageUri, null, 0, null).getStream();
+	}
+
+	@Override
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached, long offset,
+			String ifRange) throws IOException {
+		URI uri = imageUri;
+		for (int redirects = 0; ; redirects++) {
+			Map<String, String> headers = getRequestHeaders(uri, cached);
+			if (ifRange != null) {
+				headers.put(HEADER_ACCEPT_ENCODING, getAcceptEncoding(true));
+				headers.put(HEADER_RANGE, "bytes=" + offset + "-");
+				headers.put(HEADER_IF_RANGE, ifRange);
+			}
+			HttpConnection.Response response = execute(uri, headers);
+			int code = response.mCode;
+			String location = response.getHeader("Location");
+			if (isRedirect(code) && location != null && redirects < MAX_REDIRECTS) {
+				response.mBody.close();
+				uri = uri.resolve(location);
+				continue;
+			}
+			CacheMetadata metadata = CacheMetadata.fromHeaders(response.getHeader(HEADER_ETAG),
+					response.getHeader(HEADER_LAST_MODIFIED), response.getHeader(HEADER_CACHE_CONTROL),
+					response.getHeader(HEADER_CONTENT_TYPE));
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				response.mBody.close();
+				return new ImageResponse(code, null, metadata);
+			}
+			if (code >= HttpURLConnection.HTTP_BAD_REQUEST || isRedirect(code)) {
+				response.mBody.close();
+				throw new HttpStatusException(code, uri.toString());
+			}
+			long start = code == HttpURLConnection.HTTP_PARTIAL
+					? parseContentRangeStart(response.getHeader(HEADER_CONTENT_RANGE)) : 0;
+			String encoding = response.getHeader(HEADER_CONTENT_ENCODING);
+			return new ImageResponse(code, decodeContent(response.mBody, encoding), metadata, start,
+					isGzip(encoding) ? -1 : parseContentLength(response.getHeader(HEADER_CONTENT_LENGTH)));
+		}
+	}
+
+	/**
+	 * Builds the headers of a request for {@code uri}. Successors may add their own.
+	 */
+	protected Map<String, String> getRequestHeaders(URI uri, CacheMetadata cached) {
+		Map<String, String> headers = new LinkedHashMap<String, String>();
+		headers.put("Host", getHostHeader(uri));
+		headers.put("Connection", "keep-alive");
+		headers.put(HEADER_ACCEPT, getAccept());
+		headers.put(HEADER_ACCEPT_ENCODING, getAcceptEncoding(false));
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				headers.put(HEADER_IF_NONE_MATCH, cached.getETag());
+			}
+			if (cached.getLastModified() != null) {
+				headers.put(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Sends the request over a pooled connection if there is one. A pooled connection may have
+	 * been closed by the server in the meantime: if it ends or is reset before any byte of the
+	 * response arrived, the request is sent once more over a new connection. Other failures, like
+	 * a read timeout, are not retried.
+	 */
+	private HttpConnection.Response execute(URI uri, Map<String, String> headers) throws IOException {
+		final boolean secure = PROTOCOL_HTTPS.equals(uri.getScheme());
+		final String host = uri.getHost();
+		if (host == null) {
+			throw new IOException("no host in " + uri);
+		}
+		final int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+		final String route = uri.getScheme() + "://" + host + ":" + port;
+		final String path = getRequestPath(uri);
+
+		HttpConnection connection = mPool.get(route);
+		if (connection != null) {
+			try {
+				connection.writeRequest(path, headers);
+				abortOnCancel(connection);
+				return connection.readResponse(mPool);
+			} catch (HttpConnection.NoResponseException e) {
+				connection.close();
+			} catch (IOException e) {
+				connection.close();
+				throw e;
+			}
+		}
+		// the abort of a cancelled request also ends the pooled connection
+		CancellationSignal.throwIfCancelled();
+		connection = HttpConnection.open(route, secure, host, port, connectTimeout, readTimeout);
+		mPool.onConnected();
+		try {
+			connection.writeRequest(path, headers);
+			abortOnCancel(connection);
+			return connection.readResponse(mPool);
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Lets a {@link CancellationSignal} bound to this thread close the connection while it is busy
+	 * with the request just sent.
+	 */
+	private static void abortOnCancel(final HttpConnection connection) {
+		final int useCount = connection.getUseCount();
+		CancellationSignal.onCancel(new Runnable() {
+			@Override
+			public void run() {
+				connection.abort(useCount);
+			}
+		});
+	}
+
+	private static boolean isRedirect(int code) {
+		return code == HttpURLConnection.HTTP_MOVED_PERM || code == HttpURLConnection.HTTP_MOVED_TEMP
+				|| code == HttpURLConnection.HTTP_SEE_OTHER || code == HTTP_TEMPORARY_REDIRECT
+				|| code == HTTP_PERMANENT_REDIRECT;
+	}
+
+	private static String getRequestPath(URI uri) {
+		String path = uri.getRawPath();
+		if (path == null || path.length() == 0) {
+			path = "/";
+		}
+		String query = uri.getRawQuery();
+		return query != null ? path + "?" + query : path;
+	}
+
+	private static String getHostHeader(URI uri) {
+		int port = uri.getPort();
+		boolean defaultPort = port == -1
+				|| (PROTOCOL_HTTP.equals(uri.getScheme()) && port == 80)
+				|| (PROTOCOL_HTTPS.equals(uri.getScheme()) && port == 443);
+		return defaultPort ? uri.getHost() : uri.getHost() + ":" + port;
+	}
+}
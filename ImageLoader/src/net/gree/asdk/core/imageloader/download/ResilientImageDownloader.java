@@ -0,0 +1,256 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+import net.gree.asdk.core.imageloader.concurrent.FetchingTaskExecutor;
+import net.gree.asdk.core.imageloader.log.GLog;
+
+/**
+ * Wraps another downloader with retries and a per-host {@link CircuitBreaker}. Transient failures,
+ * i.e. I/O errors, timeouts and 408, 429 and 5xx responses, are retried after an exponential
+ * backoff with full jitter. Requests to a host whose circuit is open fail at once with a
+ * {@link CircuitOpenException} instead of waiting for the connect and read timeouts.
+ * <p>
+ * A retry waits out its backoff on the thread of the request, which keeps its download slot, and
+ * its host slot, meanwhile. The wait is short and bounded by {@code maxDelay} per retry. Giving
+ * the slot back would let the retry start behind every request queued in the meantime.
+ * <p>
+ * If the wrapped downloader is a {@link FetchingTaskExecutor.Fetcher} this one fetches through it
+ * as well: a fetch is only started if the circuit lets it through, and its result counts as the
+ * first attempt of the task, the retries after a failed fetch are downloaded by the task.
+ */
+public class ResilientImageDownloader extends ImageDownloader implements FetchingTaskExecutor.Fetcher {
+	private static final String TAG = ResilientImageDownloader.class.getSimpleName();
+
+	public static final int DEFAULT_MAX_RETRIES = 2;
+	public static final long DEFAULT_BASE_DELAY = 250; // milliseconds
+	public static final long DEFAULT_MAX_DELAY = 4 * 1000; // milliseconds
+
+	private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+	private final ImageDownloader mDelegate;
+	private final CircuitBreaker mCircuitBreaker;
+	private final int mMaxRetries;
+	private final long mBaseDelay;
+	private final long mMaxDelay;
+	private final Random mRandom = new Random();
+	/** The fetch that was let through for the task running on this thread. */
+	private final ThreadLocal<Fetched> mFetched = new ThreadLocal<Fetched>();
+
+	public ResilientImageDownloader(ImageDownloader delegate) {
+		this(delegate, DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, new CircuitBreaker());
+	}
+
+	/**
+	 * @param maxRetries attempts after the first one, 0 to only use the circuit breaker
+	 * @param baseDelay upper bound of the first backoff, doubled for every further retry
+	 * @param maxDelay upper bound of any backoff
+	 */
+	public ResilientImageDownloader(ImageDownloader delegate, int maxRetries, long baseDelay,
+			long maxDelay, CircuitBreaker circuitBreaker) {
+		mDelegate = delegate;
+		mMaxRetries = Math.max(0, maxRetries);
+		mBaseDelay = baseDelay;
+		mMaxDelay = maxDelay;
+		mCircuitBreaker = circuitBreaker;
+	}
+
+	public CircuitBreaker getCircuitBreaker() {
+		return mCircuitBreaker;
+	}
+
+	public ImageDownloader getDelegate() {
+		return mDelegate;
+	}
+
+	/**
+	 * Fetches through the wrapped downloader if it is a {@link FetchingTaskExecutor.Fetcher} and
+	 * the circuit of the host is closed or lets this fetch through as its probe. Otherwise the task
+	 * is run at once, and fails at once if the circuit is open.
+	 */
+	@Override
+	public void fetch(final String url, final Runnable task, Executor executor) {
+		final String host = getNetworkHost(url);
+		if (!(mDelegate instanceof FetchingTaskExecutor.Fetcher) || host == null
+				|| !mCircuitBreaker.allowRequest(host)) {
+			executor.execute(task);
+			return;
+		}
+		final boolean probe = mCircuitBreaker.isOpen(host);
+		((FetchingTaskExecutor.Fetcher) mDelegate).fetch(url, new Runnable() {
+			@Override
+			public void run() {
+				final Fetched fetched = new Fetched(url);
+				mFetched.set(fetched);
+				try {
+					task.run();
+				} finally {
+					mFetched.set(null);
+					if (!fetched.mTaken && probe) {
+						// the task never asked, the fetch tells nothing about the host
+						mCircuitBreaker.onAbandoned(host);
+					}
+				}
+			}
+		}, executor);
+	}
+
+	@Override
+	public void setAccept(String accept) {
+		mDelegate.setAccept(accept);
+	}
+
+	@Override
+	public String getAccept() {
+		return mDelegate.getAccept();
+	}
+
+	@Override
+	public InputStream getStream(URI imageUri) throws IOException {
+		if (!isNetworkUri(imageUri)) {
+			return mDelegate.getStream(imageUri);
+		}
+		return getResponse(imageUri, null, 0, null).getStream();
+	}
+
+	@Override
+	public ImageResponse getResponse(URI imageUri, CacheMetadata cached, long offset, String ifRange)
+			throws IOException {
+		if (!isNetworkUri(imageUri)) {
+			return mDelegate.getResponse(imageUri, cached, offset, ifRange);
+		}
+		final String host = imageUri.getHost();
+		// a fetched result already went through the circuit, it is not thrown away if it opened
+		final Fetched fetched = mFetched.get();
+		boolean admitted = fetched != null && !fetched.mTaken
+				&& fetched.mUrl.equals(imageUri.toString());
+		if (admitted) {
+			fetched.mTaken = true;
+		}
+		for (int attempt = 0; ; attempt++) {
+			CancellationSignal.throwIfCancelled();
+			if (!admitted && !mCircuitBreaker.allowRequest(host)) {
+				throw new CircuitOpenException(host);
+			}
+			admitted = false;
+			try {
+				ImageResponse response = mDelegate.getResponse(imageUri, cached, offset, ifRange);
+				mCircuitBreaker.onSuccess(host);
+				return response;
+			} catch (IOException e) {
+				if (!isTransient(e)) {
+					if (isHostFailure(e)) {
+						mCircuitBreaker.onFailure(host);
+					} else if (e instanceof HttpStatusException) {
+						// the host answered, so it is healthy
+						mCircuitBreaker.onSuccess(host);
+					} else {
+						mCircuitBreaker.onAbandoned(host);
+					}
+					throw e;
+				}
+				mCircuitBreaker.onFailure(host);
+				if (attempt >= mMaxRetries || mCircuitBreaker.isOpen(host)) {
+					throw e;
+				}
+				final long delay = getBackoff(attempt);
+				if (GLog.isLoggable(GLog.DEBUG)) {
+					GLog.d(TAG, "retry " + (attempt + 1) + " in " + delay + "ms : " + imageUri + " "
+							+ e);
+				}
+				// the request keeps its download slot while it waits, see the class comment
+				sleep(delay);
+			}
+		}
+	}
+
+	@Override
+	protected InputStream getStreamFromNetwork(URI imageUri) throws IOException {
+		return getResponse(imageUri, null, 0, null).getStream();
+	}
+
+	/**
+	 * @return true if the same request may succeed when it is sent again
+	 */
+	protected boolean isTransient(IOException e) {
+		if (e instanceof HttpStatusException) {
+			final int code = ((HttpStatusException) e).getStatusCode();
+			return code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == HTTP_TOO_MANY_REQUESTS
+					|| code >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+		}
+		if (e instanceof CircuitOpenException) {
+			return false;
+		}
+		if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+			// the request was cancelled
+			return false;
+		}
+		final CancellationSignal signal = CancellationSignal.current();
+		if (signal != null && signal.isCancelled()) {
+			return false;
+		}
+		return !Thread.currentThread().isInterrupted();
+	}
+
+	/**
+	 * @return true if a failure that is not retried still says the host is unhealthy
+	 */
+	private static boolean isHostFailure(IOException e) {
+		return e instanceof HttpStatusException
+				&& ((HttpStatusException) e).getStatusCode() >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+	}
+
+	private long getBackoff(int attempt) {
+		final long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt, 16));
+		synchronized (mRandom) {
+			return (long) (mRandom.nextDouble() * ceiling);
+		}
+	}
+
+	private static void sleep(long delay) throws InterruptedIOException {
+		try {
+			Thread.sleep(delay);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("retry cancelled");
+		}
+	}
+
+	private static boolean isNetworkUri(URI uri) {
+		final String scheme = uri.getScheme();
+		return (PROTOCOL_HTTP.equals(scheme) || PROTOCOL_HTTPS.equals(scheme)) && uri.getHost() != null;
+	}
+
+	/**
+	 * @return the host of {@code url} if it is an http or https url, null otherwise
+	 */
+	private static String getNetworkHost(String url) {
+		if (url == null) {
+			return null;
+		}
+		try {
+			final URI uri = new URI(url);
+			return isNetworkUri(uri) ? uri.getHost() : null;
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private static class Fetched {
+		final String mUrl;
+		boolean mTaken;
+
+		Fetched(String url) {
+			mUrl = url;
+		}
+	}
+}
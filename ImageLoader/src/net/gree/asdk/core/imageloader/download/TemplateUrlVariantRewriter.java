@@ -0,0 +1,60 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Builds variant urls from a template, e.g. {@code "{url}?w={width}&h={height}"} for a CDN that
+ * resizes on request. Only urls starting with the given prefix are rewritten.
+ */
+public class TemplateUrlVariantRewriter implements UrlVariantRewriter {
+	public static final String PLACEHOLDER_URL = "{url}";
+	public static final String PLACEHOLDER_WIDTH = "{width}";
+	public static final String PLACEHOLDER_HEIGHT = "{height}";
+
+	private final String mUrlPrefix;
+	private final String mTemplate;
+	private final List<int[]> mSizes = new ArrayList<int[]>();
+
+	/**
+	 * @param urlPrefix urls the CDN serves, e.g. {@code "https://cdn.example.com/"}
+	 * @param template the variant url, with placeholders for the original url and the size
+	 */
+	public TemplateUrlVariantRewriter(String urlPrefix, String template) {
+		mUrlPrefix = urlPrefix;
+		mTemplate = template;
+	}
+
+	/**
+	 * Adds a size the CDN serves.
+	 */
+	public synchronized TemplateUrlVariantRewriter addSize(int width, int height) {
+		mSizes.add(new int[] { width, height });
+		Collections.sort(mSizes, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] lhs, int[] rhs) {
+				long lhsArea = (long) lhs[0] * lhs[1];
+				long rhsArea = (long) rhs[0] * rhs[1];
+				return lhsArea < rhsArea ? -1 : (lhsArea == rhsArea ? 0 : 1);
+			}
+		});
+		return this;
+	}
+
+	@Override
+	public synchronized List<Variant> getVariants(String url) {
+		if (url == null || !url.startsWith(mUrlPrefix) || mSizes.isEmpty()) {
+			return null;
+		}
+		List<Variant> variants = new ArrayList<Variant>(mSizes.size());
+		for (int[] size : mSizes) {
+			String variantUrl = mTemplate.replace(PLACEHOLDER_URL, url)
+					.replace(PLACEHOLDER_WIDTH, String.valueOf(size[0]))
+					.replace(PLACEHOLDER_HEIGHT, String.valueOf(size[1]));
+			variants.add(new Variant(variantUrl, size[0], size[1]));
+		}
+		return variants;
+	}
+}
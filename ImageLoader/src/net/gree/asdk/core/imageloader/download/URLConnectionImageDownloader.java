@@ -4,9 +4,12 @@ import java.io.BufferedInputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URLConnection;
 
+import net.gree.asdk.core.imageloader.cache.CacheMetadata;
+
 /**
  * Default implementation of ImageDownloader. Uses {@link URLConnection} for image stream retrieving.
  * 
@@ -33,10 +36,62 @@ public class URLConnectionImageDownloader extends ImageDownloader {
 
 	@Override
 	public InputStream getStreamFromNetwork(URI imageUri) throws IOException {
+		return getResponseFromNetwork(imageUri, null, 0, null).getStream();
+	}
+
+	@Override
+	protected ImageResponse getResponseFromNetwork(URI imageUri, CacheMetadata cached, long offset,
+			String ifRange) throws IOException {
 		URLConnection conn = imageUri.toURL().openConnection();
 		conn.setConnectTimeout(connectTimeout);
 		conn.setReadTimeout(readTimeout);
-		return new FlushedInputStream(new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE));
+		// gzip is negotiated by the platform unless the encoding is set here
+		conn.setRequestProperty(HEADER_ACCEPT, getAccept());
+		if (cached != null) {
+			if (cached.getETag() != null) {
+				conn.setRequestProperty(HEADER_IF_NONE_MATCH, cached.getETag());
+			}
+			if (cached.getLastModified() != null) {
+				conn.setRequestProperty(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+			}
+		}
+		if (ifRange != null) {
+			// byte offsets refer to the unencoded image
+			conn.setRequestProperty(HEADER_ACCEPT_ENCODING, getAcceptEncoding(true));
+			conn.setRequestProperty(HEADER_RANGE, "bytes=" + offset + "-");
+			conn.setRequestProperty(HEADER_IF_RANGE, ifRange);
+		}
+		int statusCode = HttpURLConnection.HTTP_OK;
+		if (conn instanceof HttpURLConnection) {
+			final HttpURLConnection httpConn = (HttpURLConnection) conn;
+			CancellationSignal.onCancel(new Runnable() {
+				@Override
+				public void run() {
+					httpConn.disconnect();
+				}
+			});
+			statusCode = httpConn.getResponseCode();
+			if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+				ImageResponse response = new ImageResponse(statusCode, null, getMetadata(conn));
+				httpConn.disconnect();
+				return response;
+			}
+			if (statusCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+				httpConn.disconnect();
+				throw new HttpStatusException(statusCode, imageUri.toString());
+			}
+		}
+		long start = statusCode == HttpURLConnection.HTTP_PARTIAL
+				? parseContentRangeStart(conn.getHeaderField(HEADER_CONTENT_RANGE)) : 0;
+		return new ImageResponse(statusCode,
+				new FlushedInputStream(new BufferedInputStream(conn.getInputStream(), BUFFER_SIZE)),
+				getMetadata(conn), start, parseContentLength(conn.getHeaderField(HEADER_CONTENT_LENGTH)));
+	}
+
+	private static CacheMetadata getMetadata(URLConnection conn) {
+		return CacheMetadata.fromHeaders(conn.getHeaderField(HEADER_ETAG),
+				conn.getHeaderField(HEADER_LAST_MODIFIED), conn.getHeaderField(HEADER_CACHE_CONTROL),
+				conn.getHeaderField(HEADER_CONTENT_TYPE));
 	}
 	
 	/**
@@ -0,0 +1,32 @@
+package net.gree.asdk.core.imageloader.download;
+
+import java.util.List;
+
+/**
+ * Maps an image url to the urls of the sizes a CDN serves it in, so that the loader can fetch the
+ * smallest one that is still large enough for the view instead of scaling the original down.
+ */
+public interface UrlVariantRewriter {
+
+	/**
+	 * @return the variants of {@code url} from the smallest to the largest, or null if the url has
+	 *         no variants and has to be loaded as is
+	 */
+	List<Variant> getVariants(String url);
+
+	public static class Variant {
+		public final String mUrl;
+		public final int mWidth;
+		public final int mHeight;
+
+		public Variant(String url, int width, int height) {
+			mUrl = url;
+			mWidth = width;
+			mHeight = height;
+		}
+
+		public boolean covers(int width, int height) {
+			return mWidth >= width && mHeight >= height;
+		}
+	}
+}
@@ -16,19 +16,10 @@
 
 package net.gree.asdk.core.imageloader.log;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 
-import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 /*
@@ -51,50 +42,8 @@ public class GLog {
   public static final int INFO = 50;
   public static final int DEBUG = 75;
   public static final int VERBOSE = 100;
-  private static Handler mGLogHandler;
-  private static GreeLooperThread mGLogThread;
-  private static final int WRITE = 1;
-  private static final int FLUSH = 2;
-  static {
-    mGLogThread = new GreeLooperThread() {
-      @Override
-      protected void handleGreeMessage(Message msg) {
-        switch (msg.what) {
-          case WRITE:
-            String date = new SimpleDateFormat("yyyy/MM/dd:HH:mm:ss.SSS", Locale.US).format(new Date());
-            try {
-              GLogInfo info = (GLogInfo) msg.obj;
-              if (info == null) {
-                return;
-              }
-              String logLevel = noNull(info.mLevel);
-              String tag = noNull(info.mTag);
-              String message = noNull(info.mMessage);
-              logStream.write(date + "|" + logLevel + "|" + tag + "|" + message + "\n");
-              if (autoFlush) {
-                logStream.flush();
-              }
-            } catch (IOException ex) {
-              Log.e("GLog", ex.toString());
-            }
-            break;
-          case FLUSH:
-            try {
-              if (logStream != null && fileOutput) {
-                logStream.flush();
-              }
-            } catch (IOException ex) {
-              e("GLog", ex.toString());
-            }
-            break;
-          default:
-            break;
-        }
-      }
-    };
-    mGLogThread.start();
-    mGLogHandler = mGLogThread.getHandler();
-  }
+  /** The file output, null while there is none. */
+  private static volatile GLogFileSink sFileSink;
 
 
   /**
@@ -223,6 +172,103 @@ public class GLog {
     }
   }
 
+  /**
+   * @return whether messages of {@code level}, e.g. {@link #DEBUG}, are logged, to skip building
+   *         expensive messages
+   */
+  public static boolean isLoggable(int level) {
+    return GLog.sLevel.getCode() >= level;
+  }
+
+  /**
+   * Log as verbose mode, formatting the message only if it is logged
+   * 
+   * @param format message in which {} is replaced by {@code arg}
+   */
+  public static void v(String tag, String format, Object arg) {
+    if (GLog.sLevel.getCode() >= VERBOSE) {
+      v(tag, format(format, arg, null, 1));
+    }
+  }
+
+  public static void v(String tag, String format, Object arg1, Object arg2) {
+    if (GLog.sLevel.getCode() >= VERBOSE) {
+      v(tag, format(format, arg1, arg2, 2));
+    }
+  }
+
+  /**
+   * Log as debug mode, formatting the message only if it is logged
+   * 
+   * @param format message in which {} is replaced by {@code arg}
+   */
+  public static void d(String tag, String format, Object arg) {
+    if (GLog.sLevel.getCode() >= DEBUG) {
+      d(tag, format(format, arg, null, 1));
+    }
+  }
+
+  public static void d(String tag, String format, Object arg1, Object arg2) {
+    if (GLog.sLevel.getCode() >= DEBUG) {
+      d(tag, format(format, arg1, arg2, 2));
+    }
+  }
+
+  /**
+   * Log as info mode, formatting the message only if it is logged
+   * 
+   * @param format message in which {} is replaced by {@code arg}
+   */
+  public static void i(String tag, String format, Object arg) {
+    if (GLog.sLevel.getCode() >= INFO) {
+      i(tag, format(format, arg, null, 1));
+    }
+  }
+
+  public static void i(String tag, String format, Object arg1, Object arg2) {
+    if (GLog.sLevel.getCode() >= INFO) {
+      i(tag, format(format, arg1, arg2, 2));
+    }
+  }
+
+  /**
+   * Log as warning mode, formatting the message only if it is logged
+   * 
+   * @param format message in which {} is replaced by {@code arg}
+   */
+  public static void w(String tag, String format, Object arg) {
+    if (GLog.sLevel.getCode() >= WARN) {
+      w(tag, format(format, arg, null, 1));
+    }
+  }
+
+  public static void w(String tag, String format, Object arg1, Object arg2) {
+    if (GLog.sLevel.getCode() >= WARN) {
+      w(tag, format(format, arg1, arg2, 2));
+    }
+  }
+
+  /**
+   * Replaces the first {@code count} occurrences of {} in {@code format} by the arguments, in
+   * order; without varargs, so that no array is allocated when the level is off.
+   */
+  static String format(String format, Object arg1, Object arg2, int count) {
+    if (format == null) {
+      return null;
+    }
+    final StringBuilder builder = new StringBuilder(format.length() + 32);
+    int start = 0;
+    for (int i = 0; i < count; i++) {
+      final int placeholder = format.indexOf("{}", start);
+      if (placeholder < 0) {
+        break;
+      }
+      builder.append(format, start, placeholder).append(i == 0 ? arg1 : arg2);
+      start = placeholder + 2;
+    }
+    return builder.append(format, start, format.length()).toString();
+  }
+
   /**
    * Log with file
    * 
@@ -232,16 +278,9 @@ public class GLog {
    * @TODO review and add Unit Test
    */
   public static void logf(final String level, final String tag, final String msg) {
-    if (logStream != null && fileOutput) {
-      mGLogHandler = mGLogThread.getHandler();
-      if (mGLogHandler == null) {
-        return;
-      }
-      GLogInfo info = new GLogInfo();
-      info.mMessage = msg;
-      info.mTag = tag;
-      info.mLevel = level;
-      mGLogHandler.sendMessage(Message.obtain(mGLogHandler, WRITE, info));
+    final GLogFileSink sink = sFileSink;
+    if (sink != null) {
+      sink.log(level, tag, msg);
     }
   }
 
@@ -265,37 +304,41 @@ public class GLog {
    * @TODO review and add Unit Test
    */
   public static boolean debugFile(String _path, boolean truncate) {
-    fileOutput = false;
+    return debugFile(_path, truncate, 0, 1);
+  }
+
+  /**
+   * Debug with File, rotating it by size: when it reaches {@code maxFileSize} it is moved to
+   * {@code path.1}, the one before to {@code path.2}, and so on up to {@code maxFiles}.
+   * 
+   * @param maxFileSize 0 to let the file grow without bound
+   * @return result code
+   */
+  public static synchronized boolean debugFile(String _path, boolean truncate, long maxFileSize,
+      int maxFiles) {
+    closeFile();
     GLog.path = _path;
-    debugLog = new File(path);
-    if (debugLog != null) {
-      try {
-        if (!debugLog.exists()) {
-          debugLog.createNewFile();
-        }
-        logStream =
-            new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(path, !truncate)));
-        fileOutput = true;
-      } catch (IOException ex) {
-        e("GLog", ex.toString());
-      }
+    try {
+      final GLogFileSink sink = new GLogFileSink(_path, truncate, maxFileSize, maxFiles,
+          GLogFileSink.DEFAULT_CAPACITY);
+      applyFlushPolicy(sink);
+      sFileSink = sink;
+    } catch (IOException ex) {
+      e("GLog", ex.toString());
     }
-    return fileOutput;
+    return sFileSink != null;
   }
 
   /**
-   * Close opened file
+   * Close opened file, after writing the lines logged so far
    * 
    * @TODO review and add Unit Test
    */
-  public static void closeFile() {
-    if (logStream != null && fileOutput) {
-      try {
-        logStream.close();
-      } catch (IOException ex) {
-        e("GLog", ex.toString());
-      }
-      fileOutput = false;
+  public static synchronized void closeFile() {
+    final GLogFileSink sink = sFileSink;
+    if (sink != null) {
+      sFileSink = null;
+      sink.close();
     }
   }
 
@@ -305,22 +348,47 @@ public class GLog {
    * @TODO review and add Unit Test
    */
   public static void flush() {
-    mGLogHandler = mGLogThread.getHandler();
-    if (mGLogHandler == null) {
-      return;
+    final GLogFileSink sink = sFileSink;
+    if (sink != null) {
+      sink.flush();
     }
-    mGLogHandler.sendMessage(Message.obtain(mGLogHandler, FLUSH, null));
   }
 
   /**
    * Buffered IO is much faster, but crashing after logging without flushing is slower. Allow app to
    * control this.
    * 
-   * @param flush Whether to flush after every log statement.
+   * @param flush Whether to write every batch of lines to the file as soon as it is taken from the
+   *        queue, instead of following {@link #setFlushPolicy(int, long)}.
    * @TODO review and add Unit Test
    */
-  public static void setAutoFlush(boolean flush) {
+  public static synchronized void setAutoFlush(boolean flush) {
     autoFlush = flush;
+    applyFlushPolicy(sFileSink);
+  }
+
+  /**
+   * Sets when lines are written to the file while auto flush is off: once {@code flushBytes} are
+   * buffered, or {@code flushInterval} milliseconds after the oldest buffered line.
+   */
+  public static synchronized void setFlushPolicy(int flushBytes, long flushInterval) {
+    sFlushBytes = flushBytes;
+    sFlushInterval = flushInterval;
+    applyFlushPolicy(sFileSink);
+  }
+
+  private static void applyFlushPolicy(GLogFileSink sink) {
+    if (sink != null) {
+      sink.setFlushPolicy(autoFlush ? 0 : sFlushBytes, sFlushInterval);
+    }
+  }
+
+  /**
+   * @return the lines the file output dropped because its writer fell behind
+   */
+  public static long getDroppedCount() {
+    final GLogFileSink sink = sFileSink;
+    return sink != null ? sink.getDroppedCount() : 0;
   }
 
   private static String noNull(String msg) {
@@ -341,7 +409,7 @@ public class GLog {
     if (e == null) {
       return;
     }
-    if (logStream == null || !fileOutput) {
+    if (sFileSink == null) {
       e.printStackTrace();
       return;
     }
@@ -369,8 +437,7 @@ public class GLog {
 
   static LogLevel sLevel = LogLevel.Error;
   static String path = null;
-  static File debugLog = null;
-  static OutputStreamWriter logStream = null;
-  static boolean fileOutput = false;
   static boolean autoFlush = true;
+  static int sFlushBytes = GLogFileSink.DEFAULT_FLUSH_BYTES;
+  static long sFlushInterval = GLogFileSink.DEFAULT_FLUSH_INTERVAL;
 }
@@ -0,0 +1,307 @@
+package net.gree.asdk.core.imageloader.log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Writes log lines to a file on a thread of its own. Logging threads only put the line into a
+ * bounded {@link LogBuffer}; the writer drains it in batches, encodes them into one large direct
+ * buffer and hands that to a {@link FileChannel} once it holds {@code flushBytes} or the oldest
+ * line in it is {@code flushInterval} old. Files are rotated by size. Under overload lines are
+ * dropped and counted, the file notes how many.
+ */
+class GLogFileSink {
+  private static final String TAG = "GLog";
+  static final int DEFAULT_CAPACITY = 8192;
+  static final int DEFAULT_FLUSH_BYTES = 32 * 1024;
+  static final long DEFAULT_FLUSH_INTERVAL = 1000; // milliseconds
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final File mFile;
+  private final long mMaxFileSize;
+  private final int mMaxFiles;
+  private final LogBuffer mLines;
+  private final Thread mThread;
+  private volatile boolean mParked;
+  private volatile boolean mClosed;
+  private volatile boolean mFlushRequested;
+  private volatile int mFlushBytes = DEFAULT_FLUSH_BYTES;
+  private volatile long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+
+  // used on the writer thread only
+  private FileChannel mChannel;
+  private long mFileSize;
+  private final ByteBuffer mBytes = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private final CharBuffer mChars = CharBuffer.allocate(1024);
+  private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder()
+      .onMalformedInput(CodingErrorAction.REPLACE)
+      .onUnmappableCharacter(CodingErrorAction.REPLACE);
+  /** {@link System#currentTimeMillis()} of the oldest line not written to the channel, or 0. */
+  private long mPendingSince;
+  private long mReportedDrops;
+  private final SimpleDateFormat mDateFormat =
+      new SimpleDateFormat("yyyy/MM/dd:HH:mm:ss", Locale.US);
+  private final Date mDate = new Date();
+  private long mFormattedSecond = -1;
+  private String mFormattedDate;
+  private final LogBuffer.Consumer mWriter = new LogBuffer.Consumer() {
+    @Override
+    public void accept(long time, String level, String tag, String message) {
+      writeLine(time, level, tag, message);
+    }
+  };
+
+  /**
+   * @param maxFileSize the size at which the file is moved to {@code path.1}, 0 to let it grow
+   * @param maxFiles the rotated files kept besides the current one
+   */
+  GLogFileSink(String path, boolean truncate, long maxFileSize, int maxFiles, int capacity)
+      throws IOException {
+    mFile = new File(path);
+    mMaxFileSize = maxFileSize;
+    mMaxFiles = Math.max(1, maxFiles);
+    mLines = new LogBuffer(capacity);
+    open(!truncate);
+    mThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        runWriter();
+      }
+    }, "GLog writer");
+    mThread.setDaemon(true);
+    mThread.start();
+  }
+
+  /**
+   * Queues a line, never blocks.
+   *
+   * @return false if the line was dropped
+   */
+  boolean log(String level, String tag, String message) {
+    if (mClosed || !mLines.put(System.currentTimeMillis(), level, tag, message)) {
+      return false;
+    }
+    wake();
+    return true;
+  }
+
+  /**
+   * @param flushBytes the bytes buffered before they are written to the file, 0 to write every
+   *        batch as soon as it is drained
+   * @param flushInterval milliseconds a line may stay buffered at most
+   */
+  void setFlushPolicy(int flushBytes, long flushInterval) {
+    mFlushBytes = Math.max(0, Math.min(flushBytes, BUFFER_SIZE));
+    mFlushInterval = Math.max(1, flushInterval);
+    wake();
+  }
+
+  /**
+   * Writes everything logged so far to the file, asynchronously.
+   */
+  void flush() {
+    mFlushRequested = true;
+    wake();
+  }
+
+  /**
+   * Writes everything logged so far and closes the file, waiting for the writer to finish.
+   */
+  void close() {
+    mClosed = true;
+    LockSupport.unpark(mThread);
+    try {
+      mThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  long getDroppedCount() {
+    return mLines.getDroppedCount();
+  }
+
+  private void wake() {
+    if (mParked) {
+      mParked = false;
+      LockSupport.unpark(mThread);
+    }
+  }
+
+  private void runWriter() {
+    try {
+      while (true) {
+        final boolean closing = mClosed;
+        mLines.drain(mWriter);
+        reportDrops();
+        final boolean flushRequested = mFlushRequested;
+        mFlushRequested = false;
+        if (closing || flushRequested || mBytes.position() >= mFlushBytes
+            || (mPendingSince > 0
+                && System.currentTimeMillis() - mPendingSince >= mFlushInterval)) {
+          writeBuffer();
+        }
+        if (closing) {
+          break;
+        }
+        // announce the park and look once more, lines put before loggers saw the flag are seen
+        mParked = true;
+        if (!mClosed && !mFlushRequested && !mLines.isEmpty()) {
+          mParked = false;
+          continue;
+        }
+        if (mPendingSince > 0) {
+          final long wait = mPendingSince + mFlushInterval - System.currentTimeMillis();
+          if (wait > 0) {
+            LockSupport.parkNanos(this, wait * 1000000L);
+          }
+        } else if (!mClosed) {
+          LockSupport.park(this);
+        }
+        mParked = false;
+      }
+    } finally {
+      try {
+        mChannel.close();
+      } catch (IOException e) {
+        Log.e(TAG, e.toString());
+      }
+    }
+  }
+
+  private void reportDrops() {
+    final long dropped = mLines.getDroppedCount();
+    if (dropped != mReportedDrops) {
+      writeLine(System.currentTimeMillis(), "Warn", TAG,
+          (dropped - mReportedDrops) + " lines dropped, the writer fell behind");
+      mReportedDrops = dropped;
+    }
+  }
+
+  private void writeLine(long time, String level, String tag, String message) {
+    if (mMaxFileSize > 0 && mFileSize + mBytes.position() >= mMaxFileSize) {
+      // rotates between lines
+      writeBuffer();
+      rotate();
+    }
+    final long second = time / 1000;
+    if (second != mFormattedSecond) {
+      mDate.setTime(second * 1000);
+      mFormattedDate = mDateFormat.format(mDate);
+      mFormattedSecond = second;
+    }
+    final int millis = (int) (time % 1000);
+    append(mFormattedDate);
+    append(millis < 10 ? ".00" : millis < 100 ? ".0" : ".");
+    append(Integer.toString(millis));
+    append("|");
+    append(noNull(level));
+    append("|");
+    append(noNull(tag));
+    append("|");
+    append(noNull(message));
+    append("\n");
+    encodeChars();
+    if (mPendingSince == 0) {
+      mPendingSince = time > 0 ? time : 1;
+    }
+  }
+
+  private void append(String text) {
+    int start = 0;
+    while (start < text.length()) {
+      if (!mChars.hasRemaining()) {
+        encodeChars();
+      }
+      final int end = Math.min(text.length(), start + mChars.remaining());
+      mChars.put(text, start, end);
+      start = end;
+    }
+  }
+
+  /**
+   * Moves the characters appended so far into the byte buffer, writing it out when it fills up.
+   */
+  private void encodeChars() {
+    mChars.flip();
+    while (true) {
+      final CoderResult result = mEncoder.encode(mChars, mBytes, false);
+      if (!result.isOverflow()) {
+        break;
+      }
+      writeBuffer();
+    }
+    mChars.compact();
+  }
+
+  private void writeBuffer() {
+    if (mBytes.position() == 0) {
+      return;
+    }
+    mBytes.flip();
+    try {
+      while (mBytes.hasRemaining()) {
+        mFileSize += mChannel.write(mBytes);
+      }
+    } catch (IOException e) {
+      // the lines in the buffer are lost, the writer carries on with the next ones
+      Log.e(TAG, e.toString());
+    } finally {
+      mBytes.clear();
+      mPendingSince = 0;
+    }
+  }
+
+  private void open(boolean append) throws IOException {
+    final File parent = mFile.getParentFile();
+    if (parent != null && !parent.exists()) {
+      parent.mkdirs();
+    }
+    mChannel = new FileOutputStream(mFile, append).getChannel();
+    mFileSize = mChannel.size();
+  }
+
+  /**
+   * Moves {@code path} to {@code path.1}, {@code path.1} to {@code path.2} and so on, and starts
+   * a new file.
+   */
+  private void rotate() {
+    try {
+      mChannel.close();
+    } catch (IOException e) {
+      Log.e(TAG, e.toString());
+    }
+    new File(mFile.getPath() + "." + mMaxFiles).delete();
+    for (int i = mMaxFiles - 1; i >= 1; i--) {
+      final File from = new File(mFile.getPath() + "." + i);
+      if (from.exists()) {
+        from.renameTo(new File(mFile.getPath() + "." + (i + 1)));
+      }
+    }
+    mFile.renameTo(new File(mFile.getPath() + ".1"));
+    try {
+      open(false);
+    } catch (IOException e) {
+      // later writes fail on the closed channel and are dropped
+      Log.e(TAG, e.toString());
+    }
+  }
+
+  private static String noNull(String text) {
+    return text != null ? text : "null";
+  }
+}
@@ -15,6 +15,10 @@
  */
 package net.gree.asdk.core.imageloader.log;
 
+/**
+ * @deprecated {@link GLog} no longer passes lines around in messages, nothing uses this class.
+ */
+@Deprecated
 public class GLogInfo {
   public String mTag;
   public String mMessage;
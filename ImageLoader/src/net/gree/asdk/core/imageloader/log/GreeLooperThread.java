@@ -19,6 +19,10 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 
+/**
+ * @deprecated {@link GLog} writes its file on a thread of its own, nothing uses this class.
+ */
+@Deprecated
 public class GreeLooperThread extends Thread {
   private Handler mHandler;
   public Handler getHandler() {
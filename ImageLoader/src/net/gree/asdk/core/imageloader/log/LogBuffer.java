@@ -0,0 +1,117 @@
+package net.gree.asdk.core.imageloader.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Holds log lines between the threads that log and the thread that writes the file, in slots
+ * allocated up front: logging a line claims a slot with a compare-and-set and allocates nothing.
+ * Any thread may put, only the writer thread may take. When the writer falls behind by the whole
+ * capacity, further lines are dropped and counted instead of piling up.
+ */
+class LogBuffer {
+  private final int mMask;
+  /**
+   * Per slot, the position a put may write it at, or that position plus one once the line is
+   * there for the writer to take.
+   */
+  private final AtomicLongArray mSequences;
+  private final long[] mTimes;
+  private final String[] mLevels;
+  private final String[] mTags;
+  private final String[] mMessages;
+  private final AtomicLong mTail = new AtomicLong();
+  private final AtomicLong mDropped = new AtomicLong();
+  private long mHead;
+
+  /**
+   * @param capacity the lines held, rounded up to a power of two
+   */
+  LogBuffer(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    mMask = size - 1;
+    mSequences = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      mSequences.set(i, i);
+    }
+    mTimes = new long[size];
+    mLevels = new String[size];
+    mTags = new String[size];
+    mMessages = new String[size];
+  }
+
+  /**
+   * @return false if the buffer was full and the line was dropped
+   */
+  boolean put(long time, String level, String tag, String message) {
+    long tail;
+    int slot;
+    while (true) {
+      tail = mTail.get();
+      slot = (int) tail & mMask;
+      final long sequence = mSequences.get(slot);
+      if (sequence == tail) {
+        if (mTail.compareAndSet(tail, tail + 1)) {
+          break;
+        }
+      } else if (sequence < tail) {
+        // the writer has not taken the line a lap ago yet
+        mDropped.incrementAndGet();
+        return false;
+      }
+    }
+    mTimes[slot] = time;
+    mLevels[slot] = level;
+    mTags[slot] = tag;
+    mMessages[slot] = message;
+    mSequences.set(slot, tail + 1);
+    return true;
+  }
+
+  /**
+   * Receives the lines taken from the buffer, on the writer thread.
+   */
+  interface Consumer {
+    void accept(long time, String level, String tag, String message);
+  }
+
+  /**
+   * Hands the lines put so far to {@code consumer}, oldest first. Writer thread only.
+   *
+   * @return the number of lines taken
+   */
+  int drain(Consumer consumer) {
+    int count = 0;
+    while (true) {
+      final int slot = (int) mHead & mMask;
+      if (mSequences.get(slot) != mHead + 1) {
+        return count;
+      }
+      final long time = mTimes[slot];
+      final String level = mLevels[slot];
+      final String tag = mTags[slot];
+      final String message = mMessages[slot];
+      mLevels[slot] = null;
+      mTags[slot] = null;
+      mMessages[slot] = null;
+      mSequences.set(slot, mHead + mMask + 1);
+      mHead++;
+      count++;
+      consumer.accept(time, level, tag, message);
+    }
+  }
+
+  /**
+   * @return whether there is no line to take. Writer thread only.
+   */
+  boolean isEmpty() {
+    return mSequences.get((int) mHead & mMask) != mHead + 1;
+  }
+
+  long getDroppedCount() {
+    return mDropped.get();
+  }
+}
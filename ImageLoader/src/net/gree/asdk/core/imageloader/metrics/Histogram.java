@@ -0,0 +1,134 @@
+package net.gree.asdk.core.imageloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts values, e.g. latencies in microseconds, into log-linear buckets without taking a lock:
+ * values below 16 have a bucket each, above that every power of two is split into 8 buckets. A
+ * percentile is therefore off by at most 12.5%, and recording a value is a few atomic adds.
+ */
+public class Histogram {
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /** The exponent of the first power of two after the linear buckets. */
+  private static final int FIRST_EXPONENT = 4;
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + (64 - FIRST_EXPONENT) * SUB_BUCKETS;
+
+  private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong mCount = new AtomicLong();
+  private final AtomicLong mSum = new AtomicLong();
+  private final AtomicLong mMax = new AtomicLong();
+
+  /**
+   * @param value a value of at least 0, negative ones count as 0
+   */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    mBuckets.incrementAndGet(getBucket(value));
+    mCount.incrementAndGet();
+    mSum.addAndGet(value);
+    long max;
+    while (value > (max = mMax.get())) {
+      if (mMax.compareAndSet(max, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Values recorded while the snapshot is taken may be missing from some of its numbers.
+   */
+  public Snapshot snapshot() {
+    final long[] buckets = new long[BUCKET_COUNT];
+    long count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets[i] = mBuckets.get(i);
+      count += buckets[i];
+    }
+    final long sum = mSum.get();
+    // a bucket bound may lie above every value in it
+    final long max = mMax.get();
+    return new Snapshot(count, count > 0 ? sum / count : 0,
+        Math.min(getPercentile(buckets, count, 0.5f), max),
+        Math.min(getPercentile(buckets, count, 0.9f), max),
+        Math.min(getPercentile(buckets, count, 0.99f), max), max);
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      mBuckets.set(i, 0);
+    }
+    mCount.set(0);
+    mSum.set(0);
+    mMax.set(0);
+  }
+
+  public long getCount() {
+    return mCount.get();
+  }
+
+  static int getBucket(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    final int exponent = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - FIRST_EXPONENT) * SUB_BUCKETS + subBucket;
+  }
+
+  /**
+   * @return the largest value that falls into {@code bucket}
+   */
+  static long getUpperBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    final int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + FIRST_EXPONENT;
+    final long subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    final long width = 1L << (exponent - SUB_BUCKET_BITS);
+    return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width - 1;
+  }
+
+  private static long getPercentile(long[] buckets, long count, float percentile) {
+    if (count == 0) {
+      return 0;
+    }
+    final long rank = (long) Math.ceil(percentile * count);
+    long seen = 0;
+    for (int i = 0; i < buckets.length; i++) {
+      seen += buckets[i];
+      if (seen >= rank) {
+        return getUpperBound(i);
+      }
+    }
+    return getUpperBound(buckets.length - 1);
+  }
+
+  public static class Snapshot {
+    public final long mCount;
+    public final long mMean;
+    public final long mP50;
+    public final long mP90;
+    public final long mP99;
+    public final long mMax;
+
+    Snapshot(long count, long mean, long p50, long p90, long p99, long max) {
+      mCount = count;
+      mMean = mean;
+      mP50 = p50;
+      mP90 = p90;
+      mP99 = p99;
+      mMax = max;
+    }
+
+    @Override
+    public String toString() {
+      return "n=" + mCount + " mean=" + mMean + " p50=" + mP50 + " p90=" + mP90 + " p99=" + mP99
+          + " max=" + mMax;
+    }
+  }
+}
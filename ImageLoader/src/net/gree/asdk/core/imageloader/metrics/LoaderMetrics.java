@@ -0,0 +1,181 @@
+package net.gree.asdk.core.imageloader.metrics;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.gree.asdk.core.imageloader.log.GLog;
+
+/**
+ * Counters and latency histograms of a loader: cache hit ratios, queue waits, download, decode and
+ * scale latencies, bytes downloaded and evictions. Recording is lock-free. A loader without
+ * metrics skips every recording site, including the clock reads, so disabled metrics cost a null
+ * check. Latencies are in microseconds.
+ */
+public class LoaderMetrics {
+  private static final String TAG = LoaderMetrics.class.getSimpleName();
+
+  /** Bitmaps found in the memory cache when a load was requested. */
+  public static final int MEMORY_HIT = 0;
+  public static final int MEMORY_MISS = 1;
+  public static final int DISK_HIT = 2;
+  public static final int DISK_MISS = 3;
+  /** Downloads that produced an image. */
+  public static final int NETWORK_LOAD = 4;
+  /** Downloads revalidated with a 304 Not Modified. */
+  public static final int NOT_MODIFIED = 5;
+  /** Loads that failed, including undecodable content. */
+  public static final int FAILURE = 6;
+  public static final int BYTES_DOWNLOADED = 7;
+  public static final int MEMORY_EVICTION = 8;
+  public static final int DISK_EVICTION = 9;
+  private static final int COUNTER_COUNT = 10;
+
+  /** Time requests waited in the queue of the disk stage. */
+  public static final int QUEUE_WAIT_DISK = 0;
+  public static final int QUEUE_WAIT_NETWORK = 1;
+  public static final int QUEUE_WAIT_DECODE = 2;
+  /** Disk cache lookups, including the decode of a hit. */
+  public static final int DISK_READ = 3;
+  /** Time from sending a request to receiving the response headers. */
+  public static final int RESPONSE = 4;
+  /** Decoding, which includes receiving the body when there is no decode stage. */
+  public static final int DECODE = 5;
+  public static final int SCALE = 6;
+  private static final int HISTOGRAM_COUNT = 7;
+
+  private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_COUNT);
+  private final Histogram[] mHistograms = new Histogram[HISTOGRAM_COUNT];
+  private Timer mTimer;
+
+  /**
+   * Receives snapshots of the metrics, e.g. to export them.
+   */
+  public interface Listener {
+    /**
+     * Called on a background thread of its own.
+     */
+    void onMetrics(Snapshot snapshot);
+  }
+
+  public LoaderMetrics() {
+    for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+      mHistograms[i] = new Histogram();
+    }
+  }
+
+  public void increment(int counter) {
+    mCounters.incrementAndGet(counter);
+  }
+
+  public void add(int counter, long delta) {
+    mCounters.addAndGet(counter, delta);
+  }
+
+  /**
+   * Records the time from {@code startNanos}, a {@link System#nanoTime()}, until now.
+   */
+  public void recordSince(int histogram, long startNanos) {
+    mHistograms[histogram].record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  public void record(int histogram, long micros) {
+    mHistograms[histogram].record(micros);
+  }
+
+  public Snapshot snapshot() {
+    final long[] counters = new long[COUNTER_COUNT];
+    for (int i = 0; i < COUNTER_COUNT; i++) {
+      counters[i] = mCounters.get(i);
+    }
+    final Histogram.Snapshot[] histograms = new Histogram.Snapshot[HISTOGRAM_COUNT];
+    for (int i = 0; i < HISTOGRAM_COUNT; i++) {
+      histograms[i] = mHistograms[i].snapshot();
+    }
+    return new Snapshot(counters, histograms);
+  }
+
+  public void reset() {
+    for (int i = 0; i < COUNTER_COUNT; i++) {
+      mCounters.set(i, 0);
+    }
+    for (Histogram histogram : mHistograms) {
+      histogram.reset();
+    }
+  }
+
+  /**
+   * Hands a snapshot to {@code listener} every {@code periodMillis}.
+   *
+   * @param listener null to stop reporting
+   */
+  public synchronized void setListener(final Listener listener, long periodMillis) {
+    if (mTimer != null) {
+      mTimer.cancel();
+      mTimer = null;
+    }
+    if (listener == null || periodMillis <= 0) {
+      return;
+    }
+    mTimer = new Timer(TAG, true);
+    mTimer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        try {
+          listener.onMetrics(snapshot());
+        } catch (RuntimeException e) {
+          GLog.printStackTrace(TAG, e);
+        }
+      }
+    }, periodMillis, periodMillis);
+  }
+
+  public static class Snapshot {
+    private final long[] mCounters;
+    private final Histogram.Snapshot[] mHistograms;
+
+    Snapshot(long[] counters, Histogram.Snapshot[] histograms) {
+      mCounters = counters;
+      mHistograms = histograms;
+    }
+
+    public long get(int counter) {
+      return mCounters[counter];
+    }
+
+    public Histogram.Snapshot getHistogram(int histogram) {
+      return mHistograms[histogram];
+    }
+
+    /**
+     * @return the share of loads served from memory, 0 if there were none
+     */
+    public float getMemoryHitRatio() {
+      return getRatio(MEMORY_HIT, MEMORY_MISS);
+    }
+
+    /**
+     * @return the share of disk lookups that found the image, 0 if there were none
+     */
+    public float getDiskHitRatio() {
+      return getRatio(DISK_HIT, DISK_MISS);
+    }
+
+    private float getRatio(int hits, int misses) {
+      final long total = mCounters[hits] + mCounters[misses];
+      return total > 0 ? (float) mCounters[hits] / total : 0;
+    }
+
+    @Override
+    public String toString() {
+      return "memory hit " + getMemoryHitRatio() + ", disk hit " + getDiskHitRatio()
+          + ", network " + mCounters[NETWORK_LOAD] + ", not modified " + mCounters[NOT_MODIFIED]
+          + ", failures " + mCounters[FAILURE] + ", bytes " + mCounters[BYTES_DOWNLOADED]
+          + ", evictions " + mCounters[MEMORY_EVICTION] + "/" + mCounters[DISK_EVICTION]
+          + ", queue wait " + mHistograms[QUEUE_WAIT_DISK] + " / " + mHistograms[QUEUE_WAIT_NETWORK]
+          + " / " + mHistograms[QUEUE_WAIT_DECODE] + ", disk read " + mHistograms[DISK_READ]
+          + ", response " + mHistograms[RESPONSE] + ", decode " + mHistograms[DECODE]
+          + ", scale " + mHistograms[SCALE];
+    }
+  }
+}
@@ -0,0 +1,272 @@
+package net.gree.asdk.core.imageloader.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records a timeline of every request, from being queued to being bound to its view, to tell
+ * which stage made a slow load slow. Events go into a ring buffer allocated up front, so tracing
+ * allocates nothing per event and keeps the most recent events once the ring is full. The ring can
+ * be dumped as Chrome trace JSON, to be opened in chrome://tracing or Perfetto with one row per
+ * request, or as compact text.
+ * <p>
+ * Stages deep in the loader do not know their request, the task running them binds its trace id
+ * to the thread with {@link #bind(int)}, like a {@code CancellationSignal}.
+ */
+public class RequestTracer {
+  /** The request was put into the queue of a stage, the argument is the stage. */
+  public static final int ENQUEUE = 0;
+  /** The queue handed the request to its executor. */
+  public static final int DISPATCH = 1;
+  public static final int DISK_LOOKUP = 2;
+  /** From sending the request to receiving the response headers. */
+  public static final int CONNECT = 3;
+  public static final int FIRST_BYTE = 4;
+  public static final int LAST_BYTE = 5;
+  public static final int DECODE = 6;
+  public static final int SCALE = 7;
+  public static final int CACHE_PUT = 8;
+  /** The result was delivered on the main thread. */
+  public static final int BIND = 9;
+  private static final String[] EVENT_NAMES = {
+      "enqueue", "dispatch", "disk lookup", "connect", "first byte", "last byte", "decode",
+      "scale", "cache put", "bind" };
+
+  private static final byte PHASE_INSTANT = 'i';
+  private static final byte PHASE_BEGIN = 'B';
+  private static final byte PHASE_END = 'E';
+
+  private static final ThreadLocal<int[]> sCurrent = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  private final int mMask;
+  private final long mOrigin = System.nanoTime();
+  private final AtomicLong mNext = new AtomicLong();
+  private final AtomicInteger mNextId = new AtomicInteger();
+  /**
+   * The sequence number each slot was last written with, plus one, published after the slot and
+   * 0 while it is written; a dump skips slots that are rewritten while it reads them.
+   */
+  private final AtomicLongArray mSequences;
+  private final long[] mTimes;
+  private final int[] mIds;
+  private final int[] mArgs;
+  private final byte[] mEvents;
+  private final byte[] mPhases;
+  private final String[] mUrls;
+
+  /**
+   * @param capacity the events kept, rounded up to a power of two
+   */
+  public RequestTracer(int capacity) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+    mMask = size - 1;
+    mSequences = new AtomicLongArray(size);
+    mTimes = new long[size];
+    mIds = new int[size];
+    mArgs = new int[size];
+    mEvents = new byte[size];
+    mPhases = new byte[size];
+    mUrls = new String[size];
+  }
+
+  /**
+   * @return a new trace id for a request, greater than 0
+   */
+  public int newId() {
+    int id;
+    do {
+      id = mNextId.incrementAndGet() & Integer.MAX_VALUE;
+    } while (id == 0);
+    return id;
+  }
+
+  /**
+   * Binds the trace id of the request the current thread works on, 0 to unbind.
+   *
+   * @return the id bound before, to be restored afterwards
+   */
+  public static int bind(int id) {
+    final int[] current = sCurrent.get();
+    final int previous = current[0];
+    current[0] = id;
+    return previous;
+  }
+
+  /**
+   * @return the trace id bound to the current thread, or 0
+   */
+  public static int current() {
+    return sCurrent.get()[0];
+  }
+
+  /**
+   * Records that the request {@code id} of {@code url} was queued for {@code stage}.
+   */
+  public void enqueue(int id, String url, int stage) {
+    record(id, ENQUEUE, PHASE_INSTANT, stage, url);
+  }
+
+  public void mark(int id, int event) {
+    record(id, event, PHASE_INSTANT, 0, null);
+  }
+
+  public void begin(int id, int event) {
+    record(id, event, PHASE_BEGIN, 0, null);
+  }
+
+  public void end(int id, int event) {
+    record(id, event, PHASE_END, 0, null);
+  }
+
+  private void record(int id, int event, byte phase, int arg, String url) {
+    if (id == 0) {
+      return;
+    }
+    final long sequence = mNext.getAndIncrement();
+    final int slot = (int) sequence & mMask;
+    mSequences.set(slot, 0);
+    mTimes[slot] = System.nanoTime();
+    mIds[slot] = id;
+    mArgs[slot] = arg;
+    mEvents[slot] = (byte) event;
+    mPhases[slot] = phase;
+    mUrls[slot] = url;
+    mSequences.set(slot, sequence + 1);
+  }
+
+  /**
+   * Discards all events recorded so far.
+   */
+  public void clear() {
+    for (int i = 0; i <= mMask; i++) {
+      mSequences.set(i, 0);
+      mUrls[i] = null;
+    }
+  }
+
+  /**
+   * Writes the events as a Chrome trace, one thread row per request, timestamps in microseconds
+   * since the tracer was created.
+   */
+  public void dumpChromeTrace(Writer writer) throws IOException {
+    writer.write("{\"traceEvents\":[");
+    final Dump dump = new Dump() {
+      private boolean mFirst = true;
+
+      @Override
+      void write(Writer writer, long time, int id, int event, byte phase, int arg, String url)
+          throws IOException {
+        writer.write(mFirst ? "\n" : ",\n");
+        mFirst = false;
+        writer.write("{\"name\":\"");
+        writer.write(EVENT_NAMES[event]);
+        writer.write("\",\"ph\":\"");
+        writer.write((char) phase);
+        writer.write("\",\"ts\":");
+        writer.write(Long.toString(time));
+        writer.write(",\"pid\":1,\"tid\":");
+        writer.write(Integer.toString(id));
+        if (phase == PHASE_INSTANT) {
+          writer.write(",\"s\":\"t\"");
+        }
+        if (event == ENQUEUE) {
+          writer.write(",\"args\":{\"stage\":");
+          writer.write(Integer.toString(arg));
+          if (url != null) {
+            writer.write(",\"url\":\"");
+            writeEscaped(writer, url);
+            writer.write('"');
+          }
+          writer.write('}');
+        }
+        writer.write('}');
+      }
+    };
+    dump.run(writer);
+    writer.write("\n]}\n");
+    writer.flush();
+  }
+
+  /**
+   * Writes one line per event: microseconds, request id, event, phase and, for queued requests,
+   * the stage and url.
+   */
+  public void dump(Writer writer) throws IOException {
+    new Dump() {
+      @Override
+      void write(Writer writer, long time, int id, int event, byte phase, int arg, String url)
+          throws IOException {
+        writer.write(Long.toString(time));
+        writer.write(' ');
+        writer.write(Integer.toString(id));
+        writer.write(' ');
+        writer.write(EVENT_NAMES[event].replace(' ', '_'));
+        writer.write(' ');
+        writer.write((char) phase);
+        if (event == ENQUEUE) {
+          writer.write(' ');
+          writer.write(Integer.toString(arg));
+          writer.write(' ');
+          writer.write(String.valueOf(url));
+        }
+        writer.write('\n');
+      }
+    }.run(writer);
+    writer.flush();
+  }
+
+  private static void writeEscaped(Writer writer, String value) throws IOException {
+    for (int i = 0; i < value.length(); i++) {
+      final char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        writer.write('\\');
+        writer.write(c);
+      } else if (c < 0x20) {
+        writer.write(String.format("\\u%04x", (int) c));
+      } else {
+        writer.write(c);
+      }
+    }
+  }
+
+  /**
+   * Walks the ring from the oldest event it still holds to the newest.
+   */
+  private abstract class Dump {
+    abstract void write(Writer writer, long time, int id, int event, byte phase, int arg,
+        String url) throws IOException;
+
+    void run(Writer writer) throws IOException {
+      final long end = mNext.get();
+      final long start = Math.max(0, end - (mMask + 1));
+      for (long sequence = start; sequence < end; sequence++) {
+        final int slot = (int) sequence & mMask;
+        if (mSequences.get(slot) != sequence + 1) {
+          continue;
+        }
+        final long time = mTimes[slot];
+        final int id = mIds[slot];
+        final int arg = mArgs[slot];
+        final int event = mEvents[slot];
+        final byte phase = mPhases[slot];
+        final String url = mUrls[slot];
+        // rewritten while it was read
+        if (mSequences.get(slot) != sequence + 1) {
+          continue;
+        }
+        write(writer, (time - mOrigin) / 1000, id, event, phase, arg, url);
+      }
+    }
+  }
+}
@@ -14,4 +14,16 @@ public class Util {
 	public static boolean hasHoneycomb() {
 		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
 	}
+
+	public static boolean hasIceCreamSandwich() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH;
+	}
+
+	public static boolean hasJellyBean() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+	}
+
+	public static boolean hasJellyBeanMR2() {
+		return Build.VERSION.SDK_INT >= 18; // Build.VERSION_CODES.JELLY_BEAN_MR2
+	}
 }